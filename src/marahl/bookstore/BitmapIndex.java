@@ -0,0 +1,270 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Secondary indexes of a {@link BookStore} as {@link SlotBitmap}s over the slots of a {@link Catalog}: all books,
+ * the books in stock, the books of each author and the books in each price bucket.
+ * <p>
+ * Filters are built by combining the bitmaps, ex. the books in stock under 300 by two authors is
+ * <pre>
+ * index.getInStock().and(index.getByPrice(null, new BigDecimal(300))).and(index.getByAuthors("A", "B"))
+ * </pre>
+ * and the result is iterated with {@link #forEach(SlotBitmap, ObjIntConsumer)}, which looks the books up in the
+ * catalog the index was published with.
+ * <p>
+ * An index is immutable. The store keeps its bitmaps up to date as books are added, removed and their quantities
+ * change, and publishes a new index after every change sharing every bitmap and container that didn't change.
+ * Price buckets are logarithmic with 8 buckets per doubling of the price in cents, so a price range is a handful of
+ * whole buckets plus the two buckets at its ends, which are filtered book by book.
+ */
+public final class BitmapIndex {
+    static final BitmapIndex EMPTY = new BitmapIndex(Catalog.EMPTY, SlotBitmap.EMPTY, SlotBitmap.EMPTY,
+            PersistentMap.empty(), new HashMap<>());
+
+    private static final int BUCKET_BITS = 3;
+
+    private final Catalog catalog;
+    private final SlotBitmap all;
+    private final SlotBitmap inStock;
+    private final PersistentMap<String, SlotBitmap> byAuthor;
+    private final Map<Integer, SlotBitmap> byPriceBucket;
+
+    private BitmapIndex(Catalog catalog, SlotBitmap all, SlotBitmap inStock,
+                        PersistentMap<String, SlotBitmap> byAuthor,
+                        Map<Integer, SlotBitmap> byPriceBucket) {
+        this.catalog = catalog;
+        this.all = all;
+        this.inStock = inStock;
+        this.byAuthor = byAuthor;
+        this.byPriceBucket = byPriceBucket;
+    }
+
+    /**
+     * @return the catalog whose slots the bitmaps refer to
+     */
+    public Catalog getCatalog() {
+        return catalog;
+    }
+
+    /**
+     * @return every book in the catalog
+     */
+    public SlotBitmap getAll() {
+        return all;
+    }
+
+    /**
+     * @return the books with a quantity above 0
+     */
+    public SlotBitmap getInStock() {
+        return inStock;
+    }
+
+    /**
+     * @param author the author, matched exactly
+     * @return the books by the author
+     */
+    public SlotBitmap getByAuthor(String author) {
+        SlotBitmap books = byAuthor.get(author);
+        return books != null ? books : SlotBitmap.EMPTY;
+    }
+
+    /**
+     * @param authors any number of authors, matched exactly
+     * @return the books by any of the authors
+     */
+    public SlotBitmap getByAuthors(String... authors) {
+        SlotBitmap result = SlotBitmap.EMPTY;
+        for (String author : authors) {
+            result = result.or(getByAuthor(author));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the books priced at least <tt>min</tt> and less than <tt>max</tt>
+     *
+     * @param min the lowest price, or null for no lower limit
+     * @param max the price all books are below, or null for no upper limit
+     * @return the books in the price range
+     */
+    public SlotBitmap getByPrice(BigDecimal min, BigDecimal max) {
+        long minCents = min != null ? InventoryReport.toCents(min) : Long.MIN_VALUE;
+        long maxCents = max != null ? InventoryReport.toCents(max) : Long.MAX_VALUE;
+        SlotBitmap result = SlotBitmap.EMPTY;
+        for (Map.Entry<Integer, SlotBitmap> bucket : byPriceBucket.entrySet()) {
+            long low = lowerBound(bucket.getKey());
+            long high = lowerBound(bucket.getKey() + 1);
+            if ((min == null || low > minCents) && (max == null || high < maxCents)) {
+                // every price in the bucket rounds to a cent strictly inside the range
+                result = result.or(bucket.getValue());
+            } else if ((min == null || high > minCents - 1) && (max == null || low < maxCents + 1)) {
+                SlotBitmap.Builder matches = SlotBitmap.EMPTY.edit();
+                bucket.getValue().forEach(slot -> {
+                    BigDecimal price = catalog.getBookAt(slot).getPrice();
+                    if ((min == null || price.compareTo(min) >= 0) && (max == null || price.compareTo(max) < 0)) {
+                        matches.add(slot);
+                    }
+                });
+                result = result.or(matches.build());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Calls the consumer with the book and ID in every slot of the bitmap, in catalog order
+     *
+     * @param slots    slots of this index, ex. the result of a filter
+     * @param consumer called with each book and its ID
+     */
+    public void forEach(SlotBitmap slots, ObjIntConsumer<Book> consumer) {
+        slots.forEach(slot -> {
+            int id = catalog.getIdAt(slot);
+            consumer.accept(catalog.getBook(id), id);
+        });
+    }
+
+    /**
+     * @param slots slots of this index, ex. the result of a filter
+     * @return the IDs of the books in the slots, in catalog order
+     */
+    public int[] getIds(SlotBitmap slots) {
+        int[] ids = slots.toArray();
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = catalog.getIdAt(ids[i]);
+        }
+        return ids;
+    }
+
+    /**
+     * @param slots slots of this index, ex. the result of a filter
+     * @return the books in the slots, in catalog order
+     */
+    public Book[] getBooks(SlotBitmap slots) {
+        List<Book> books = new ArrayList<>(slots.cardinality());
+        forEach(slots, (book, id) -> books.add(book));
+        return books.toArray(new Book[books.size()]);
+    }
+
+    Builder edit() {
+        return new Builder(this);
+    }
+
+    /**
+     * Prices up to 8 cents get a bucket each, above that every doubling is split in 8 buckets
+     */
+    static int bucket(long cents) {
+        if (cents < 1 << BUCKET_BITS) {
+            return (int) Math.max(cents, 0);
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(cents) - BUCKET_BITS;
+        return (shift + 1) << BUCKET_BITS | (int) ((cents >>> shift) - (1 << BUCKET_BITS));
+    }
+
+    /**
+     * @return the lowest price in cents of the bucket, the first bucket also holds all negative prices
+     */
+    static long lowerBound(int bucket) {
+        if (bucket == 0) {
+            return Long.MIN_VALUE;
+        } else if (bucket < 1 << BUCKET_BITS) {
+            return bucket;
+        }
+        int shift = (bucket >>> BUCKET_BITS) - 1;
+        if (shift >= 63 - BUCKET_BITS) {
+            return Long.MAX_VALUE;
+        }
+        return ((bucket & ((1L << BUCKET_BITS) - 1)) + (1L << BUCKET_BITS)) << shift;
+    }
+
+    /**
+     * Collects changes to the index, copying only the bitmaps that change
+     */
+    static final class Builder {
+        private BitmapIndex base;
+        private SlotBitmap.Builder all;
+        private SlotBitmap.Builder inStock;
+        private final Map<String, SlotBitmap.Builder> authors = new HashMap<>();
+        private final Map<Integer, SlotBitmap.Builder> priceBuckets = new HashMap<>();
+
+        private Builder(BitmapIndex base) {
+            this.base = base;
+            this.all = base.all.edit();
+            this.inStock = base.inStock.edit();
+        }
+
+        void add(int slot, Book book, int quantity) {
+            all.add(slot);
+            author(book.getAuthor()).add(slot);
+            priceBucket(book).add(slot);
+            setQuantity(slot, quantity);
+        }
+
+        void setQuantity(int slot, int quantity) {
+            if (quantity > 0) {
+                inStock.add(slot);
+            } else {
+                inStock.remove(slot);
+            }
+        }
+
+        void remove(int slot, Book book) {
+            all.remove(slot);
+            inStock.remove(slot);
+            author(book.getAuthor()).remove(slot);
+            priceBucket(book).remove(slot);
+        }
+
+        /**
+         * The author bitmaps are kept in a persistent map since there can be as many authors as books, a change
+         * copies the path to the changed authors. There are only a few hundred price buckets, they are copied.
+         *
+         * @return the new index for the catalog, or the original index if neither it nor the catalog changed
+         */
+        BitmapIndex build(Catalog catalog) {
+            if (catalog == base.catalog && !all.isChanged() && !inStock.isChanged() && authors.isEmpty()
+                    && priceBuckets.isEmpty()) {
+                return base;
+            }
+            PersistentMap<String, SlotBitmap> byAuthor = base.byAuthor;
+            for (Map.Entry<String, SlotBitmap.Builder> author : authors.entrySet()) {
+                SlotBitmap books = author.getValue().build();
+                byAuthor = books.isEmpty() ? byAuthor.remove(author.getKey()) : byAuthor.put(author.getKey(), books);
+            }
+            authors.clear();
+            Map<Integer, SlotBitmap> byPriceBucket = base.byPriceBucket;
+            if (!priceBuckets.isEmpty()) {
+                byPriceBucket = new HashMap<>(byPriceBucket);
+                for (Map.Entry<Integer, SlotBitmap.Builder> bucket : priceBuckets.entrySet()) {
+                    put(byPriceBucket, bucket.getKey(), bucket.getValue().build());
+                }
+                priceBuckets.clear();
+            }
+            base = new BitmapIndex(catalog, all.build(), inStock.build(), byAuthor, byPriceBucket);
+            return base;
+        }
+
+        private SlotBitmap.Builder author(String author) {
+            return authors.computeIfAbsent(author, key -> base.getByAuthor(key).edit());
+        }
+
+        private SlotBitmap.Builder priceBucket(Book book) {
+            return priceBuckets.computeIfAbsent(bucket(InventoryReport.toCents(book.getPrice())),
+                    key -> base.byPriceBucket.getOrDefault(key, SlotBitmap.EMPTY).edit());
+        }
+
+        private static <K> void put(Map<K, SlotBitmap> map, K key, SlotBitmap bitmap) {
+            if (bitmap.isEmpty()) {
+                map.remove(key);
+            } else {
+                map.put(key, bitmap);
+            }
+        }
+    }
+}
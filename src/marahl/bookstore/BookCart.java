@@ -2,24 +2,59 @@ package marahl.bookstore;
 
 import marahl.bookstore.books.Book;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.math.BigDecimal;
+import java.util.*;
 
 public class BookCart {
     private List<Book> cart = new ArrayList<>();
+    private List<Reservations.Hold> holds = new ArrayList<>();
+    private Map<Book, Line> lines = new LinkedHashMap<>();
+    private long version;
+    private BookStore checkedStore;
+    private long checkedVersion = -1;
+    private int[] statuses;
+    private BigDecimal total;
+    private final Reservations reservations;
+
+    /**
+     * Creates a cart that isn't tied to any store
+     */
+    public BookCart() {
+        this.reservations = null;
+    }
+
+    /**
+     * Creates a cart that holds the books added to it in the store until the holds expire
+     *
+     * @param store the store the books are held in
+     */
+    public BookCart(BookStore store) {
+        this.reservations = store.getReservations();
+    }
 
     /**
      * Adds a number of books to the shopping cart
      *
      * @param book     the book to add to the cart, can't be null
      * @param quantity how many books to be added to the cart
-     * @return true if something was added to the cart otherwise false
+     * @return true if something was added to the cart otherwise false, also false if the cart holds books in a store
+     * and too few of the book were available
      */
     public boolean addToCart(Book book, int quantity) {
         if (book == null) return false;
+        Reservations.Hold hold = null;
+        if (reservations != null && quantity > 0) {
+            hold = reservations.hold(book, quantity);
+            if (hold == null) return false;
+        }
         List<Book> booksToAdd = new ArrayList<>();
         for (int i = 0; i < quantity; i++) {
             booksToAdd.add(book);
+            holds.add(hold);
+        }
+        if (quantity > 0) {
+            lines.computeIfAbsent(book, Line::new).quantity += quantity;
+            version++;
         }
         return cart.addAll(booksToAdd);
     }
@@ -46,14 +81,178 @@ public class BookCart {
     }
 
     /**
-     * Removes the book on the index from the cart, books after it will be moved forward one index
+     * Removes the book on the index from the cart, books after it will be moved forward one index.
+     * If the book was held in a store the hold is released.
      *
      * @param i index of the book to be removed from the cart
      * @return the Book that was removed
      * @throws IndexOutOfBoundsException if index is outside the bounds of the cart
      */
     public Book removeFromCart(int i) {
-        return cart.remove(i);
+        Book book = cart.remove(i);
+        lines.computeIfPresent(book, (key, line) -> --line.quantity > 0 ? line : null);
+        version++;
+        Reservations.Hold hold = holds.remove(i);
+        if (hold != null) {
+            hold.release(1);
+        }
+        return book;
+    }
+
+    /**
+     * Gets the books in the cart with the quantity of each book, in the order they were first added
+     *
+     * @return entries with the book as key and its quantity in the cart as value
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public Map.Entry<Book, Integer>[] getLines() {
+        Map.Entry<Book, Integer>[] entries = new Map.Entry[lines.size()];
+        int i = 0;
+        for (Line line : lines.values()) {
+            entries[i++] = new AbstractMap.SimpleImmutableEntry<>(line.book, line.quantity);
+        }
+        return entries;
+    }
+
+    /**
+     * Returns a number that changes every time a book is added to or removed from the cart, so anything computed from
+     * the content of the cart can be reused as long as the version is the same
+     *
+     * @return the version of the content of the cart
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Gets the status each book in the cart would get if it was bought from the store, in the order of
+     * {@link #getCartContent()}.
+     * <p>
+     * The statuses are cached. Only lines whose quantity in the cart or {@link BookStore#getStockVersion(int) stock
+     * version} changed since the last call are checked against the store again.
+     *
+     * @param store the store to check the books in
+     * @return the status of each book
+     * @see BookStore#buy(Book...)
+     */
+    public int[] getStatus(BookStore store) {
+        refresh(store);
+        if (statuses == null) {
+            statuses = new int[cart.size()];
+            for (Line line : lines.values()) {
+                line.remaining = line.available;
+            }
+            for (int i = 0; i < statuses.length; i++) {
+                Line line = lines.get(cart.get(i));
+                if (line.remaining > 0) {
+                    statuses[i] = BookStore.OK;
+                    line.remaining--;
+                } else {
+                    statuses[i] = line.id >= 0 ? BookStore.NOT_IN_STOCK : BookStore.DOES_NOT_EXIST;
+                }
+            }
+        }
+        return statuses.clone();
+    }
+
+    /**
+     * Sums up the price of the books in the cart that are in stock in the store, cached like {@link #getStatus(BookStore)}
+     *
+     * @param store the store to check the books in
+     * @return the price of the books with the OK status
+     * @see BookStore#getPrice(Book[], int[])
+     */
+    public BigDecimal getTotal(BookStore store) {
+        refresh(store);
+        if (total == null) {
+            BigDecimal sum = new BigDecimal(0);
+            for (Line line : lines.values()) {
+                sum = sum.add(line.total);
+            }
+            total = sum;
+        }
+        return total;
+    }
+
+    /**
+     * Releases the holds on the books in the cart, once the cart has been bought from the store they were held in
+     *
+     * @param store the store the cart was bought from
+     */
+    void releaseHolds(BookStore store) {
+        if (reservations != store.getReservations()) return;
+        for (int i = 0; i < holds.size(); i++) {
+            Reservations.Hold hold = holds.set(i, null);
+            if (hold != null) {
+                hold.release();
+            }
+        }
+    }
+
+    /**
+     * @return the lines as last checked by {@link #getStatus(BookStore)} or {@link #getTotal(BookStore)}
+     */
+    Collection<Line> getCheckedLines() {
+        return lines.values();
+    }
+
+    private void refresh(BookStore store) {
+        boolean changed = store != checkedStore || version != checkedVersion;
+        if (store != checkedStore) {
+            for (Line line : lines.values()) {
+                line.id = -1;
+                line.checkedQuantity = 0;
+            }
+            checkedStore = store;
+        }
+        for (Line line : lines.values()) {
+            changed |= line.refresh(store);
+        }
+        checkedVersion = version;
+        if (changed) {
+            statuses = null;
+            total = null;
+        }
+    }
+
+    /**
+     * A book in the cart, its quantity and how many of it the store had in stock when it was last checked
+     */
+    static final class Line {
+        final Book book;
+        int quantity;
+        int id = -1;
+        int available;
+        int stock;
+        private long stockVersion = -1;
+        private int checkedQuantity;
+        private int remaining;
+        private BigDecimal total = BigDecimal.ZERO;
+
+        private Line(Book book) {
+            this.book = book;
+        }
+
+        /**
+         * @return <tt>true</tt> if the line was checked against the store again
+         */
+        private boolean refresh(BookStore store) {
+            long currentVersion = id >= 0 ? store.getStockVersion(id) : -1;
+            if (currentVersion < 0) {
+                // not looked up yet or removed from the store since
+                id = store.getBookID(book);
+                currentVersion = id >= 0 ? store.getStockVersion(id) : -1;
+            }
+            if (currentVersion == stockVersion && quantity == checkedQuantity) {
+                return false;
+            }
+            stock = id >= 0 ? store.getQuantity(id) : 0;
+            available = Math.min(quantity, Math.max(stock, 0));
+            total = book.getPrice().multiply(BigDecimal.valueOf(available));
+            stockVersion = currentVersion;
+            checkedQuantity = quantity;
+            return true;
+        }
     }
 
 }
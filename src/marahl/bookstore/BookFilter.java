@@ -0,0 +1,117 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A blocked Bloom filter over books, answering "definitely not in the store" without probing the catalog.
+ * <p>
+ * Each book sets {@link #HASHES} bits within a single 512 bit block, so a lookup touches one cache line. With
+ * {@link #BITS_PER_BOOK} bits per book the false positive rate stays around one percent as long as the filter holds
+ * no more books than its capacity. Bits can't be cleared, so removed books keep matching until the filter is rebuilt.
+ * <p>
+ * The filter is meant to have a single writer, lookups can run concurrently with additions. A bit is set before the
+ * book is published in the catalog, so a lookup never misses a book the catalog already contains.
+ */
+public final class BookFilter {
+    /**
+     * Number of bits per book the filter is sized for
+     */
+    public static final int BITS_PER_BOOK = 10;
+    /**
+     * Number of bits set per book
+     */
+    public static final int HASHES = 7;
+
+    private static final int BLOCK_WORDS = 8;
+    private static final int BLOCK_BITS = BLOCK_WORDS * Long.SIZE;
+
+    private final AtomicLongArray words;
+    private final int blockMask;
+    private final int capacity;
+    private volatile int size;
+
+    /**
+     * Creates an empty filter
+     *
+     * @param capacity the number of books the filter is sized for
+     */
+    public BookFilter(int capacity) {
+        this.capacity = Math.max(capacity, 1);
+        long bits = (long) this.capacity * BITS_PER_BOOK;
+        int blocks = 1;
+        while ((long) blocks * BLOCK_BITS < bits) {
+            blocks <<= 1;
+        }
+        this.words = new AtomicLongArray(blocks * BLOCK_WORDS);
+        this.blockMask = blocks - 1;
+    }
+
+    /**
+     * Adds a book to the filter
+     *
+     * @param book the book to add
+     */
+    public void add(Book book) {
+        long hash = hash(book);
+        int block = ((int) hash & blockMask) * BLOCK_WORDS;
+        int h1 = (int) (hash >>> 32);
+        int h2 = (int) (hash >>> 16) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            int bit = (h1 + i * h2) & (BLOCK_BITS - 1);
+            int word = block + (bit >>> 6);
+            long mask = 1L << bit;
+            long value = words.get(word);
+            if ((value & mask) == 0) {
+                words.set(word, value | mask);
+            }
+        }
+        size++;
+    }
+
+    /**
+     * Checks if a book may have been added to the filter
+     *
+     * @param book the book to look for
+     * @return <tt>false</tt> if the book definitely hasn't been added
+     */
+    public boolean mightContain(Book book) {
+        long hash = hash(book);
+        int block = ((int) hash & blockMask) * BLOCK_WORDS;
+        int h1 = (int) (hash >>> 32);
+        int h2 = (int) (hash >>> 16) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            int bit = (h1 + i * h2) & (BLOCK_BITS - 1);
+            if ((words.get(block + (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of books the filter is sized for
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of books added, including books added more than once
+     */
+    public int size() {
+        return size;
+    }
+
+    private static long hash(Book book) {
+        // the finalizer of MurmurHash3, spreads the bits of the hash code over the whole long
+        long hash = book.hashCode();
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
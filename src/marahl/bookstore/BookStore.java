@@ -1,41 +1,252 @@
 package marahl.bookstore;
 
 import marahl.bookstore.books.Book;
+import marahl.bookstore.books.SearchKey;
 
+import java.io.*;
 import java.math.BigDecimal;
+import java.text.ParseException;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class BookStore implements marahl.bookstore.books.BookList {
     public static final int OK = 0;
     public static final int NOT_IN_STOCK = 1;
     public static final int DOES_NOT_EXIST = 2;
 
-    private Integer currentId = 0;
-    private final Map<Integer, Book> stock = new HashMap<>();
-    private final Map<Integer, Integer> bookQuantity = new HashMap<>();
-    private final Map<Book, Integer> bookIds = new LinkedHashMap<>();
+    private static final int MIN_FILTER_CAPACITY = 1024;
+    private static final long TYPEAHEAD_MAX_AGE_MILLIS = 1000;
+    private static final Executor TYPEAHEAD_BUILDERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "typeahead-builder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Integer currentId;
+    private final int idStep;
+    private final boolean stripDiacritics;
+    private final Object lock = new Object();
+    private final AtomicReference<Catalog> catalog = new AtomicReference<>(Catalog.EMPTY);
+    private final Map<Integer, Integer> bookQuantity = new ConcurrentHashMap<>();
+    private final Map<Integer, Long> stockVersions = new ConcurrentHashMap<>();
+    private long stockVersion;
+    private final Reservations reservations;
+    private final SalesTracker salesTracker;
+    private final StockHistory history;
+    private final LongSupplier clock;
+    private volatile FuzzyIndex fuzzyIndex;
+    private volatile BitmapIndex bitmapIndex;
+    private BitmapIndex.Builder indexBuilder;
+    private final ChangeFeed changeFeed = new ChangeFeed();
+    private final Queue<ChangeEvent> pendingChanges = new ConcurrentLinkedQueue<>();
+    private final StoreEvents events = new StoreEvents();
+    private final Map<Typeahead.Ranking, Typeahead> typeaheads = new ConcurrentHashMap<>();
+    private final ReentrantLock typeaheadLock = new ReentrantLock();
+    private final Set<Typeahead.Ranking> rebuildingTypeaheads = ConcurrentHashMap.newKeySet();
+    private volatile BookFilter bookFilter = new BookFilter(MIN_FILTER_CAPACITY);
+    private int removedSinceFilterRebuild;
+    private final LongAdder filteredLookups = new LongAdder();
+    private final LongAdder falsePositiveLookups = new LongAdder();
+
+    public BookStore() {
+        this(false);
+    }
+
+    /**
+     * Creates a store where searches can optionally ignore diacritics, ex. "e" matches "é"
+     *
+     * @param stripDiacritics true if searches should ignore diacritics
+     */
+    public BookStore(boolean stripDiacritics) {
+        this(0, 1, stripDiacritics, System::currentTimeMillis);
+    }
+
+    BookStore(LongSupplier clock) {
+        this(0, 1, false, clock);
+    }
+
+    /**
+     * Creates a store handing out the IDs firstId, firstId + idStep, firstId + 2 * idStep...
+     */
+    BookStore(int firstId, int idStep, boolean stripDiacritics, LongSupplier clock) {
+        this.currentId = firstId;
+        this.idStep = idStep;
+        this.stripDiacritics = stripDiacritics;
+        this.reservations = new Reservations(this, clock);
+        this.salesTracker = new SalesTracker(clock);
+        this.history = new StockHistory(clock);
+        this.clock = clock;
+    }
 
     /**
      * Matches the search string against the beginning of each book's title and author and returns
      * an array of each book with a match in either.
      * Ex. search string="Hell" will match the books "<b>hell</b>o world" by "Someone" and "The Story of My Life" by "<b>Hell</b>en Keller"
+     * The search string is folded once and compared to the {@link SearchKey} stored with each book.
      *
      * @param searchString String to search from among books in stock. Not case sensitive.
      * @return Array of books matching the search string.
      */
     @Override
     public Book[] list(String searchString) {
+        long start = events.begin();
+        Catalog snapshot = getCatalog();
+        String query = SearchKey.fold(searchString, stripDiacritics);
+        List<Book> foundBooks = new ArrayList<>();
+        for (Map.Entry<Integer, SearchKey> searchKey : snapshot.getSearchKeys().entrySet()) {
+            if (searchKey.getValue().startsWith(query)) {
+                foundBooks.add(snapshot.getBook(searchKey.getKey()));
+            }
+        }
+        events.end(StoreEvents.Type.SEARCH, "list", start, query.length(), foundBooks.size());
+        return foundBooks.toArray(new Book[foundBooks.size()]);
+    }
+
+    /**
+     * Finds the books where every word of the search string is close to a word in the book's title or author,
+     * allowing for typos. Ex. search string="Helen Keler" will match "The Story of My Life" by "Helen Keller".
+     *
+     * @param searchString words to search for. Not case sensitive.
+     * @param maxDistance  the maximum number of inserted, removed or replaced characters per word,
+     *                     or {@link FuzzyIndex#AUTOMATIC_DISTANCE} to allow more typos in longer words
+     * @return Array of matching books, closest match first.
+     */
+    public Book[] fuzzyList(String searchString, int maxDistance) {
+        long start = events.begin();
+        Catalog snapshot = getCatalog();
         List<Book> foundBooks = new ArrayList<>();
-        for (Book book : getStock()) {
-            String title = book.getTitle();
-            String author = book.getAuthor();
-            title = title.substring(0, Math.min(searchString.length(), title.length()));
-            author = author.substring(0, Math.min(searchString.length(), author.length()));
-            if (title.equalsIgnoreCase(searchString) || author.equalsIgnoreCase(searchString)) foundBooks.add(book);
+        for (int id : getFuzzyIndex().search(searchString, maxDistance)) {
+            Book book = snapshot.getBook(id);
+            if (book != null) {
+                foundBooks.add(book);
+            }
         }
+        events.end(StoreEvents.Type.SEARCH, "fuzzyList", start, searchString.length(), foundBooks.size());
         return foundBooks.toArray(new Book[foundBooks.size()]);
     }
 
+    /**
+     * Returns the index used by {@link #fuzzyList(String, int)}. The index is only built on the first fuzzy search
+     * so that stores which are never searched that way, and startup, don't pay for it. Once built it is kept up to
+     * date by every change.
+     */
+    private FuzzyIndex getFuzzyIndex() {
+        FuzzyIndex index = fuzzyIndex;
+        if (index == null) {
+            synchronized (lock) {
+                index = fuzzyIndex;
+                if (index == null) {
+                    index = new FuzzyIndex();
+                    for (Map.Entry<Integer, Book> entry : catalog.get().getEntries().entrySet()) {
+                        index.add(entry.getKey(), entry.getValue());
+                    }
+                    fuzzyIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns the bitmap indexes of the store, for filtering books by stock, author and price without looking at
+     * every book. The indexes are built on the first call and kept up to date by every change after that, each
+     * change publishes a new immutable {@link BitmapIndex}.
+     *
+     * @return the current bitmap indexes
+     */
+    public BitmapIndex getIndex() {
+        BitmapIndex index = bitmapIndex;
+        if (index == null) {
+            synchronized (lock) {
+                if (indexBuilder == null) {
+                    buildIndex();
+                }
+                index = bitmapIndex;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Finds the books close to the search string, allowing more typos in longer words
+     *
+     * @param searchString words to search for. Not case sensitive.
+     * @return Array of matching books, closest match first.
+     * @see #fuzzyList(String, int)
+     */
+    public Book[] fuzzyList(String searchString) {
+        return fuzzyList(searchString, FuzzyIndex.AUTOMATIC_DISTANCE);
+    }
+
+    /**
+     * Completes the beginning of a title or an author to the best ranked titles and authors, for suggesting searches
+     * while the search string is typed. Matching is the same as in {@link #list(String)} but only the distinct titles
+     * and authors are returned, ranked by the recent sales or the quantity in stock of their books.
+     * <p>
+     * The suggestions come from a {@link Typeahead} built on the first call for each ranking. After the stock or the
+     * sales change the next call starts rebuilding it on a background thread, at most once a second, and calls keep
+     * getting the previous suggestions until the rebuilt typeahead replaces it.
+     *
+     * @param prefix  the beginning of a title or author. Not case sensitive.
+     * @param k       the most suggestions to return, at most {@link Typeahead#MAX_SUGGESTIONS}
+     * @param ranking how to rank the suggestions
+     * @return the suggestions, best first
+     */
+    public Typeahead.Suggestion[] suggest(String prefix, int k, Typeahead.Ranking ranking) {
+        long start = events.begin();
+        String query = SearchKey.fold(prefix, stripDiacritics);
+        Typeahead.Suggestion[] suggestions = getTypeahead(ranking).suggest(query, k);
+        events.end(StoreEvents.Type.SEARCH, "suggest", start, query.length(), suggestions.length);
+        return suggestions;
+    }
+
+    private Typeahead getTypeahead(Typeahead.Ranking ranking) {
+        Typeahead typeahead = typeaheads.get(ranking);
+        if (typeahead == null) {
+            // nothing to serve yet, the first typeahead is built by the caller
+            typeaheadLock.lock();
+            try {
+                typeahead = typeaheads.get(ranking);
+                if (typeahead == null) {
+                    typeahead = buildTypeahead(ranking);
+                    typeaheads.put(ranking, typeahead);
+                }
+            } finally {
+                typeaheadLock.unlock();
+            }
+        } else if (typeahead.getSequence() != changeFeed.getCursor()
+                && clock.getAsLong() - typeahead.getBuiltAt() >= TYPEAHEAD_MAX_AGE_MILLIS
+                && rebuildingTypeaheads.add(ranking)) {
+            TYPEAHEAD_BUILDERS.execute(() -> {
+                try {
+                    typeaheads.put(ranking, buildTypeahead(ranking));
+                } finally {
+                    rebuildingTypeaheads.remove(ranking);
+                }
+            });
+        }
+        return typeahead;
+    }
+
+    private Typeahead buildTypeahead(Typeahead.Ranking ranking) {
+        long sequence = changeFeed.getCursor();
+        Map<Integer, Double> sales = new HashMap<>();
+        for (Map.Entry<Integer, Double> entry : salesTracker.getTopSellers(Integer.MAX_VALUE)) {
+            sales.put(entry.getKey(), entry.getValue());
+        }
+        return new Typeahead(getCatalog(), this::getQuantity, sales, ranking, sequence, clock.getAsLong());
+    }
+
     /**
      * Adds zero or more book to the stock and gives it an unique ID, if the book already exists
      * it will add the quantity to the current stocked book instead.
@@ -52,22 +263,44 @@ public class BookStore implements marahl.bookstore.books.BookList {
         } else if (quantity < 0) {
             return false;
         }
-        synchronized (stock) {
-            int id;
-            if (bookIds.containsKey(newBook)) {
-                id = bookIds.get(newBook);
-                quantity += getQuantity(id);
-            } else {
-                id = currentId++;
-            }
-
-            stock.put(id, newBook);
-            bookQuantity.put(id, quantity);
-            bookIds.put(newBook, id);
+        long waiting = events.begin();
+        synchronized (lock) {
+            events.end(StoreEvents.Type.LOCK_WAIT, "add", waiting, 0, 0);
+            Catalog.Builder builder = catalog.get().edit();
+            add(builder, newBook, quantity);
+            publish(builder);
         }
+        publishPendingChanges();
         return true;
     }
 
+    private void add(Catalog.Builder builder, Book newBook, int quantity) {
+        int addedQuantity = quantity;
+        Integer id = builder.getBookID(newBook);
+        if (id != null) {
+            quantity += getQuantity(id);
+            if (indexBuilder != null) {
+                indexBuilder.setQuantity(builder.getSlot(id), quantity);
+            }
+        } else {
+            id = currentId;
+            currentId += idStep;
+            bookFilter.add(newBook);
+            builder.put(id, newBook, new SearchKey(newBook, stripDiacritics));
+            if (fuzzyIndex != null) {
+                fuzzyIndex.add(id, newBook);
+            }
+            if (indexBuilder != null) {
+                indexBuilder.add(builder.getSlot(id), newBook, quantity);
+            }
+        }
+        bookQuantity.put(id, quantity);
+        stockVersions.put(id, ++stockVersion);
+        salesTracker.updateQuantity(id, quantity);
+        history.record(id, quantity, newBook.getPrice());
+        publishChange(ChangeEvent.ADD, id, newBook, addedQuantity, quantity);
+    }
+
     /**
      * Remove a book with the ID provided. All other books with keep their current IDs.
      *
@@ -76,15 +309,30 @@ public class BookStore implements marahl.bookstore.books.BookList {
      */
     public Map.Entry<Book, Integer> remove(int bookId) {
         Map.Entry<Book, Integer> removedEntry = createNewEntry(null, 0);
-        synchronized (stock) {
-            Book book = stock.get(bookId);
+        long waiting = events.begin();
+        synchronized (lock) {
+            events.end(StoreEvents.Type.LOCK_WAIT, "remove", waiting, 0, 0);
+            Catalog.Builder builder = catalog.get().edit();
+            int slot = builder.getSlot(bookId);
+            Book book = builder.remove(bookId);
             if (book != null) {
-                stock.remove(bookId);
-                bookIds.remove(book);
+                removedSinceFilterRebuild++;
+                if (indexBuilder != null) {
+                    indexBuilder.remove(slot, book);
+                }
+                publish(builder);
+                if (fuzzyIndex != null) {
+                    fuzzyIndex.remove(bookId, book);
+                }
                 Integer quantity = bookQuantity.remove(bookId);
+                stockVersions.remove(bookId);
+                salesTracker.removeBook(bookId);
+                history.record(bookId, 0, null);
+                publishChange(ChangeEvent.REMOVE, bookId, book, -quantity, 0);
                 removedEntry = createNewEntry(book, quantity);
             }
         }
+        publishPendingChanges();
         return removedEntry;
     }
 
@@ -96,15 +344,32 @@ public class BookStore implements marahl.bookstore.books.BookList {
      */
     public Map.Entry<Book, Integer> remove(Book book) {
         Map.Entry<Book, Integer> removedEntry = createNewEntry(null, 0);
-        synchronized (stock) {
-            Integer bookId = bookIds.get(book);
+        if (book == null) return removedEntry;
+        long waiting = events.begin();
+        synchronized (lock) {
+            events.end(StoreEvents.Type.LOCK_WAIT, "remove", waiting, 0, 0);
+            Catalog.Builder builder = catalog.get().edit();
+            Integer bookId = builder.getBookID(book);
             if (bookId != null) {
-                stock.remove(bookId);
-                bookIds.remove(book);
+                int slot = builder.getSlot(bookId);
+                builder.remove(bookId);
+                removedSinceFilterRebuild++;
+                if (indexBuilder != null) {
+                    indexBuilder.remove(slot, book);
+                }
+                publish(builder);
+                if (fuzzyIndex != null) {
+                    fuzzyIndex.remove(bookId, book);
+                }
                 Integer quantity = bookQuantity.remove(bookId);
+                stockVersions.remove(bookId);
+                salesTracker.removeBook(bookId);
+                history.record(bookId, 0, null);
+                publishChange(ChangeEvent.REMOVE, bookId, book, -quantity, 0);
                 removedEntry = createNewEntry(book, quantity);
             }
         }
+        publishPendingChanges();
         return removedEntry;
     }
 
@@ -119,16 +384,27 @@ public class BookStore implements marahl.bookstore.books.BookList {
     public Map.Entry<Book, Integer> reduceQuantity(int id, int qty) {
         Map.Entry<Book, Integer> reducedEntry = createNewEntry(null, 0);
         if (qty >= 0) {
-            synchronized (stock) {
+            long waiting = events.begin();
+            synchronized (lock) {
+                events.end(StoreEvents.Type.LOCK_WAIT, "reduceQuantity", waiting, 0, 0);
                 Book book = getBook(id);
                 if (book != null) {
                     Integer currentQuantity = bookQuantity.get(id);
                     int newQuantity = Math.max(currentQuantity - qty, 0);
                     int decreasedQuantity = currentQuantity - newQuantity;
                     bookQuantity.put(id, newQuantity);
+                    stockVersions.put(id, ++stockVersion);
+                    if (indexBuilder != null) {
+                        indexBuilder.setQuantity(catalog.get().getSlot(id), newQuantity);
+                        publishIndex();
+                    }
+                    salesTracker.updateQuantity(id, newQuantity);
+                    history.record(id, newQuantity, book.getPrice());
+                    publishChange(ChangeEvent.REDUCE, id, book, -decreasedQuantity, newQuantity);
                     reducedEntry = createNewEntry(book, decreasedQuantity);
                 }
             }
+            publishPendingChanges();
         }
         return reducedEntry;
     }
@@ -140,11 +416,7 @@ public class BookStore implements marahl.bookstore.books.BookList {
      * @return the book or null if there was no book with that id
      */
     public Book getBook(int id) {
-        Book stockedBook = stock.get(id);
-        if (stockedBook != null) {
-            return stockedBook;
-        }
-        return null;
+        return getCatalog().getBook(id);
     }
 
     /**
@@ -154,11 +426,34 @@ public class BookStore implements marahl.bookstore.books.BookList {
      * @return the ID of the book or -1 if it wasn't found
      */
     public int getBookID(Book book) {
-        Integer id = bookIds.get(book);
-        if (id != null) {
-            return id;
+        return getBookID(getCatalog(), book);
+    }
+
+    /**
+     * Looks up the ID of the book in the snapshot, books that aren't in the {@link BookFilter} are never looked up
+     */
+    private int getBookID(Catalog snapshot, Book book) {
+        if (book == null || !bookFilter.mightContain(book)) {
+            filteredLookups.increment();
+            return -1;
+        }
+        int id = snapshot.getBookID(book);
+        if (id < 0) {
+            falsePositiveLookups.increment();
         }
-        return -1;
+        return id;
+    }
+
+    /**
+     * Returns the measured share of lookups for books that aren't in the store where the {@link BookFilter}
+     * couldn't rule the book out and the catalog had to be probed
+     *
+     * @return the false positive rate of the book filter, 0 if no missing books have been looked up
+     */
+    public double getFilterFalsePositiveRate() {
+        long falsePositives = falsePositiveLookups.sum();
+        long negatives = falsePositives + filteredLookups.sum();
+        return negatives == 0 ? 0 : (double) falsePositives / negatives;
     }
 
 
@@ -176,6 +471,18 @@ public class BookStore implements marahl.bookstore.books.BookList {
         return 0;
     }
 
+    /**
+     * Returns a number that changes every time the quantity of the book with the provided ID changes, so anything
+     * computed from the quantity can be reused as long as the version is the same
+     *
+     * @param id the id of the book
+     * @return the version of the book's stock or -1 if there's no book with the ID
+     */
+    public long getStockVersion(int id) {
+        Long version = stockVersions.get(id);
+        return version != null ? version : -1;
+    }
+
     /**
      * Returns the quantity of the book
      *
@@ -193,6 +500,73 @@ public class BookStore implements marahl.bookstore.books.BookList {
         return 0;
     }
 
+    /**
+     * Returns the quantity of the book with the provided ID that is in stock and isn't held by a shopper
+     *
+     * @param id the id of the book
+     * @return available quantity of the book
+     */
+    public int getAvailableQuantity(int id) {
+        return reservations.getAvailableQuantity(id);
+    }
+
+    /**
+     * Returns the quantity the book with the provided ID had at a point in time
+     *
+     * @param id   the id of the book
+     * @param time the point in time
+     * @return quantity of the book, 0 if it wasn't in the store or {@link StockHistory#UNKNOWN} if the time is older
+     * than the retained history
+     * @see StockHistory
+     */
+    public int getQuantity(int id, Instant time) {
+        return history.getQuantity(id, time.toEpochMilli());
+    }
+
+    /**
+     * Returns the price the book with the provided ID had at a point in time
+     *
+     * @param id   the id of the book
+     * @param time the point in time
+     * @return the price or null if the book wasn't in the store or the time is older than the retained history
+     * @see StockHistory
+     */
+    public BigDecimal getPrice(int id, Instant time) {
+        return history.getPrice(id, time.toEpochMilli());
+    }
+
+    /**
+     * Returns the history of the quantities and prices of the books in this store
+     *
+     * @return the stock history
+     */
+    public StockHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * Returns the quantity of the book that is in stock and isn't held by a shopper
+     *
+     * @param book the book
+     * @return available quantity of the book
+     */
+    public int getAvailableQuantity(Book book) {
+        int id = getBookID(book);
+        if (id >= 0) {
+            return getAvailableQuantity(id);
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the holds placed on the books of this store
+     *
+     * @return the reservations of the store
+     */
+    public Reservations getReservations() {
+        return reservations;
+    }
+
     /**
      * Return the status of the books in the array against the current stock of books
      * and prints the total price of the books in the array that were available
@@ -203,14 +577,65 @@ public class BookStore implements marahl.bookstore.books.BookList {
      * <li>DOES_NOT_EXIST - does not exist in stock</li>
      * </ul>
      *
+     * Each book with an OK status is recorded as sold and published as a sale on the change feed.
+     *
      * @param books books that should be checked
      * @return an array with the same size as the input array and corresponds to each book's status in order.
      */
     @Override
     public int[] buy(Book... books) {
+        long start = events.begin();
+        Catalog snapshot = getCatalog();
+        int[] left = new int[books.length];
+        int[] bookStatus = getStatus(snapshot, books, left);
+        int bought = 0;
+        for (int i = 0; i < books.length; i++) {
+            if (bookStatus[i] == OK) {
+                int id = getBookID(snapshot, books[i]);
+                salesTracker.recordSale(id, 1);
+                changeFeed.publish(ChangeEvent.SALE, id, books[i], 1, left[i]);
+                bought++;
+            }
+        }
+        events.end(StoreEvents.Type.CHECKOUT, "buy", start, books.length, bought);
+        return bookStatus;
+    }
+
+    /**
+     * Buys the content of the cart, same as {@link #buy(Book...)} with {@link BookCart#getCartContent()} but the
+     * statuses are cached in the cart and only the lines whose book or stock changed are checked again.
+     * Sales are recorded and published once per line, and the holds the cart placed in this store are released.
+     *
+     * @param cart the cart to buy
+     * @return an array with the status of each book in the cart's content, in order
+     */
+    public int[] buy(BookCart cart) {
+        long start = events.begin();
+        int[] bookStatus = cart.getStatus(this);
+        int bought = 0;
+        for (BookCart.Line line : cart.getCheckedLines()) {
+            if (line.available > 0) {
+                salesTracker.recordSale(line.id, line.available);
+                changeFeed.publish(ChangeEvent.SALE, line.id, line.book, line.available, line.stock - line.available);
+                bought += line.available;
+            }
+        }
+        cart.releaseHolds(this);
+        events.end(StoreEvents.Type.CHECKOUT, "buyCart", start, bookStatus.length, bought);
+        return bookStatus;
+    }
+
+    /**
+     * @param left where to store, for each book with an OK status, the quantity left once it and the copies before it
+     *             are bought
+     */
+    private int[] getStatus(Catalog snapshot, Book[] books, int[] left) {
         Map<Book, Integer> currentlyStockedBooks = new HashMap<>();
         for (Book book : books) {
-            currentlyStockedBooks.put(book, getQuantity(book));
+            int id = getBookID(snapshot, book);
+            if (id >= 0) {
+                currentlyStockedBooks.put(book, getQuantity(id));
+            }
         }
         int[] bookStatus = new int[books.length];
         for (int i = 0; i < books.length; i++) {
@@ -222,6 +647,7 @@ public class BookStore implements marahl.bookstore.books.BookList {
                 bookStatus[i] = NOT_IN_STOCK;
             } else {
                 bookStatus[i] = OK;
+                left[i] = quantity - 1;
                 currentlyStockedBooks.put(book, quantity - 1);
             }
         }
@@ -234,10 +660,25 @@ public class BookStore implements marahl.bookstore.books.BookList {
      *
      * @param books books to be added
      */
+    @Override
     public void addBatch(Map.Entry<Book, Integer>[] books) {
-        for (Map.Entry<Book, Integer> book : books) {
-            add(book.getKey(), book.getValue());
+        long start = events.begin();
+        int added = 0;
+        synchronized (lock) {
+            events.end(StoreEvents.Type.LOCK_WAIT, "addBatch", start, 0, 0);
+            Catalog.Builder builder = catalog.get().edit();
+            for (Map.Entry<Book, Integer> book : books) {
+                Book newBook = book.getKey();
+                Integer quantity = book.getValue();
+                if (newBook != null && quantity != null && quantity >= 0) {
+                    add(builder, newBook, quantity);
+                    added++;
+                }
+            }
+            publish(builder);
         }
+        publishPendingChanges();
+        events.end(StoreEvents.Type.INGEST, "addBatch", start, books.length, added);
     }
 
     /**
@@ -246,8 +687,330 @@ public class BookStore implements marahl.bookstore.books.BookList {
      * @return all books
      */
     public Book[] getStock() {
-        Book[] books = new Book[stock.size()];
-        return stock.values().toArray(books);
+        Collection<Book> books = getCatalog().getBooks();
+        return books.toArray(new Book[books.size()]);
+    }
+
+    /**
+     * Calls the visitor with the ID, book and quantity of every book matching the search string, in the order the
+     * books were first added, without building an array of the books. The books are those of the catalog when the
+     * call was made, the quantities are read as each book is reached.
+     *
+     * @param searchString matched like in {@link #list(String)}, an empty string matches every book
+     * @param visitor      called once per book until it returns <tt>false</tt>
+     * @return <tt>true</tt> if every matching book was visited, <tt>false</tt> if the visitor stopped early
+     */
+    public boolean visit(String searchString, StockVisitor visitor) {
+        long start = events.begin();
+        StockSpliterator spliterator = newSpliterator(searchString);
+        int[] visited = new int[1];
+        boolean complete = spliterator.visitRemaining((id, book, quantity) -> {
+            visited[0]++;
+            return visitor.visit(id, book, quantity);
+        });
+        events.end(StoreEvents.Type.SEARCH, "visit", start, searchString.length(), visited[0]);
+        return complete;
+    }
+
+    /**
+     * Returns a lazy spliterator over the books matching the search string, in the order they were first added.
+     * It splits the catalog into ranges of slots for parallel streams, the size it reports is an upper bound.
+     *
+     * @param searchString matched like in {@link #list(String)}, an empty string matches every book
+     * @return the spliterator
+     * @see #visit(String, StockVisitor)
+     */
+    public Spliterator<StockEntry> spliterator(String searchString) {
+        return newSpliterator(searchString);
+    }
+
+    /**
+     * Returns a lazy stream of the books matching the search string
+     *
+     * @param searchString matched like in {@link #list(String)}, an empty string matches every book
+     * @param parallel     <tt>true</tt> for a parallel stream
+     * @return the stream
+     * @see #spliterator(String)
+     */
+    public Stream<StockEntry> stream(String searchString, boolean parallel) {
+        return StreamSupport.stream(newSpliterator(searchString), parallel);
+    }
+
+    private StockSpliterator newSpliterator(String searchString) {
+        return new StockSpliterator(getCatalog(), SearchKey.fold(searchString, stripDiacritics), this::getQuantity);
+    }
+
+    /**
+     * Returns the best selling books by recent sales, best selling first
+     *
+     * @param n maximum number of books to return
+     * @return entries with the book as key and its estimated recent sales as value
+     * @see SalesTracker#getTopSellers(int)
+     */
+    public Map.Entry<Book, Double>[] getTopSellers(int n) {
+        return toBookEntries(salesTracker.getTopSellers(n));
+    }
+
+    /**
+     * Returns the books with the lowest quantities at or below the low stock threshold, lowest first
+     *
+     * @param n maximum number of books to return
+     * @return entries with the book as key and its quantity as value
+     * @see SalesTracker#getLowStock(int)
+     */
+    public Map.Entry<Book, Integer>[] getLowStock(int n) {
+        return toBookEntries(salesTracker.getLowStock(n));
+    }
+
+    /**
+     * Returns the tracker recording sales and low stock of this store
+     *
+     * @return the sales tracker
+     */
+    public SalesTracker getSalesTracker() {
+        return salesTracker;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private <T> Map.Entry<Book, T>[] toBookEntries(Map.Entry<Integer, T>[] idEntries) {
+        Catalog snapshot = getCatalog();
+        List<Map.Entry<Book, T>> entries = new ArrayList<>();
+        for (Map.Entry<Integer, T> idEntry : idEntries) {
+            Book book = snapshot.getBook(idEntry.getKey());
+            if (book != null) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(book, idEntry.getValue()));
+            }
+        }
+        return entries.toArray(new Map.Entry[entries.size()]);
+    }
+
+    /**
+     * Returns the books and their quantities at this point in time, the quantities always match the books
+     *
+     * @return a snapshot of the stock
+     */
+    public StockSnapshot getStockSnapshot() {
+        long start = events.begin();
+        synchronized (lock) {
+            events.end(StoreEvents.Type.LOCK_WAIT, "getStockSnapshot", start, 0, 0);
+            Catalog snapshot = catalog.get();
+            int[] ids = new int[snapshot.size()];
+            Book[] books = new Book[ids.length];
+            int[] quantities = new int[ids.length];
+            int index = 0;
+            for (Map.Entry<Integer, Book> entry : snapshot.getEntries().entrySet()) {
+                ids[index] = entry.getKey();
+                books[index] = entry.getValue();
+                quantities[index] = getQuantity(ids[index]);
+                index++;
+            }
+            events.end(StoreEvents.Type.SNAPSHOT, "getStockSnapshot", start, ids.length, ids.length);
+            return new StockSnapshot(snapshot, ids, books, quantities, changeFeed.getCursor());
+        }
+    }
+
+    /**
+     * Computes the total value of the stock and the value per author and price band over a snapshot of the stock.
+     * The work is split over all cores and the store isn't locked while the report is computed.
+     *
+     * @param priceBandWidth the width of the price bands, ex. 100 groups books priced 0-99.99, 100-199.99...
+     * @return the report
+     * @see InventoryReport
+     */
+    public InventoryReport getInventoryReport(BigDecimal priceBandWidth) {
+        return InventoryReport.of(getStockSnapshot(), priceBandWidth);
+    }
+
+    /**
+     * Writes the stock as CSV
+     *
+     * @param writer where to write, isn't closed
+     * @throws IOException if writing fails
+     * @see StockExport#writeCsv(StockSnapshot, Writer)
+     */
+    public void exportCsv(Writer writer) throws IOException {
+        StockExport.writeCsv(getStockSnapshot(), writer);
+    }
+
+    /**
+     * Adds the books of a CSV export to the stock, keeping their IDs
+     *
+     * @param reader where to read from, isn't closed
+     * @return the number of books read
+     * @throws IOException    if reading fails
+     * @throws ParseException if the CSV is malformed
+     * @see StockExport#readCsv(Reader, BookStore)
+     */
+    public int importCsv(Reader reader) throws IOException, ParseException {
+        long start = events.begin();
+        int count = StockExport.readCsv(reader, this);
+        events.end(StoreEvents.Type.INGEST, "importCsv", start, count, count);
+        return count;
+    }
+
+    /**
+     * Writes the stock in the compressed binary format
+     *
+     * @param output where to write, isn't closed
+     * @throws IOException if writing fails
+     * @see StockExport#writeBinary(StockSnapshot, OutputStream)
+     */
+    public void exportBinary(OutputStream output) throws IOException {
+        StockExport.writeBinary(getStockSnapshot(), output);
+    }
+
+    /**
+     * Adds the books of a binary export to the stock, keeping their IDs
+     *
+     * @param input where to read from, isn't closed
+     * @return the number of books read
+     * @throws IOException if reading fails or the data isn't in the binary format
+     * @see StockExport#readBinary(InputStream, BookStore)
+     */
+    public int importBinary(InputStream input) throws IOException {
+        long start = events.begin();
+        int count = StockExport.readBinary(input, this);
+        events.end(StoreEvents.Type.INGEST, "importBinary", start, count, count);
+        return count;
+    }
+
+    /**
+     * Puts a book with a known ID in the stock and sets its quantity, used to rebuild a store from a copy of another
+     * store. If there already is a book with the ID and the same title, author and price only its quantity is
+     * changed. IDs handed out later by {@link #add(Book, int)} won't collide with restored IDs.
+     *
+     * @param id       the ID of the book
+     * @param book     the book
+     * @param quantity the quantity of the book
+     * @throws IllegalArgumentException if the ID belongs to a different book or the quantity is negative
+     */
+    void restore(int id, Book book, int quantity) {
+        restore(new int[]{id}, new Book[]{book}, new int[]{quantity});
+    }
+
+    /**
+     * Restores several books at once, publishing a single new version of the catalog. The books are checked before
+     * anything is restored, so nothing is changed if one of them is rejected.
+     *
+     * @throws IllegalArgumentException if an ID belongs to a different book or a quantity is negative
+     * @see #restore(int, Book, int)
+     */
+    void restore(int[] ids, Book[] books, int[] quantities) {
+        long waiting = events.begin();
+        synchronized (lock) {
+            events.end(StoreEvents.Type.LOCK_WAIT, "restore", waiting, 0, 0);
+            Catalog current = catalog.get();
+            Map<Integer, Book> restored = new HashMap<>();
+            for (int i = 0; i < ids.length; i++) {
+                if (quantities[i] < 0) {
+                    throw new IllegalArgumentException(String.format("Negative quantity %d for ID %d", quantities[i], ids[i]));
+                }
+                Book existing = restored.putIfAbsent(ids[i], books[i]);
+                if (existing == null) {
+                    existing = current.getBook(ids[i]);
+                }
+                if (existing != null && !isSameBook(existing, books[i])) {
+                    throw new IllegalArgumentException(String.format("ID %d belongs to %s by %s, not %s by %s", ids[i],
+                            existing.getTitle(), existing.getAuthor(), books[i].getTitle(), books[i].getAuthor()));
+                }
+            }
+            Catalog.Builder builder = current.edit();
+            for (int i = 0; i < ids.length; i++) {
+                int id = ids[i];
+                Book book = builder.getBook(id);
+                if (book == null) {
+                    book = books[i];
+                    bookFilter.add(book);
+                    builder.put(id, book, new SearchKey(book, stripDiacritics));
+                    if (fuzzyIndex != null) {
+                        fuzzyIndex.add(id, book);
+                    }
+                    if (indexBuilder != null) {
+                        indexBuilder.add(builder.getSlot(id), book, 0);
+                    }
+                    if (id >= currentId) {
+                        currentId = id + idStep;
+                    }
+                }
+                int quantity = quantities[i];
+                int quantityChange = quantity - getQuantity(id);
+                if (indexBuilder != null) {
+                    indexBuilder.setQuantity(builder.getSlot(id), quantity);
+                }
+                bookQuantity.put(id, quantity);
+                stockVersions.put(id, ++stockVersion);
+                salesTracker.updateQuantity(id, quantity);
+                history.record(id, quantity, book.getPrice());
+                publishChange(quantityChange >= 0 ? ChangeEvent.ADD : ChangeEvent.REDUCE, id, book,
+                        quantityChange, quantity);
+            }
+            publish(builder);
+        }
+        publishPendingChanges();
+    }
+
+    /**
+     * Publishes a change on the change feed while the lock is held. If a blocking subscriber is a whole ring behind,
+     * the sequence is claimed so the order of the changes is kept but the event is only published by
+     * {@link #publishPendingChanges()} once the lock has been released, so a slow subscriber stalls the writers that
+     * have changes to publish rather than every thread waiting for the lock.
+     */
+    private void publishChange(int type, int id, Book book, int quantityChange, int quantity) {
+        long sequence = changeFeed.claim();
+        if (!changeFeed.tryPublish(sequence, type, id, book, quantityChange, quantity)) {
+            ChangeEvent pending = new ChangeEvent();
+            pending.set(type, id, book, quantityChange, quantity);
+            pending.sequence = sequence;
+            pendingChanges.add(pending);
+        }
+    }
+
+    /**
+     * Publishes the changes that had no room in the change feed, waiting for the blocking subscribers. Has to be
+     * called without holding the lock after every change.
+     */
+    private void publishPendingChanges() {
+        ChangeEvent pending;
+        while ((pending = pendingChanges.poll()) != null) {
+            changeFeed.publish(pending.getSequence(), pending.getType(), pending.getBookId(), pending.getBook(),
+                    pending.getQuantityChange(), pending.getQuantity());
+        }
+    }
+
+    private static boolean isSameBook(Book a, Book b) {
+        return a == b || a.getTitle().equals(b.getTitle()) && a.getAuthor().equals(b.getAuthor())
+                && a.getPrice().equals(b.getPrice());
+    }
+
+    /**
+     * Returns the timed events of the store's operations, recording is off until
+     * {@link StoreEvents#setEnabled(boolean) enabled}
+     *
+     * @return the events of the store
+     */
+    public StoreEvents getEvents() {
+        return events;
+    }
+
+    /**
+     * Returns the feed every change to the stock and every sale is published on. Subscribers using
+     * {@link ChangeFeed.SlowConsumerPolicy#BLOCK} have to keep up or they will stall the threads changing the store,
+     * though never while they hold the store's lock.
+     *
+     * @return the change feed of the store
+     */
+    public ChangeFeed getChangeFeed() {
+        return changeFeed;
+    }
+
+    /**
+     * Returns the current version of the catalog. The catalog is immutable and can be read without locking,
+     * changes made to the store after this call are published as new versions and won't show up in it.
+     *
+     * @return the current catalog
+     */
+    public Catalog getCatalog() {
+        return catalog.get();
     }
 
     /**
@@ -258,7 +1021,17 @@ public class BookStore implements marahl.bookstore.books.BookList {
      * @throws IllegalArgumentException if the arrays differ in size
      */
     public BigDecimal getPrice(Book... books) {
-        return getPrice(books, buy(books));
+        return getPrice(books, getStatus(books));
+    }
+
+    /**
+     * Returns the status each book would get from {@link #buy(Book...)}, without recording or publishing any sales
+     *
+     * @param books books that should be checked
+     * @return the status of each book, in order
+     */
+    int[] getStatus(Book... books) {
+        return getStatus(getCatalog(), books, new int[books.length]);
     }
 
     /**
@@ -273,16 +1046,105 @@ public class BookStore implements marahl.bookstore.books.BookList {
         if (books.length != bookStatus.length) {
             throw new IllegalArgumentException(String.format("The array of books and the array of statuses differ in size (%d != %d)", books.length, bookStatus.length));
         }
+        long start = events.begin();
         BigDecimal totalPrice = new BigDecimal(0);
+        int inStock = 0;
         for (int i = 0; i < books.length; i++) {
             int status = bookStatus[i];
             if (status == OK) {
                 totalPrice = totalPrice.add(books[i].getPrice());
+                inStock++;
             }
         }
+        events.end(StoreEvents.Type.PRICE, "getPrice", start, books.length, inStock);
         return totalPrice;
     }
 
+    /**
+     * Packs the books into the lowest internal slots of the catalog if enough slots are holes left by removed books,
+     * see {@link Catalog#getSlot(int)}. The IDs of the books don't change. The compacted catalog is published like any
+     * other change, so readers keep using the catalog they have and are never blocked.
+     *
+     * @param minHoleRatio the share of slots that have to be holes, 0 compacts as soon as there is a hole
+     * @return <tt>true</tt> if the catalog was compacted
+     */
+    public boolean compact(double minHoleRatio) {
+        long waiting = events.begin();
+        synchronized (lock) {
+            events.end(StoreEvents.Type.LOCK_WAIT, "compact", waiting, 0, 0);
+            Catalog current = catalog.get();
+            int holes = current.getHoleCount();
+            if (holes == 0 || holes < current.getSlotCount() * minHoleRatio) {
+                return false;
+            }
+            Catalog.Builder builder = current.edit();
+            builder.compact();
+            Catalog compacted = builder.build();
+            if (indexBuilder != null) {
+                // every slot moved, so the bitmaps are rebuilt for the packed catalog before either is published,
+                // readers never see bitmaps of the old slots with the new catalog
+                indexBuilder = createIndexBuilder(compacted);
+            }
+            catalog.set(compacted);
+            publishIndex();
+            return true;
+        }
+    }
+
+    private void publish(Catalog.Builder builder) {
+        if (builder.isChanged()) {
+            Catalog newCatalog = builder.build();
+            catalog.set(newCatalog);
+            BookFilter filter = bookFilter;
+            if (filter.size() > filter.getCapacity() || removedSinceFilterRebuild > newCatalog.size() / 4) {
+                rebuildFilter(newCatalog);
+            }
+        }
+        publishIndex();
+    }
+
+    /**
+     * Publishes the changes made to the bitmap index, if it has been built, together with the current catalog
+     */
+    private void publishIndex() {
+        if (indexBuilder != null) {
+            bitmapIndex = indexBuilder.build(catalog.get());
+        }
+    }
+
+    /**
+     * Builds the bitmap index from the catalog and quantities, called while locked
+     */
+    private void buildIndex() {
+        Catalog current = catalog.get();
+        indexBuilder = createIndexBuilder(current);
+        bitmapIndex = indexBuilder.build(current);
+    }
+
+    private BitmapIndex.Builder createIndexBuilder(Catalog snapshot) {
+        BitmapIndex.Builder builder = BitmapIndex.EMPTY.edit();
+        for (int slot = 0; slot < snapshot.getSlotCount(); slot++) {
+            int id = snapshot.getIdAt(slot);
+            if (id >= 0) {
+                builder.add(slot, snapshot.getBook(id), getQuantity(id));
+            }
+        }
+        return builder;
+    }
+
+    /**
+     * Replaces the book filter with one holding only the books of the catalog, sized for the catalog to double.
+     * Removed books are dropped from the filter and it gets room to grow.
+     */
+    private void rebuildFilter(Catalog snapshot) {
+        BookFilter filter = new BookFilter(Math.max(snapshot.size() * 2, MIN_FILTER_CAPACITY));
+        for (Book book : snapshot.getBooks()) {
+            filter.add(book);
+        }
+        bookFilter = filter;
+        removedSinceFilterRebuild = 0;
+    }
+
     private static Map.Entry<Book, Integer> createNewEntry(Book book, int quantity) {
         return new AbstractMap.SimpleImmutableEntry<>(book, quantity);
     }
@@ -0,0 +1,304 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Ships the changes made to a {@link BookStore} to {@link BookStoreReplica}s over local sockets.
+ * <p>
+ * The primary subscribes to the store's {@link ChangeFeed} and keeps the most recent changes in a log. A replica
+ * connects and sends the epoch of the primary it replicated and the sequence of the last change it has applied, the
+ * epoch is picked at random when the primary starts so sequences from earlier runs aren't mistaken for current ones.
+ * If the epoch matches and the log still has every change after it the replica catches up from the log, otherwise it
+ * first gets a snapshot of the whole stock. After that changes are streamed as they are logged, and a heartbeat is
+ * sent when there is nothing to send so replicas can tell how far behind they are. Sales don't change the stock and
+ * aren't shipped.
+ * <p>
+ * Messages start with a type byte, one of the {@link ChangeEvent} types, {@link #SNAPSHOT} or {@link #HEARTBEAT}, and
+ * the sequence of the newest logged change. A snapshot is followed by the epoch, the number of books and each book
+ * with its ID and quantity.
+ */
+public class BookStorePrimary implements AutoCloseable {
+    /**
+     * Default number of changes kept for replicas catching up
+     */
+    public static final int DEFAULT_LOG_SIZE = 65536;
+
+    static final int SNAPSHOT = 10;
+    static final int HEARTBEAT = 11;
+    static final long HEARTBEAT_MILLIS = 200;
+
+    private final long epoch = new Random().nextLong();
+    private final BookStore store;
+    private final int logSize;
+    private final ServerSocket serverSocket;
+    private final Consumer<? super Exception> errorHandler;
+    private final ChangeFeed.Subscription subscription;
+    private final List<Change> log = new ArrayList<>();
+    private final List<Socket> replicas = new ArrayList<>();
+    private long discardedSequence;
+    private long loggedSequence;
+    private volatile boolean closed;
+
+    /**
+     * Starts shipping the changes of the store to replicas connecting to the port on the loopback address.
+     * Errors while accepting replicas are passed to the uncaught exception handler of the accepting thread.
+     *
+     * @param store the store to replicate
+     * @param port  the port to listen on, 0 to pick a free port
+     * @throws IOException if the port couldn't be opened
+     */
+    public BookStorePrimary(BookStore store, int port) throws IOException {
+        this(store, port, null);
+    }
+
+    /**
+     * Starts shipping the changes of the store to replicas connecting to the port on the loopback address
+     *
+     * @param store        the store to replicate
+     * @param port         the port to listen on, 0 to pick a free port
+     * @param errorHandler called with the {@link IOException}s of accepting replicas, null to pass them to the
+     *                     uncaught exception handler of the accepting thread
+     * @throws IOException if the port couldn't be opened
+     */
+    public BookStorePrimary(BookStore store, int port, Consumer<? super Exception> errorHandler) throws IOException {
+        this(store, port, DEFAULT_LOG_SIZE, errorHandler);
+    }
+
+    BookStorePrimary(BookStore store, int port, int logSize) throws IOException {
+        this(store, port, logSize, null);
+    }
+
+    BookStorePrimary(BookStore store, int port, int logSize, Consumer<? super Exception> errorHandler) throws IOException {
+        this.store = store;
+        this.logSize = logSize;
+        this.errorHandler = errorHandler != null ? errorHandler
+                : e -> Thread.currentThread().getUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), e);
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        this.subscription = store.getChangeFeed().subscribe(ChangeFeed.SlowConsumerPolicy.BLOCK);
+        this.discardedSequence = subscription.getSequence();
+        this.loggedSequence = subscription.getSequence();
+        startThread(this::logChanges, "replication-log");
+        startThread(this::acceptReplicas, "replication-accept");
+    }
+
+    /**
+     * @return the port replicas connect to
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return the number of connected replicas
+     */
+    public synchronized int getReplicaCount() {
+        return replicas.size();
+    }
+
+    /**
+     * Stops accepting replicas and disconnects the connected ones
+     */
+    @Override
+    public void close() {
+        closed = true;
+        subscription.close();
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+        }
+        disconnectReplicas();
+    }
+
+    /**
+     * Closes the connections of all replicas, they will reconnect and catch up
+     */
+    synchronized void disconnectReplicas() {
+        for (Socket replica : replicas) {
+            try {
+                replica.close();
+            } catch (IOException ignored) {
+            }
+        }
+        replicas.clear();
+    }
+
+    private void logChanges() {
+        ChangeFeed.Handler handler = (event, endOfBatch) -> {
+            synchronized (this) {
+                if (event.getType() != ChangeEvent.SALE) {
+                    log.add(new Change(event));
+                }
+                loggedSequence = event.getSequence();
+                if (log.size() > logSize * 2) {
+                    List<Change> discarded = log.subList(0, log.size() - logSize);
+                    discardedSequence = discarded.get(discarded.size() - 1).sequence;
+                    discarded.clear();
+                }
+                if (endOfBatch) {
+                    notifyAll();
+                }
+            }
+        };
+        while (!closed) {
+            if (subscription.poll(handler, 1024) == 0) {
+                LockSupport.parkNanos(1_000_000);
+            }
+        }
+    }
+
+    private void acceptReplicas() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                synchronized (this) {
+                    replicas.add(socket);
+                }
+                startThread(() -> serve(socket), "replication-sender");
+            } catch (IOException e) {
+                if (!closed) {
+                    errorHandler.accept(e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            long replicaEpoch = in.readLong();
+            long position = in.readLong();
+            if (replicaEpoch != epoch || !canCatchUp(position)) {
+                position = sendSnapshot(out);
+            }
+            List<Change> changes = new ArrayList<>();
+            while (!closed) {
+                long head;
+                synchronized (this) {
+                    if (position < discardedSequence) {
+                        // the replica fell behind the log, it gets a snapshot when it reconnects
+                        return;
+                    }
+                    if (loggedSequence <= position) {
+                        wait(HEARTBEAT_MILLIS);
+                    }
+                    head = loggedSequence;
+                    getChangesAfter(position, changes);
+                }
+                for (Change change : changes) {
+                    change.write(out, head);
+                    position = change.sequence;
+                }
+                if (changes.isEmpty() || position < head) {
+                    // nothing left to send or the remaining changes up to the head were sales
+                    position = Math.max(position, head);
+                    out.writeByte(HEARTBEAT);
+                    out.writeLong(position);
+                }
+                out.flush();
+                changes.clear();
+            }
+        } catch (IOException | InterruptedException ignored) {
+        } finally {
+            synchronized (this) {
+                replicas.remove(socket);
+            }
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private synchronized boolean canCatchUp(long position) {
+        return position >= discardedSequence && position <= loggedSequence;
+    }
+
+    private long sendSnapshot(DataOutputStream out) throws IOException {
+        StockSnapshot snapshot = store.getStockSnapshot();
+        out.writeByte(SNAPSHOT);
+        out.writeLong(snapshot.getSequence());
+        out.writeLong(epoch);
+        out.writeInt(snapshot.size());
+        for (int i = 0; i < snapshot.size(); i++) {
+            out.writeInt(snapshot.getIdAt(i));
+            writeBook(out, snapshot.getBookAt(i));
+            out.writeInt(snapshot.getQuantityAt(i));
+        }
+        return snapshot.getSequence();
+    }
+
+    /**
+     * Collects the logged changes after the position, must be called while synchronized
+     */
+    private void getChangesAfter(long position, List<Change> changes) {
+        int low = 0;
+        int high = log.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (log.get(middle).sequence <= position) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        changes.addAll(log.subList(low, log.size()));
+    }
+
+    static void writeBook(DataOutput out, Book book) throws IOException {
+        out.writeUTF(book.getTitle());
+        out.writeUTF(book.getAuthor());
+        out.writeUTF(book.getPrice().toString());
+    }
+
+    static Book readBook(DataInput in) throws IOException {
+        return new Book(in.readUTF(), in.readUTF(), in.readUTF());
+    }
+
+    private static void startThread(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * A logged change, copied from the change feed event
+     */
+    private static final class Change {
+        private final long sequence;
+        private final int type;
+        private final int bookId;
+        private final Book book;
+        private final int quantity;
+
+        private Change(ChangeEvent event) {
+            this.sequence = event.getSequence();
+            this.type = event.getType();
+            this.bookId = event.getBookId();
+            this.book = event.getBook();
+            this.quantity = event.getQuantity();
+        }
+
+        private void write(DataOutputStream out, long head) throws IOException {
+            out.writeByte(type);
+            out.writeLong(head);
+            out.writeLong(sequence);
+            out.writeInt(bookId);
+            if (type == ChangeEvent.ADD) {
+                writeBook(out, book);
+            }
+            if (type != ChangeEvent.REMOVE) {
+                out.writeInt(quantity);
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+
+import java.io.*;
+import java.net.Socket;
+
+/**
+ * A read only copy of a {@link BookStore} kept up to date by a {@link BookStorePrimary}.
+ * <p>
+ * The replica serves searches and quantities from its own copy of the stock, all changes have to be made on the
+ * primary. If the connection is lost the replica keeps serving what it has and reconnects, catching up from the
+ * sequence of the last change it applied. A snapshot is installed into a new store with one batched restore, so it
+ * publishes a single catalog version however many books it has, and searches keep using the old store until it is
+ * complete.
+ */
+public class BookStoreReplica implements AutoCloseable {
+    private static final long RECONNECT_MILLIS = 500;
+
+    private final String host;
+    private final int port;
+    private final Thread thread;
+    private volatile BookStore store = new BookStore();
+    private volatile long epoch;
+    private volatile long sequence = -1;
+    private volatile long primarySequence = -1;
+    private volatile int snapshotCount;
+    private volatile Socket socket;
+    private volatile boolean closed;
+
+    /**
+     * Starts replicating the primary listening on the host and port
+     *
+     * @param host the host of the primary
+     * @param port the port of the primary
+     */
+    public BookStoreReplica(String host, int port) {
+        this.host = host;
+        this.port = port;
+        this.thread = new Thread(this::replicate, "replication-replica");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @see BookStore#list(String)
+     */
+    public Book[] list(String searchString) {
+        return store.list(searchString);
+    }
+
+    /**
+     * @see BookStore#getBook(int)
+     */
+    public Book getBook(int id) {
+        return store.getBook(id);
+    }
+
+    /**
+     * @see BookStore#getBookID(Book)
+     */
+    public int getBookID(Book book) {
+        return store.getBookID(book);
+    }
+
+    /**
+     * @see BookStore#getQuantity(int)
+     */
+    public int getQuantity(int id) {
+        return store.getQuantity(id);
+    }
+
+    /**
+     * @see BookStore#getQuantity(Book)
+     */
+    public int getQuantity(Book book) {
+        return store.getQuantity(book);
+    }
+
+    /**
+     * @see BookStore#getStock()
+     */
+    public Book[] getStock() {
+        return store.getStock();
+    }
+
+    /**
+     * @return the sequence of the last change applied, -1 if nothing has been received yet
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Returns how many changes the replica is behind the primary as of the last message from the primary
+     *
+     * @return number of changes not yet applied
+     */
+    public long getLag() {
+        return Math.max(primarySequence - sequence, 0);
+    }
+
+    /**
+     * @return <tt>true</tt> if the replica is connected to the primary
+     */
+    public boolean isConnected() {
+        Socket current = socket;
+        return current != null && !current.isClosed();
+    }
+
+    int getSnapshotCount() {
+        return snapshotCount;
+    }
+
+    /**
+     * Disconnects from the primary and stops replicating
+     */
+    @Override
+    public void close() {
+        closed = true;
+        disconnect();
+        thread.interrupt();
+    }
+
+    private void replicate() {
+        while (!closed) {
+            try (Socket connection = new Socket(host, port)) {
+                socket = connection;
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+                out.writeLong(epoch);
+                out.writeLong(sequence);
+                out.flush();
+                DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+                while (!closed) {
+                    apply(in);
+                }
+            } catch (IOException e) {
+                disconnect();
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void apply(DataInputStream in) throws IOException {
+        int type = in.readByte();
+        long head = in.readLong();
+        if (type == BookStorePrimary.SNAPSHOT) {
+            installSnapshot(in, head);
+        } else if (type == BookStorePrimary.HEARTBEAT) {
+            sequence = Math.max(sequence, head);
+        } else {
+            long changeSequence = in.readLong();
+            int id = in.readInt();
+            if (type == ChangeEvent.ADD) {
+                Book book = BookStorePrimary.readBook(in);
+                restore(id, book, in.readInt());
+            } else if (type == ChangeEvent.REDUCE) {
+                int quantity = in.readInt();
+                Book book = store.getBook(id);
+                if (book != null) {
+                    restore(id, book, quantity);
+                }
+            } else if (type == ChangeEvent.REMOVE) {
+                store.remove(id);
+            } else {
+                throw new IOException(String.format("Unknown message type (%d)", type));
+            }
+            sequence = changeSequence;
+        }
+        primarySequence = Math.max(primarySequence, head);
+    }
+
+    private void installSnapshot(DataInputStream in, long head) throws IOException {
+        long snapshotEpoch = in.readLong();
+        int size = in.readInt();
+        if (size < 0) {
+            throw new IOException(String.format("Corrupt snapshot size (%d)", size));
+        }
+        int[] ids = new int[size];
+        Book[] books = new Book[size];
+        int[] quantities = new int[size];
+        for (int i = 0; i < size; i++) {
+            ids[i] = in.readInt();
+            books[i] = BookStorePrimary.readBook(in);
+            quantities[i] = in.readInt();
+        }
+        BookStore newStore = new BookStore();
+        try {
+            newStore.restore(ids, books, quantities);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        store = newStore;
+        epoch = snapshotEpoch;
+        snapshotCount++;
+        sequence = head;
+        primarySequence = head;
+    }
+
+    /**
+     * Applies a change, a change the store rejects means the copy went out of sync so the epoch is forgotten and the
+     * replica gets a new snapshot when it reconnects
+     */
+    private void restore(int id, Book book, int quantity) throws IOException {
+        try {
+            store.restore(id, book, quantity);
+        } catch (IllegalArgumentException e) {
+            epoch = 0;
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private void disconnect() {
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+import marahl.bookstore.books.SearchKey;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * An immutable, versioned view of the books in a {@link BookStore} and their IDs.
+ * <p>
+ * A catalog never changes once it has been published, readers can iterate it without locking and always see a
+ * consistent point in time. Changes are made on a {@link Builder} which collects them on top of the catalog and
+ * produces the next version, so several changes can be batched into a single new version.
+ * Each book is stored together with its {@link SearchKey}, computed once when the book is added.
+ * Quantities are not part of the catalog since they change far more often than the books themselves.
+ * <p>
+ * Besides its external ID, which never changes, every book has an internal slot. Slots are handed out densely in the
+ * order books are added, and a removed book leaves a hole until the catalog is compacted, which packs the live books
+ * into the lowest slots in the same order. Structures indexed by slot rather than ID stay proportional to the number
+ * of books in the catalog however sparse the IDs get.
+ * <p>
+ * The books are kept in persistent structures, {@link PersistentMap}s by ID and by book and a {@link PersistentVector}
+ * by slot, so a new version shares everything but the changed paths with the previous one and a single change costs
+ * O(log n) rather than a copy of the catalog.
+ */
+public final class Catalog {
+    static final Catalog EMPTY = new Catalog(0, PersistentMap.empty(), PersistentMap.empty(), PersistentVector.empty());
+
+    private final long version;
+    private final PersistentMap<Integer, Item> byId;
+    private final PersistentMap<Book, Item> byBook;
+    private final PersistentVector<Item> bySlot;
+
+    private Catalog(long version, PersistentMap<Integer, Item> byId, PersistentMap<Book, Item> byBook,
+                    PersistentVector<Item> bySlot) {
+        this.version = version;
+        this.byId = byId;
+        this.byBook = byBook;
+        this.bySlot = bySlot;
+    }
+
+    /**
+     * Returns the version of the catalog, each published change increases the version by one
+     *
+     * @return the version of the catalog
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the book with the provided ID
+     *
+     * @param id the id of the book to return
+     * @return the book or null if there was no book with that id
+     */
+    public Book getBook(int id) {
+        Item entry = byId.get(id);
+        return entry != null ? entry.book : null;
+    }
+
+    /**
+     * Returns the book's ID
+     *
+     * @param book the book to get the ID of
+     * @return the ID of the book or -1 if it wasn't found or is null
+     */
+    public int getBookID(Book book) {
+        Item entry = book != null ? byBook.get(book) : null;
+        return entry != null ? entry.id : -1;
+    }
+
+    /**
+     * Returns true if the book is part of the catalog
+     *
+     * @param book the book to look for
+     * @return <tt>true</tt> if the book is in the catalog, <tt>false</tt> for null
+     */
+    public boolean contains(Book book) {
+        return book != null && byBook.containsKey(book);
+    }
+
+    /**
+     * Returns the number of books in the catalog
+     *
+     * @return number of books
+     */
+    public int size() {
+        return byId.size();
+    }
+
+    /**
+     * Returns all books in the catalog ordered by when they were first added
+     *
+     * @return unmodifiable view of all books
+     */
+    public Collection<Book> getBooks() {
+        return new AbstractCollection<Book>() {
+            @Override
+            public Iterator<Book> iterator() {
+                return new SlotIterator<>(entry -> entry.book);
+            }
+
+            @Override
+            public int size() {
+                return Catalog.this.size();
+            }
+        };
+    }
+
+    /**
+     * Returns the IDs and search keys of the books in the catalog ordered by when they were first added
+     *
+     * @return unmodifiable map from ID to search key
+     */
+    public Map<Integer, SearchKey> getSearchKeys() {
+        return new EntryMap<>(entry -> entry.searchKey);
+    }
+
+    /**
+     * Returns the IDs and books of the catalog ordered by when they were first added
+     *
+     * @return unmodifiable map from ID to book
+     */
+    public Map<Integer, Book> getEntries() {
+        return new EntryMap<>(entry -> entry.book);
+    }
+
+    /**
+     * Returns the internal slot of the book with the provided ID
+     *
+     * @param id the id of the book
+     * @return the slot or -1 if there was no book with that id
+     */
+    public int getSlot(int id) {
+        Item entry = byId.get(id);
+        return entry != null ? entry.slot : -1;
+    }
+
+    /**
+     * Returns the ID of the book in the slot
+     *
+     * @param slot the slot, between 0 and {@link #getSlotCount()}
+     * @return the ID or -1 if the slot is a hole left by a removed book
+     */
+    public int getIdAt(int slot) {
+        Item entry = slot < bySlot.size() ? bySlot.get(slot) : null;
+        return entry != null ? entry.id : -1;
+    }
+
+    /**
+     * Returns the search key of the book in the slot, saves looking the book up by ID when going through the slots
+     *
+     * @param slot the slot, between 0 and {@link #getSlotCount()}
+     * @return the search key or null if the slot is a hole left by a removed book
+     */
+    SearchKey getSearchKeyAt(int slot) {
+        Item entry = slot < bySlot.size() ? bySlot.get(slot) : null;
+        return entry != null ? entry.searchKey : null;
+    }
+
+    /**
+     * Returns the book in the slot, saves looking the book up by ID when going through the slots
+     *
+     * @param slot the slot, between 0 and {@link #getSlotCount()}
+     * @return the book or null if the slot is a hole left by a removed book
+     */
+    Book getBookAt(int slot) {
+        Item entry = slot < bySlot.size() ? bySlot.get(slot) : null;
+        return entry != null ? entry.book : null;
+    }
+
+    /**
+     * Returns the number of slots in use, live books and holes
+     *
+     * @return number of slots
+     */
+    public int getSlotCount() {
+        return bySlot.size();
+    }
+
+    /**
+     * Returns the number of slots left empty by removed books since the catalog was last compacted
+     *
+     * @return number of holes
+     */
+    public int getHoleCount() {
+        return bySlot.size() - byId.size();
+    }
+
+    Builder edit() {
+        return new Builder(this);
+    }
+
+    /**
+     * A book with its ID, search key and slot
+     */
+    private static final class Item {
+        private final int id;
+        private final Book book;
+        private final SearchKey searchKey;
+        private final int slot;
+
+        private Item(int id, Book book, SearchKey searchKey, int slot) {
+            this.id = id;
+            this.book = book;
+            this.searchKey = searchKey;
+            this.slot = slot;
+        }
+    }
+
+    /**
+     * Goes through the slots in order, skipping the holes
+     */
+    private final class SlotIterator<T> implements Iterator<T> {
+        private final Function<Item, T> mapper;
+        private int slot;
+        private Item next;
+
+        private SlotIterator(Function<Item, T> mapper) {
+            this.mapper = mapper;
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && slot < bySlot.size()) {
+                next = bySlot.get(slot++);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public T next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            T value = mapper.apply(next);
+            advance();
+            return value;
+        }
+    }
+
+    /**
+     * An unmodifiable map from ID to a value of the book, iterated in slot order
+     */
+    private final class EntryMap<V> extends AbstractMap<Integer, V> {
+        private final Function<Item, V> mapper;
+
+        private EntryMap(Function<Item, V> mapper) {
+            this.mapper = mapper;
+        }
+
+        @Override
+        public V get(Object key) {
+            Item entry = key instanceof Integer ? byId.get(key) : null;
+            return entry != null ? mapper.apply(entry) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof Integer && byId.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return byId.size();
+        }
+
+        @Override
+        public Set<Map.Entry<Integer, V>> entrySet() {
+            return new AbstractSet<Map.Entry<Integer, V>>() {
+                @Override
+                public Iterator<Map.Entry<Integer, V>> iterator() {
+                    return new SlotIterator<>(entry -> new SimpleImmutableEntry<>(entry.id, mapper.apply(entry)));
+                }
+
+                @Override
+                public int size() {
+                    return byId.size();
+                }
+            };
+        }
+    }
+
+    /**
+     * Collects changes to a catalog, the original catalog is left untouched
+     */
+    static final class Builder {
+        private final Catalog base;
+        private PersistentMap<Integer, Item> byId;
+        private PersistentMap<Book, Item> byBook;
+        private PersistentVector<Item> bySlot;
+
+        private Builder(Catalog base) {
+            this.base = base;
+            this.byId = base.byId;
+            this.byBook = base.byBook;
+            this.bySlot = base.bySlot;
+        }
+
+        Integer getBookID(Book book) {
+            Item entry = book != null ? byBook.get(book) : null;
+            return entry != null ? entry.id : null;
+        }
+
+        Book getBook(int id) {
+            Item entry = byId.get(id);
+            return entry != null ? entry.book : null;
+        }
+
+        int getSlot(int id) {
+            Item entry = byId.get(id);
+            return entry != null ? entry.slot : -1;
+        }
+
+        void put(int id, Book book, SearchKey searchKey) {
+            Item previous = byId.get(id);
+            Item entry;
+            if (previous != null) {
+                byBook = byBook.remove(previous.book);
+                entry = new Item(id, book, searchKey, previous.slot);
+                bySlot = bySlot.set(previous.slot, entry);
+            } else {
+                entry = new Item(id, book, searchKey, bySlot.size());
+                bySlot = bySlot.append(entry);
+            }
+            byId = byId.put(id, entry);
+            byBook = byBook.put(book, entry);
+        }
+
+        Book remove(int id) {
+            Item entry = byId.get(id);
+            if (entry == null) return null;
+            byId = byId.remove(id);
+            byBook = byBook.remove(entry.book);
+            bySlot = bySlot.set(entry.slot, null);
+            return entry.book;
+        }
+
+        /**
+         * Packs the live books into the lowest slots, keeping their order
+         */
+        void compact() {
+            int oldSlotCount = bySlot.size();
+            PersistentVector<Item> packed = PersistentVector.empty();
+            for (int slot = 0; slot < oldSlotCount; slot++) {
+                Item entry = bySlot.get(slot);
+                if (entry != null) {
+                    if (entry.slot != packed.size()) {
+                        entry = new Item(entry.id, entry.book, entry.searchKey, packed.size());
+                        byId = byId.put(entry.id, entry);
+                        byBook = byBook.put(entry.book, entry);
+                    }
+                    packed = packed.append(entry);
+                }
+            }
+            bySlot = packed;
+        }
+
+        boolean isChanged() {
+            return byId != base.byId || byBook != base.byBook || bySlot != base.bySlot;
+        }
+
+        /**
+         * @return the new version of the catalog or the original catalog if nothing changed
+         */
+        Catalog build() {
+            if (!isChanged()) return base;
+            return new Catalog(base.version + 1, byId, byBook, bySlot);
+        }
+    }
+}
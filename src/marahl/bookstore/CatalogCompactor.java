@@ -0,0 +1,75 @@
+package marahl.bookstore;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compacts the catalog of a {@link BookStore} in the background, so the internal slots of the books stay dense
+ * however many books are removed over time.
+ * <p>
+ * Every period the compactor checks the share of slots left empty by removed books and compacts the catalog with
+ * {@link BookStore#compact(double)} once it reaches the threshold. Compaction copies the catalog once, like adding a
+ * book, and readers keep using the catalog they have until the compacted one is published.
+ */
+public class CatalogCompactor implements Closeable {
+    /**
+     * Default share of slots that have to be holes before the catalog is compacted
+     */
+    public static final double DEFAULT_MIN_HOLE_RATIO = 0.25;
+
+    private final BookStore store;
+    private final long periodMillis;
+    private final double minHoleRatio;
+    private final AtomicLong compactions = new AtomicLong();
+    private final Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * Starts compacting the store's catalog
+     *
+     * @param store        the store to compact
+     * @param periodMillis milliseconds between checks
+     * @param minHoleRatio the share of slots that have to be holes
+     * @throws IllegalArgumentException if the period isn't positive
+     */
+    public CatalogCompactor(BookStore store, long periodMillis, double minHoleRatio) {
+        if (periodMillis <= 0) {
+            throw new IllegalArgumentException(String.format("The period has to be positive (%d)", periodMillis));
+        }
+        this.store = store;
+        this.periodMillis = periodMillis;
+        this.minHoleRatio = minHoleRatio;
+        this.thread = new Thread(this::run, "catalog-compactor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return the number of times the catalog has been compacted
+     */
+    public long getCompactionCount() {
+        return compactions.get();
+    }
+
+    /**
+     * Stops compacting
+     */
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                Thread.sleep(periodMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (store.compact(minHoleRatio)) {
+                compactions.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+
+/**
+ * A change to the stock of a {@link BookStore} published on its {@link ChangeFeed}.
+ * <p>
+ * Events are slots in the feed's ring buffer and are reused once every subscriber has passed them, so an event
+ * must not be kept after the handler returns. The fields are volatile so subscribers that may be overrun can
+ * detect that a slot was rewritten while they read it.
+ */
+public final class ChangeEvent {
+    /**
+     * A new book was added or the quantity of a book was increased
+     */
+    public static final int ADD = 0;
+    /**
+     * A book was removed from the store
+     */
+    public static final int REMOVE = 1;
+    /**
+     * The quantity of a book was reduced
+     */
+    public static final int REDUCE = 2;
+    /**
+     * A book was bought
+     */
+    public static final int SALE = 3;
+
+    volatile long sequence = -1;
+    private volatile int type;
+    private volatile int bookId;
+    private volatile Book book;
+    private volatile int quantityChange;
+    private volatile int quantity;
+
+    ChangeEvent() {
+    }
+
+    void set(int type, int bookId, Book book, int quantityChange, int quantity) {
+        this.type = type;
+        this.bookId = bookId;
+        this.book = book;
+        this.quantityChange = quantityChange;
+        this.quantity = quantity;
+    }
+
+    void copyFrom(ChangeEvent event) {
+        set(event.type, event.bookId, event.book, event.quantityChange, event.quantity);
+    }
+
+    /**
+     * @return the position of the event in the feed, starting at 0
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return one of {@link #ADD}, {@link #REMOVE}, {@link #REDUCE} or {@link #SALE}
+     */
+    public int getType() {
+        return type;
+    }
+
+    public int getBookId() {
+        return bookId;
+    }
+
+    public Book getBook() {
+        return book;
+    }
+
+    /**
+     * @return how much the quantity changed, the number of copies sold for {@link #SALE}
+     */
+    public int getQuantityChange() {
+        return quantityChange;
+    }
+
+    /**
+     * @return the quantity of the book after the change, for {@link #SALE} the quantity the checkout left of the stock
+     * it was checked against, as buying only records the sale and doesn't reduce the stock
+     */
+    public int getQuantity() {
+        return quantity;
+    }
+}
@@ -0,0 +1,293 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An in-process feed of the changes made to a {@link BookStore}.
+ * <p>
+ * The feed is a ring buffer of preallocated {@link ChangeEvent}s numbered by a sequence. A publisher claims the next
+ * sequence, fills in the slot and marks it as published, so publishing never allocates or locks. Every
+ * {@link Subscription} keeps its own sequence and consumes events in batches at its own pace. What happens when a
+ * subscriber falls a whole ring behind is decided by its {@link SlowConsumerPolicy}.
+ */
+public class ChangeFeed {
+    /**
+     * Default number of events in the ring buffer
+     */
+    public static final int DEFAULT_SIZE = 4096;
+
+    /**
+     * What the feed does when a subscriber is a whole ring buffer behind the publishers
+     */
+    public enum SlowConsumerPolicy {
+        /**
+         * Publishers wait until the subscriber has caught up, no events are lost
+         */
+        BLOCK,
+        /**
+         * Publishers overwrite the events, the subscriber skips ahead and counts the events it missed
+         */
+        DROP
+    }
+
+    /**
+     * Receives the events of a subscription
+     */
+    @FunctionalInterface
+    public interface Handler {
+        /**
+         * @param event      the event, only valid until the method returns
+         * @param endOfBatch true if this is the last event currently available
+         */
+        void onEvent(ChangeEvent event, boolean endOfBatch);
+    }
+
+    private final ChangeEvent[] ring;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong(-1);
+    private volatile Subscription[] blockingSubscriptions = new Subscription[0];
+
+    /**
+     * Creates a feed with the default size
+     */
+    public ChangeFeed() {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     * Creates a feed
+     *
+     * @param size number of events in the ring buffer, has to be a power of two
+     * @throws IllegalArgumentException if the size isn't a power of two
+     */
+    public ChangeFeed(int size) {
+        if (size < 1 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException(String.format("The size has to be a power of two (%d)", size));
+        }
+        ring = new ChangeEvent[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new ChangeEvent();
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Publishes an event, waiting for blocking subscribers that are a whole ring behind
+     *
+     * @param type           the type of change, one of the constants in {@link ChangeEvent}
+     * @param bookId         the id of the changed book
+     * @param book           the changed book
+     * @param quantityChange how much the quantity changed
+     * @param quantity       the quantity after the change
+     * @return the sequence of the event
+     */
+    public long publish(int type, int bookId, Book book, int quantityChange, int quantity) {
+        long sequence = claim();
+        publish(sequence, type, bookId, book, quantityChange, quantity);
+        return sequence;
+    }
+
+    /**
+     * Claims the next sequence, the event has to be published with {@link #tryPublish} or {@link #publish(long, int,
+     * int, Book, int, int)}. Subscribers stop at a claimed event until it is published, so claiming under a lock
+     * keeps the events in the order of the changes while the event can be published after the lock is released.
+     *
+     * @return the claimed sequence
+     */
+    long claim() {
+        return claimed.incrementAndGet();
+    }
+
+    /**
+     * Publishes the event of a claimed sequence if no blocking subscriber is a whole ring behind it, without waiting
+     *
+     * @return <tt>true</tt> if the event was published
+     */
+    boolean tryPublish(long sequence, int type, int bookId, Book book, int quantityChange, int quantity) {
+        if (!hasRoom(sequence)) {
+            return false;
+        }
+        write(sequence, type, bookId, book, quantityChange, quantity);
+        return true;
+    }
+
+    /**
+     * Publishes the event of a claimed sequence, waiting for blocking subscribers that are a whole ring behind
+     */
+    void publish(long sequence, int type, int bookId, Book book, int quantityChange, int quantity) {
+        while (!hasRoom(sequence)) {
+            LockSupport.parkNanos(1000);
+        }
+        write(sequence, type, bookId, book, quantityChange, quantity);
+    }
+
+    private boolean hasRoom(long sequence) {
+        long wrapPoint = sequence - ring.length;
+        return wrapPoint < 0 || getMinimumSequence(blockingSubscriptions) >= wrapPoint;
+    }
+
+    private void write(long sequence, int type, int bookId, Book book, int quantityChange, int quantity) {
+        ChangeEvent event = ring[(int) sequence & mask];
+        event.sequence = -1;
+        event.set(type, bookId, book, quantityChange, quantity);
+        event.sequence = sequence;
+    }
+
+    /**
+     * Returns the sequence of the last claimed event, it may still be in the process of being published
+     *
+     * @return the last claimed sequence or -1 if nothing has been published
+     */
+    public long getCursor() {
+        return claimed.get();
+    }
+
+    /**
+     * Subscribes to all events published from now on
+     *
+     * @param policy what to do if the subscriber falls a whole ring behind
+     * @return the subscription
+     */
+    public Subscription subscribe(SlowConsumerPolicy policy) {
+        Subscription subscription = new Subscription(policy);
+        if (policy == SlowConsumerPolicy.BLOCK) {
+            synchronized (this) {
+                Subscription[] subscriptions = Arrays.copyOf(blockingSubscriptions, blockingSubscriptions.length + 1);
+                subscriptions[subscriptions.length - 1] = subscription;
+                subscription.sequence = claimed.get();
+                blockingSubscriptions = subscriptions;
+            }
+        } else {
+            subscription.sequence = claimed.get();
+        }
+        return subscription;
+    }
+
+    private synchronized void unsubscribe(Subscription subscription) {
+        Subscription[] subscriptions = blockingSubscriptions;
+        for (int i = 0; i < subscriptions.length; i++) {
+            if (subscriptions[i] == subscription) {
+                Subscription[] remaining = new Subscription[subscriptions.length - 1];
+                System.arraycopy(subscriptions, 0, remaining, 0, i);
+                System.arraycopy(subscriptions, i + 1, remaining, i, remaining.length - i);
+                blockingSubscriptions = remaining;
+                return;
+            }
+        }
+    }
+
+    private static long getMinimumSequence(Subscription[] subscriptions) {
+        long minimum = Long.MAX_VALUE;
+        for (Subscription subscription : subscriptions) {
+            minimum = Math.min(minimum, subscription.sequence);
+        }
+        return minimum;
+    }
+
+    /**
+     * A subscriber's position in the feed. A subscription is meant to be polled by one thread at a time.
+     */
+    public final class Subscription implements AutoCloseable {
+        private final SlowConsumerPolicy policy;
+        private final ChangeEvent copy = new ChangeEvent();
+        private volatile long sequence;
+        private long dropped;
+
+        private Subscription(SlowConsumerPolicy policy) {
+            this.policy = policy;
+        }
+
+        /**
+         * Hands the published events that haven't been consumed yet to the handler, at most maxBatch of them
+         *
+         * @param handler  receives the events in order
+         * @param maxBatch maximum number of events to handle
+         * @return the number of events handled
+         */
+        public int poll(Handler handler, int maxBatch) {
+            long next = sequence + 1;
+            int handled = 0;
+            while (handled < maxBatch) {
+                long available = getAvailable(next, maxBatch - handled);
+                if (available < next) {
+                    if (policy == SlowConsumerPolicy.DROP && ring[(int) next & mask].sequence > next) {
+                        next = skipOverrun(next);
+                        continue;
+                    }
+                    break;
+                }
+                for (; next <= available; next++) {
+                    ChangeEvent event = ring[(int) next & mask];
+                    if (policy == SlowConsumerPolicy.DROP) {
+                        // the slot may be rewritten while it's copied, only a copy that is still current is handed out
+                        copy.copyFrom(event);
+                        if (event.sequence != next) {
+                            break;
+                        }
+                        copy.sequence = next;
+                        event = copy;
+                    }
+                    handler.onEvent(event, next == available);
+                    handled++;
+                }
+            }
+            sequence = next - 1;
+            return handled;
+        }
+
+        /**
+         * Returns how many events were lost because the subscriber was a whole ring behind,
+         * always 0 for {@link SlowConsumerPolicy#BLOCK}
+         *
+         * @return number of dropped events
+         */
+        public long getDroppedCount() {
+            return dropped;
+        }
+
+        /**
+         * @return the sequence of the last consumed event
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return the number of published events that haven't been consumed yet
+         */
+        public long getLag() {
+            return Math.max(claimed.get() - sequence, 0);
+        }
+
+        /**
+         * Stops the subscription, blocking publishers no longer wait for it
+         */
+        @Override
+        public void close() {
+            unsubscribe(this);
+        }
+
+        /**
+         * Returns the last sequence of the published events that can be consumed in one batch starting at next,
+         * publishers may finish out of order so the batch ends at the first event that isn't published yet
+         */
+        private long getAvailable(long next, int maxBatch) {
+            long last = Math.min(claimed.get(), next + maxBatch - 1);
+            long available = next - 1;
+            while (available < last && ring[(int) (available + 1) & mask].sequence == available + 1) {
+                available++;
+            }
+            return available;
+        }
+
+        private long skipOverrun(long next) {
+            long oldest = Math.max(claimed.get() - ring.length + 1, next + 1);
+            dropped += oldest - next;
+            return oldest;
+        }
+    }
+}
@@ -6,7 +6,10 @@ import marahl.bookstore.books.BookParser;
 import java.math.BigDecimal;
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CountDownLatch;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 public class ConsoleBookStore {
 
@@ -18,17 +21,30 @@ public class ConsoleBookStore {
     private final String FIND = "find";
     private final String LIST = "list";
     private final String BUY = "buy";
+    private final String TOP = "top";
+    private final String LOW_STOCK = "lowstock";
     private final String EXIT = "exit";
     private final String HELP = "help";
+    private final int DEFAULT_REPORT_SIZE = 10;
+    private final int LOAD_CHUNK_LINES = 10000;
+    private final int LOAD_PROGRESS_STEP = 25;
     private final LinkedHashMap<String, String> commandHelpMessages = new LinkedHashMap<>();
     private final LinkedHashMap<String, Consumer<String[]>> commands = new LinkedHashMap<>();
     private Consumer<String[]> helpCommand;
 
-    private BookCart shoppingCart = new BookCart();
-    private BookStore store = new BookStore();
-    private LinkedList<String> messages = new LinkedList<>();
+    private final BookCart shoppingCart;
+    private final BookStore store;
+    private final Deque<String> messages = new ConcurrentLinkedDeque<>();
+    private volatile CountDownLatch stockLoading = new CountDownLatch(0);
+    private volatile int stockLoadingProgress = 100;
 
     public ConsoleBookStore() {
+        this(new BookStore());
+    }
+
+    public ConsoleBookStore(BookStore store) {
+        this.store = store;
+        this.shoppingCart = new BookCart(store);
         initCommands();
     }
 
@@ -39,8 +55,11 @@ public class ConsoleBookStore {
         commandHelpMessages.put(REMOVE_STOCK, "[id] Remove a book from the store's stock");
         commandHelpMessages.put(LIST, "[(searchstring)] List all books with that title or by that author\n" +
                 "\t\t\tLists everything if no searchstring is specified");
+        commandHelpMessages.put(FIND, "[searchstring;(maxtypos)] Find books with titles or authors close to the searchstring");
         commandHelpMessages.put(CART, "Lists all books currently in your shopping cart");
         commandHelpMessages.put(BUY, "Buy contents of your shopping chart");
+        commandHelpMessages.put(TOP, "[(count)] List the best selling books");
+        commandHelpMessages.put(LOW_STOCK, "[(count)] List the books that are about to run out");
         commandHelpMessages.put(EXIT, "Exit program");
         commandHelpMessages.put(HELP, "List all available commands");
 
@@ -48,34 +67,135 @@ public class ConsoleBookStore {
         commands.put(ADD_CART, this::commandAddToCart);
         commands.put(REMOVE_CART, this::commandRemoveFromCart);
         commands.put(ADD_STOCK, this::commandAddToStock);
-        commands.put(REMOVE_STOCK, this::commandRemoveFromStock);
+        commands.put(REMOVE_STOCK, afterStockLoaded(this::commandRemoveFromStock));
         commands.put(LIST, this::commandList);
+        commands.put(FIND, this::commandFind);
         commands.put(CART, this::commandCart);
-        commands.put(BUY, this::commandBuy);
+        commands.put(BUY, afterStockLoaded(this::commandBuy));
+        commands.put(TOP, afterStockLoaded(this::commandTopSellers));
+        commands.put(LOW_STOCK, afterStockLoaded(this::commandLowStock));
         commands.put(EXIT, (args) -> System.exit(0));
         commands.put(HELP, helpCommand);
 
     }
 
+    /**
+     * Adds the books of a stock string in the {@link BookParser} format. Lines that can't be parsed are skipped and
+     * reported with their line number, every other line is added.
+     *
+     * @param stockString the stock, one book per line
+     */
     public void addStock(String stockString) {
-        try {
-            store.addBatch(BookParser.parseBooks(stockString));
-        } catch (ParseException e) {
-            System.err.println(e.getMessage());
+        addLines(Arrays.asList(stockString.split("\n")), 1);
+    }
+
+    /**
+     * Adds lines of a stock string, skipping the lines that can't be parsed
+     *
+     * @param lines           the lines to add
+     * @param firstLineNumber the line number of the first line in the whole stock, for reporting errors
+     */
+    private void addLines(List<String> lines, int firstLineNumber) {
+        StoreEvents events = store.getEvents();
+        int from = 0;
+        int to = lines.size();
+        while (from < lines.size()) {
+            try {
+                String stockString = String.join("\n", lines.subList(from, to));
+                long start = events.begin();
+                Map.Entry<Book, Integer>[] books = BookParser.parseBooks(stockString);
+                events.end(StoreEvents.Type.INGEST, "parseBooks", start, stockString.length(), books.length);
+                store.addBatch(books);
+                // continue after the line that couldn't be parsed, if any
+                from = to + 1;
+                to = lines.size();
+            } catch (ParseException e) {
+                // the lines before the bad one are added on the next try
+                to = from + e.getErrorOffset() - 1;
+                messages.add(String.format("Skipped line %d of the stock: %s", firstLineNumber + to, e.getMessage()));
+            }
         }
     }
 
+    /**
+     * Loads the stock on a background thread so that the prompt can be shown right away. The stock is added in
+     * chunks and the progress is reported as it goes. Searches show the books loaded so far, commands that need the
+     * whole stock such as buying wait until it has been loaded. Lines that can't be parsed are skipped and reported
+     * like in {@link #addStock(String)}.
+     *
+     * @param stockSource supplies the stock in the format of {@link #addStock(String)}, called on the background thread
+     */
+    public void addStockInBackground(Supplier<String> stockSource) {
+        CountDownLatch loading = new CountDownLatch(1);
+        stockLoading = loading;
+        stockLoadingProgress = 0;
+        Thread loader = new Thread(() -> {
+            long start = System.nanoTime();
+            try {
+                List<String> lines = Arrays.asList(stockSource.get().split("\n"));
+                int reportedProgress = 0;
+                for (int from = 0; from < lines.size(); from += LOAD_CHUNK_LINES) {
+                    int to = Math.min(from + LOAD_CHUNK_LINES, lines.size());
+                    addLines(lines.subList(from, to), from + 1);
+                    stockLoadingProgress = (int) (100L * to / lines.size());
+                    if (stockLoadingProgress >= reportedProgress + LOAD_PROGRESS_STEP && to < lines.size()) {
+                        reportedProgress = stockLoadingProgress;
+                        messages.add(String.format("Loading stock... %d%%", stockLoadingProgress));
+                    }
+                }
+                messages.add(String.format("Loaded %d books in %d ms", store.getCatalog().size(),
+                        (System.nanoTime() - start) / 1000000));
+            } finally {
+                stockLoadingProgress = 100;
+                loading.countDown();
+            }
+        }, "stock-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * @return <tt>true</tt> if stock is still being loaded in the background
+     */
+    public boolean isLoadingStock() {
+        return stockLoading.getCount() > 0;
+    }
+
+    /**
+     * Waits until the stock being loaded in the background has been loaded
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitStock() throws InterruptedException {
+        stockLoading.await();
+    }
+
+    private Consumer<String[]> afterStockLoaded(Consumer<String[]> command) {
+        return (args) -> {
+            if (isLoadingStock()) {
+                System.out.println("Waiting for the stock to finish loading...");
+                try {
+                    awaitStock();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            command.accept(args);
+        };
+    }
+
 
     public void start() {
         Scanner sc = new Scanner(System.in);
         System.out.println("Hello and welcome to our store!");
         System.out.println("To list available commands, type help");
         while (true) {
-            System.out.print(">>");
-            executeCommand(sc.nextLine());
             while (!messages.isEmpty()) {
                 System.out.println(messages.pop());
             }
+            System.out.print(">>");
+            executeCommand(sc.nextLine());
         }
     }
 
@@ -107,7 +227,7 @@ public class ConsoleBookStore {
             if (b) {
                 messages.add(String.format("Successfully added %dx %s by %s to cart!", quantity, book.getTitle(), book.getAuthor()));
             } else {
-                messages.add(String.format("Failed to add %dx %s by %s to cart!", quantity, book.getTitle(), book.getAuthor()));
+                messages.add(String.format("Failed to add %dx %s by %s to cart! Only %d available", quantity, book.getTitle(), book.getAuthor(), store.getAvailableQuantity(bookId)));
             }
         } else {
             messages.add("Too few arguments! Need at least a book title.");
@@ -177,15 +297,44 @@ public class ConsoleBookStore {
         if (hasArgument(args, 0)) {
             searchString = args[0];
         }
-        Book[] list = store.list(searchString);
-        if (list.length > 0) {
+        List<String> rows = new ArrayList<>();
+        store.visit(searchString, (id, book, quantity) ->
+                rows.add(getStockBookString(id, book, quantity, store.getAvailableQuantity(id))));
+        printStock(rows);
+    }
+
+    private void printStock(Book[] list) {
+        List<String> rows = new ArrayList<>(list.length);
+        for (Book book : list) {
+            rows.add(getStockBookString(store.getBookID(book), book, store.getQuantity(book), store.getAvailableQuantity(book)));
+        }
+        printStock(rows);
+    }
+
+    private void printStock(List<String> rows) {
+        if (!rows.isEmpty()) {
             messages.add(getStockHeaderString());
-            for (Book book : list) {
-                messages.add(getStockBookString(book, store.getQuantity(book)));
-            }
+            messages.addAll(rows);
         } else {
             messages.add("Couldn't find anything");
         }
+        if (isLoadingStock()) {
+            messages.add(String.format("The stock is still loading (%d%%), more books may show up", stockLoadingProgress));
+        }
+    }
+
+    private void commandFind(String... args) {
+        if (!hasArgument(args, 0)) {
+            messages.add("Too few arguments! Need a searchstring.");
+            return;
+        }
+        int maxDistance = FuzzyIndex.AUTOMATIC_DISTANCE;
+        if (hasArgument(args, 1)) {
+            Integer distance = getPositiveIntegerArgument(args, 1);
+            if (distance == null) return;
+            maxDistance = distance;
+        }
+        printStock(store.fuzzyList(args[0], maxDistance));
     }
 
     private void commandCart(String... args) {
@@ -204,8 +353,8 @@ public class ConsoleBookStore {
 
     private void commandBuy(String... args) {
         Book[] books = shoppingCart.getCartContent();
-        int[] bookStatus = store.buy(books);
-        BigDecimal totalPrice = store.getPrice(books, bookStatus);
+        int[] bookStatus = store.buy(shoppingCart);
+        BigDecimal totalPrice = shoppingCart.getTotal(store);
         for (int i = 0; i < bookStatus.length; i++) {
             int status = bookStatus[i];
             Book book = books[i];
@@ -229,12 +378,49 @@ public class ConsoleBookStore {
         messages.add(String.format("%48s%16.2f", "TOTAL", totalPrice));
     }
 
+    private void commandTopSellers(String... args) {
+        Integer count = getReportSizeArgument(args);
+        if (count == null) return;
+        Map.Entry<Book, Double>[] topSellers = store.getTopSellers(count);
+        if (topSellers.length == 0) {
+            messages.add("Nothing has been sold yet");
+            return;
+        }
+        messages.add(String.format("%8s%s%8s", "ID", getHeaderString(), "Sales"));
+        for (Map.Entry<Book, Double> topSeller : topSellers) {
+            Book book = topSeller.getKey();
+            messages.add(String.format("%8d%s%8.1f", store.getBookID(book), getBookString(book), topSeller.getValue()));
+        }
+    }
+
+    private void commandLowStock(String... args) {
+        Integer count = getReportSizeArgument(args);
+        if (count == null) return;
+        Map.Entry<Book, Integer>[] lowStock = store.getLowStock(count);
+        if (lowStock.length == 0) {
+            messages.add("No books are about to run out");
+            return;
+        }
+        messages.add(getStockHeaderString());
+        for (Map.Entry<Book, Integer> entry : lowStock) {
+            Book book = entry.getKey();
+            messages.add(getStockBookString(store.getBookID(book), book, entry.getValue(), store.getAvailableQuantity(book)));
+        }
+    }
+
+    private Integer getReportSizeArgument(String[] args) {
+        if (hasArgument(args, 0)) {
+            return getPositiveIntegerArgument(args, 0);
+        }
+        return DEFAULT_REPORT_SIZE;
+    }
+
     private static String getCartHeaderString() {
         return String.format("%8s%s", "Index", getHeaderString());
     }
 
     private static String getStockHeaderString() {
-        return String.format("%8s%s%8s", "ID", getHeaderString(), "Qty");
+        return String.format("%8s%s%8s%8s", "ID", getHeaderString(), "Qty", "Avail");
     }
 
     private static String getHeaderString() {
@@ -248,8 +434,8 @@ public class ConsoleBookStore {
         return String.format("%8d%s", cartIndex, getBookString(book));
     }
 
-    private String getStockBookString(Book book, int quantity) {
-        return String.format("%8d%s%8d", store.getBookID(book), getBookString(book), quantity);
+    private String getStockBookString(int id, Book book, int quantity, int available) {
+        return String.format("%8d%s%8d%8d", id, getBookString(book), quantity, available);
     }
 
     private String getBookString(Book book) {
@@ -0,0 +1,228 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+import marahl.bookstore.books.SearchKey;
+
+import java.util.*;
+
+/**
+ * An index of the words in the titles and authors of books for typo tolerant searches.
+ * <p>
+ * Every distinct word is stored once in a BK-tree, a tree where each child is keyed by its edit distance to the
+ * parent. A search for the words within distance k of a query word only has to visit the children whose key is
+ * within k of the distance between the query and their parent, which skips most of the tree for small k.
+ * Each word maps to the IDs of the books it appears in. Words that no longer appear in any book are left in the
+ * tree until they outnumber the live words, then the tree is rebuilt.
+ */
+public class FuzzyIndex {
+    /**
+     * Maximum distance that depends on the length of each query word: exact matches for up to 3 characters,
+     * one typo for up to 6 characters and two typos for longer words
+     */
+    public static final int AUTOMATIC_DISTANCE = -1;
+
+    private final Map<String, Set<Integer>> postings = new HashMap<>();
+    private Node root;
+    private int deadWords;
+
+    /**
+     * Adds the words of a book's title and author to the index
+     *
+     * @param id   the id of the book
+     * @param book the book
+     */
+    public synchronized void add(int id, Book book) {
+        for (String word : getWords(book)) {
+            Set<Integer> ids = postings.get(word);
+            if (ids == null) {
+                ids = new HashSet<>();
+                postings.put(word, ids);
+                if (!insert(word)) {
+                    deadWords--;
+                }
+            }
+            ids.add(id);
+        }
+    }
+
+    /**
+     * Removes a book from the index
+     *
+     * @param id   the id of the book
+     * @param book the book
+     */
+    public synchronized void remove(int id, Book book) {
+        for (String word : getWords(book)) {
+            Set<Integer> ids = postings.get(word);
+            if (ids != null && ids.remove(id) && ids.isEmpty()) {
+                postings.remove(word);
+                deadWords++;
+            }
+        }
+        if (deadWords > postings.size()) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Finds the books where every word of the query is within the maximum edit distance of a word in the book's
+     * title or author. The books are ranked by the sum of the distances of the query words, closest first.
+     *
+     * @param query       the words to search for
+     * @param maxDistance the maximum number of inserted, removed or replaced characters per word
+     *                    or {@link #AUTOMATIC_DISTANCE}
+     * @return ids of the matching books, closest match first
+     */
+    public synchronized int[] search(String query, int maxDistance) {
+        List<String> queryWords = getWords(query);
+        if (queryWords.isEmpty() || root == null) {
+            return new int[0];
+        }
+        Map<Integer, int[]> distances = new HashMap<>();
+        for (int i = 0; i < queryWords.size(); i++) {
+            String queryWord = queryWords.get(i);
+            Map<String, Integer> words = new HashMap<>();
+            find(root, queryWord, maxDistance == AUTOMATIC_DISTANCE ? getAutomaticDistance(queryWord) : maxDistance, words);
+            for (Map.Entry<String, Integer> word : words.entrySet()) {
+                Set<Integer> ids = postings.get(word.getKey());
+                if (ids == null) continue;
+                for (Integer id : ids) {
+                    int[] bookDistances = distances.get(id);
+                    if (bookDistances == null) {
+                        bookDistances = new int[queryWords.size()];
+                        Arrays.fill(bookDistances, Integer.MAX_VALUE);
+                        distances.put(id, bookDistances);
+                    }
+                    bookDistances[i] = Math.min(bookDistances[i], word.getValue());
+                }
+            }
+        }
+        List<long[]> matches = new ArrayList<>();
+        for (Map.Entry<Integer, int[]> entry : distances.entrySet()) {
+            long total = 0;
+            for (int distance : entry.getValue()) {
+                total += distance;
+            }
+            if (total < Integer.MAX_VALUE) {
+                matches.add(new long[]{total, entry.getKey()});
+            }
+        }
+        matches.sort((a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        int[] ids = new int[matches.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = (int) matches.get(i)[1];
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the edit distance between two strings, or maxDistance + 1 if it is greater than maxDistance
+     *
+     * @param a           the first string
+     * @param b           the second string
+     * @param maxDistance the distance above which the exact distance isn't needed
+     * @return the number of inserted, removed or replaced characters needed to turn a into b
+     */
+    static int distance(String a, String b, int maxDistance) {
+        if (Math.abs(a.length() - b.length()) > maxDistance) {
+            return maxDistance + 1;
+        }
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            int rowMinimum = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+                rowMinimum = Math.min(rowMinimum, current[j]);
+            }
+            if (rowMinimum > maxDistance) {
+                return maxDistance + 1;
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return Math.min(previous[b.length()], maxDistance + 1);
+    }
+
+    private static int getAutomaticDistance(String word) {
+        int length = word.codePointCount(0, word.length());
+        return length <= 3 ? 0 : length <= 6 ? 1 : 2;
+    }
+
+    static List<String> getWords(Book book) {
+        List<String> words = getWords(book.getTitle());
+        words.addAll(getWords(book.getAuthor()));
+        return words;
+    }
+
+    static List<String> getWords(String text) {
+        List<String> words = new ArrayList<>();
+        for (String word : SearchKey.fold(text, false).split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+
+    /**
+     * @return true if the word was added, false if it was already in the tree
+     */
+    private boolean insert(String word) {
+        if (root == null) {
+            root = new Node(word);
+            return true;
+        }
+        Node node = root;
+        while (true) {
+            int distance = distance(word, node.word, Integer.MAX_VALUE - 1);
+            if (distance == 0) return false;
+            Node child = node.children.get(distance);
+            if (child == null) {
+                node.children.put(distance, new Node(word));
+                return true;
+            }
+            node = child;
+        }
+    }
+
+    private void find(Node node, String word, int maxDistance, Map<String, Integer> found) {
+        Deque<Node> nodes = new ArrayDeque<>();
+        nodes.push(node);
+        while (!nodes.isEmpty()) {
+            Node current = nodes.pop();
+            int distance = distance(word, current.word, Integer.MAX_VALUE - 1);
+            if (distance <= maxDistance && postings.containsKey(current.word)) {
+                found.put(current.word, distance);
+            }
+            for (Map.Entry<Integer, Node> child : current.children.entrySet()) {
+                if (Math.abs(child.getKey() - distance) <= maxDistance) {
+                    nodes.push(child.getValue());
+                }
+            }
+        }
+    }
+
+    private void rebuild() {
+        root = null;
+        deadWords = 0;
+        for (String word : postings.keySet()) {
+            insert(word);
+        }
+    }
+
+    private static final class Node {
+        private final String word;
+        private final Map<Integer, Node> children = new HashMap<>(4);
+
+        private Node(String word) {
+            this.word = word;
+        }
+    }
+}
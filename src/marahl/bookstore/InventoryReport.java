@@ -0,0 +1,164 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * The value of the stock of a {@link BookStore}, in total and grouped by author and by price band.
+ * <p>
+ * The report is computed from a {@link StockSnapshot} in a single parallel pass over the snapshot's indexes. Prices
+ * are converted to whole cents (rounded half up) and counts and values are summed in longs instead of
+ * {@link BigDecimal}s, each thread sums into its own accumulators which are merged at the end.
+ * The value of a book is its price times its quantity.
+ */
+public final class InventoryReport {
+    private static final int BOOKS = 0;
+    private static final int COPIES = 1;
+    private static final int VALUE = 2;
+
+    private final long sequence;
+    private final Group total;
+    private final Map<String, Group> byAuthor;
+    private final SortedMap<BigDecimal, Group> byPriceBand;
+
+    private InventoryReport(long sequence, Group total, Map<String, Group> byAuthor,
+                            SortedMap<BigDecimal, Group> byPriceBand) {
+        this.sequence = sequence;
+        this.total = total;
+        this.byAuthor = Collections.unmodifiableMap(byAuthor);
+        this.byPriceBand = Collections.unmodifiableSortedMap(byPriceBand);
+    }
+
+    /**
+     * Computes the report of a snapshot
+     *
+     * @param snapshot       the books and quantities to report on
+     * @param priceBandWidth the width of the price bands, ex. 100 groups books priced 0-99.99, 100-199.99...
+     * @return the report
+     * @throws IllegalArgumentException if the width of the price bands is less than a cent
+     * @throws ArithmeticException      if a value doesn't fit in a long number of cents
+     */
+    public static InventoryReport of(StockSnapshot snapshot, BigDecimal priceBandWidth) {
+        long bandCents = toCents(priceBandWidth);
+        if (bandCents <= 0) {
+            throw new IllegalArgumentException(String.format("The price band width has to be at least a cent (%s)", priceBandWidth));
+        }
+        Accumulator accumulator = IntStream.range(0, snapshot.size()).parallel().collect(Accumulator::new,
+                (sum, i) -> sum.add(snapshot.getBookAt(i), snapshot.getQuantityAt(i), bandCents),
+                Accumulator::merge);
+
+        Map<String, Group> byAuthor = new TreeMap<>();
+        for (Map.Entry<String, long[]> author : accumulator.byAuthor.entrySet()) {
+            byAuthor.put(author.getKey(), new Group(author.getValue()));
+        }
+        SortedMap<BigDecimal, Group> byPriceBand = new TreeMap<>();
+        for (Map.Entry<Long, long[]> band : accumulator.byPriceBand.entrySet()) {
+            byPriceBand.put(BigDecimal.valueOf(band.getKey() * bandCents, 2), new Group(band.getValue()));
+        }
+        return new InventoryReport(snapshot.getSequence(), new Group(accumulator.total), byAuthor, byPriceBand);
+    }
+
+    /**
+     * @return the sequence of the change feed the report is up to date with
+     * @see StockSnapshot#getSequence()
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the number of books, copies and value of the whole stock
+     */
+    public Group getTotal() {
+        return total;
+    }
+
+    /**
+     * @return the stock grouped by author, ordered by author
+     */
+    public Map<String, Group> getByAuthor() {
+        return byAuthor;
+    }
+
+    /**
+     * @return the stock grouped by price band, the key is the lowest price in the band
+     */
+    public SortedMap<BigDecimal, Group> getByPriceBand() {
+        return byPriceBand;
+    }
+
+    static long toCents(BigDecimal price) {
+        return price.movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValueExact();
+    }
+
+    /**
+     * The number of books, copies and value of a part of the stock
+     */
+    public static final class Group {
+        private final long bookCount;
+        private final long copyCount;
+        private final long valueCents;
+
+        private Group(long[] sums) {
+            this.bookCount = sums[BOOKS];
+            this.copyCount = sums[COPIES];
+            this.valueCents = sums[VALUE];
+        }
+
+        /**
+         * @return the number of different books
+         */
+        public long getBookCount() {
+            return bookCount;
+        }
+
+        /**
+         * @return the total quantity of the books
+         */
+        public long getCopyCount() {
+            return copyCount;
+        }
+
+        /**
+         * @return the total value of the books
+         */
+        public BigDecimal getValue() {
+            return BigDecimal.valueOf(valueCents, 2);
+        }
+    }
+
+    /**
+     * The sums of one thread, each sum is a long[] of book count, copy count and value in cents
+     */
+    private static final class Accumulator {
+        private final long[] total = new long[3];
+        private final Map<String, long[]> byAuthor = new HashMap<>();
+        private final Map<Long, long[]> byPriceBand = new HashMap<>();
+
+        private void add(Book book, int quantity, long bandCents) {
+            long cents = toCents(book.getPrice());
+            long value = Math.multiplyExact(cents, quantity);
+            add(total, 1, quantity, value);
+            add(byAuthor.computeIfAbsent(book.getAuthor(), author -> new long[3]), 1, quantity, value);
+            add(byPriceBand.computeIfAbsent(Math.floorDiv(cents, bandCents), band -> new long[3]), 1, quantity, value);
+        }
+
+        private void merge(Accumulator other) {
+            add(total, other.total[BOOKS], other.total[COPIES], other.total[VALUE]);
+            other.byAuthor.forEach((author, sums) -> add(byAuthor.computeIfAbsent(author, key -> new long[3]),
+                    sums[BOOKS], sums[COPIES], sums[VALUE]));
+            other.byPriceBand.forEach((band, sums) -> add(byPriceBand.computeIfAbsent(band, key -> new long[3]),
+                    sums[BOOKS], sums[COPIES], sums[VALUE]));
+        }
+
+        private static void add(long[] sums, long books, long copies, long value) {
+            sums[BOOKS] += books;
+            sums[COPIES] += copies;
+            sums[VALUE] = Math.addExact(sums[VALUE], value);
+        }
+    }
+}
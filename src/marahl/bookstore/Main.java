@@ -6,7 +6,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Scanner;
 
@@ -19,7 +23,9 @@ public class Main {
             "Random Sales;Cunning Bastard;999.00;20\n" +
             "Random Sales;Cunning Bastard;499.50;3\n" +
             "Desired;Rich Bloke;564.50;0";
-    private static final ConsoleBookStore consoleBookStore = new ConsoleBookStore();
+    private static final String WATCH = "--watch";
+    private static final String PRIMARY = "--primary";
+    private static final String FAST_START = "--fast";
 
     public static void main(String[] args) {
         String argument;
@@ -28,12 +34,42 @@ public class Main {
         } else {
             argument = DEFAULT_BOOKS;
         }
+        List<String> options = args.length > 1 ? Arrays.asList(args).subList(1, args.length) : Collections.emptyList();
+        BookStore store = new BookStore();
+        ConsoleBookStore consoleBookStore = new ConsoleBookStore(store);
+        int primaryIndex = options.indexOf(PRIMARY);
+        if (primaryIndex >= 0 && primaryIndex + 1 < options.size()) {
+            try {
+                BookStorePrimary primary = new BookStorePrimary(store, Integer.parseInt(options.get(primaryIndex + 1)),
+                        e -> System.err.println(e.getMessage()));
+                System.out.println("Replicating to port " + primary.getPort());
+            } catch (IOException | NumberFormatException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+        if (options.contains(WATCH)) {
+            try {
+                new StockFileWatcher(Paths.get(argument), store, e -> System.err.println(e.getMessage())).start();
+            } catch (IOException | ParseException e) {
+                System.err.println(e.getMessage());
+            }
+            consoleBookStore.start();
+            return;
+        }
+        if (options.contains(FAST_START)) {
+            consoleBookStore.addStockInBackground(() -> getStockString(argument));
+        } else {
+            consoleBookStore.addStock(getStockString(argument));
+        }
+        consoleBookStore.start();
+    }
+
+    private static String getStockString(String argument) {
         String bookString;
         if ((bookString = getStringFromURL(argument)).isEmpty()) {
             bookString = getStringFromFile(argument);
         }
-        consoleBookStore.addStock(bookString);
-        consoleBookStore.start();
+        return bookString;
     }
 
 
@@ -0,0 +1,430 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+import marahl.bookstore.books.BookList;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A book store for very large catalogs that keeps its books outside of the Java heap.
+ * <p>
+ * Titles and authors are stored as length-prefixed UTF-8 in an arena of direct buffers, and every other value is
+ * stored in a fixed-width column of direct buffers indexed by book ID: the arena addresses of the title and author,
+ * the unscaled price and its scale, the quantity, a hash of the book and a removed flag. Books are found through an
+ * open addressing hash table, also in a direct buffer. No objects are kept per book, so the heap size and the time
+ * spent in garbage collection don't grow with the catalog. {@link Book} objects are only created when a book is
+ * returned.
+ * <p>
+ * Unlike {@link BookStore} books are matched by value: two books with the same title, author and price are the
+ * same book. Prices are kept as an unscaled long, so they can have at most 18 digits.
+ */
+public class OffHeapBookStore implements BookList {
+    private static final int PAGE_SIZE = 1 << 24;
+    private static final int INITIAL_ROWS = 1024;
+    private static final int EMPTY = 0;
+    private static final int REMOVED = -1;
+    private static final byte FLAG_REMOVED = 1;
+
+    private final List<ByteBuffer> pages = new ArrayList<>();
+    private ByteBuffer titles = allocate(INITIAL_ROWS * 8);
+    private ByteBuffer authors = allocate(INITIAL_ROWS * 8);
+    private ByteBuffer prices = allocate(INITIAL_ROWS * 8);
+    private ByteBuffer scales = allocate(INITIAL_ROWS);
+    private ByteBuffer quantities = allocate(INITIAL_ROWS * 4);
+    private ByteBuffer hashes = allocate(INITIAL_ROWS * 4);
+    private ByteBuffer flags = allocate(INITIAL_ROWS);
+    private ByteBuffer index = allocate(INITIAL_ROWS * 2 * 4);
+    private int capacity = INITIAL_ROWS;
+    private int indexSlots = INITIAL_ROWS * 2;
+    private int usedSlots;
+    private int rowCount;
+    private int size;
+
+    /**
+     * Matches the search string against the beginning of each book's title and author and returns
+     * an array of each book with a match in either. The titles and authors are compared in place,
+     * a book is only created for the matches.
+     *
+     * @param searchString String to search from among books in stock. Not case sensitive.
+     * @return Array of books matching the search string ordered by ID.
+     */
+    @Override
+    public synchronized Book[] list(String searchString) {
+        int[] query = searchString.codePoints().toArray();
+        List<Book> foundBooks = new ArrayList<>();
+        for (int row = 0; row < rowCount; row++) {
+            if (isRemoved(row)) continue;
+            if (startsWithIgnoreCase(titles.getLong(row * 8), query)
+                    || startsWithIgnoreCase(authors.getLong(row * 8), query)) {
+                foundBooks.add(getBook(row));
+            }
+        }
+        return foundBooks.toArray(new Book[foundBooks.size()]);
+    }
+
+    /**
+     * Adds zero or more book to the stock and gives it an unique ID, if a book with the same title, author and price
+     * already exists it will add the quantity to that book instead.
+     *
+     * @param book     book to be added, can't be null
+     * @param quantity quantity of the books to be added, can't be negative
+     * @return <tt>true</tt> if the book and quantity was able to be added
+     * @throws ArithmeticException if the price has more than 18 digits
+     */
+    @Override
+    public synchronized boolean add(Book book, int quantity) {
+        if (book == null || quantity < 0) {
+            return false;
+        }
+        Key key = new Key(book);
+        int row = find(key);
+        if (row >= 0) {
+            quantities.putInt(row * 4, quantities.getInt(row * 4) + quantity);
+            return true;
+        }
+        if (rowCount == capacity) {
+            growColumns();
+        }
+        row = rowCount++;
+        titles.putLong(row * 8, write(key.title));
+        authors.putLong(row * 8, write(key.author));
+        prices.putLong(row * 8, key.unscaledPrice);
+        scales.put(row, (byte) key.scale);
+        quantities.putInt(row * 4, quantity);
+        hashes.putInt(row * 4, key.hash);
+        flags.put(row, (byte) 0);
+        insertIndex(row, key.hash);
+        size++;
+        return true;
+    }
+
+    /**
+     * Return the status of the books in the array against the current stock of books
+     *
+     * @param books books that should be checked
+     * @return an array with the same size as the input array and corresponds to each book's status in order.
+     * @see BookStore#buy(Book...)
+     */
+    @Override
+    public synchronized int[] buy(Book... books) {
+        Map<Integer, Integer> currentlyStockedBooks = new HashMap<>();
+        int[] bookStatus = new int[books.length];
+        for (int i = 0; i < books.length; i++) {
+            int row = getBookID(books[i]);
+            if (row < 0) {
+                bookStatus[i] = BookStore.DOES_NOT_EXIST;
+                continue;
+            }
+            int quantity = currentlyStockedBooks.computeIfAbsent(row, this::getQuantity);
+            if (quantity <= 0) {
+                bookStatus[i] = BookStore.NOT_IN_STOCK;
+            } else {
+                bookStatus[i] = BookStore.OK;
+                currentlyStockedBooks.put(row, quantity - 1);
+            }
+        }
+        return bookStatus;
+    }
+
+    /**
+     * Returns the book's ID
+     *
+     * @param book the book to get the ID of
+     * @return the ID of a book with the same title, author and price or -1 if it wasn't found
+     */
+    public synchronized int getBookID(Book book) {
+        if (book == null) return -1;
+        try {
+            return find(new Key(book));
+        } catch (ArithmeticException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the book with the provided ID, the book is created from the stored values on each call
+     *
+     * @param id the id of the book to return
+     * @return the book or null if there was no book with that id
+     */
+    public synchronized Book getBook(int id) {
+        if (id < 0 || id >= rowCount || isRemoved(id)) {
+            return null;
+        }
+        BigDecimal price = BigDecimal.valueOf(prices.getLong(id * 8), scales.get(id));
+        return new Book(read(titles.getLong(id * 8)), read(authors.getLong(id * 8)), price);
+    }
+
+    /**
+     * Returns the quantity of the book with the provided ID
+     *
+     * @param id the id of the book
+     * @return quantity of the book
+     */
+    public synchronized int getQuantity(int id) {
+        if (id < 0 || id >= rowCount || isRemoved(id)) {
+            return 0;
+        }
+        return quantities.getInt(id * 4);
+    }
+
+    /**
+     * Returns the quantity of the book
+     *
+     * @param book the book
+     * @return quantity of the book
+     */
+    public synchronized int getQuantity(Book book) {
+        return getQuantity(getBookID(book));
+    }
+
+    /**
+     * Reduces the quantity of a book from the stock. Won't remove more of the book than available.
+     *
+     * @param id  the id of the book to reduce
+     * @param qty the quantity of books to be removed, has to be greater than 0
+     * @return the quantity removed
+     */
+    public synchronized int reduceQuantity(int id, int qty) {
+        if (qty < 0 || id < 0 || id >= rowCount || isRemoved(id)) {
+            return 0;
+        }
+        int currentQuantity = quantities.getInt(id * 4);
+        int newQuantity = Math.max(currentQuantity - qty, 0);
+        quantities.putInt(id * 4, newQuantity);
+        return currentQuantity - newQuantity;
+    }
+
+    /**
+     * Remove a book with the ID provided. All other books with keep their current IDs.
+     * The space used by the book's title and author isn't reclaimed.
+     *
+     * @param bookId id of the book to remove
+     * @return an entry containing the book that was removed as key and its quantity as value or null and 0 if nothing was removed
+     */
+    public synchronized Map.Entry<Book, Integer> remove(int bookId) {
+        Book book = getBook(bookId);
+        if (book == null) {
+            return new AbstractMap.SimpleImmutableEntry<>(null, 0);
+        }
+        int quantity = quantities.getInt(bookId * 4);
+        int slot = findSlot(bookId);
+        index.putInt(slot * 4, REMOVED);
+        flags.put(bookId, FLAG_REMOVED);
+        size--;
+        return new AbstractMap.SimpleImmutableEntry<>(book, quantity);
+    }
+
+    /**
+     * Returns the number of books in stock
+     *
+     * @return number of books
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of bytes allocated outside the heap
+     *
+     * @return allocated bytes
+     */
+    public synchronized long getAllocatedBytes() {
+        long bytes = (long) capacity * (8 + 8 + 8 + 1 + 4 + 4 + 1) + (long) indexSlots * 4;
+        for (ByteBuffer page : pages) {
+            bytes += page.capacity();
+        }
+        return bytes;
+    }
+
+    private boolean isRemoved(int row) {
+        return flags.get(row) == FLAG_REMOVED;
+    }
+
+    private int find(Key key) {
+        int mask = indexSlots - 1;
+        for (int slot = key.hash & mask; ; slot = (slot + 1) & mask) {
+            int value = index.getInt(slot * 4);
+            if (value == EMPTY) return -1;
+            int row = value - 1;
+            if (value != REMOVED && hashes.getInt(row * 4) == key.hash && matches(row, key)) {
+                return row;
+            }
+        }
+    }
+
+    private int findSlot(int row) {
+        int mask = indexSlots - 1;
+        for (int slot = hashes.getInt(row * 4) & mask; ; slot = (slot + 1) & mask) {
+            if (index.getInt(slot * 4) == row + 1) return slot;
+        }
+    }
+
+    private void insertIndex(int row, int hash) {
+        if ((usedSlots + 1) * 2 > indexSlots) {
+            rebuildIndex(size * 4 > indexSlots ? indexSlots * 2 : indexSlots);
+        }
+        int mask = indexSlots - 1;
+        int slot = hash & mask;
+        while (index.getInt(slot * 4) > EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        if (index.getInt(slot * 4) == EMPTY) {
+            usedSlots++;
+        }
+        index.putInt(slot * 4, row + 1);
+    }
+
+    private void rebuildIndex(int slots) {
+        index = allocate(slots * 4);
+        indexSlots = slots;
+        usedSlots = 0;
+        int mask = slots - 1;
+        for (int row = 0; row < rowCount; row++) {
+            if (isRemoved(row)) continue;
+            int slot = hashes.getInt(row * 4) & mask;
+            while (index.getInt(slot * 4) != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            index.putInt(slot * 4, row + 1);
+            usedSlots++;
+        }
+    }
+
+    private boolean matches(int row, Key key) {
+        long unscaledPrice = prices.getLong(row * 8);
+        byte scale = scales.get(row);
+        boolean samePrice = (unscaledPrice == key.unscaledPrice && scale == key.scale)
+                || BigDecimal.valueOf(unscaledPrice, scale).compareTo(BigDecimal.valueOf(key.unscaledPrice, key.scale)) == 0;
+        return samePrice
+                && equalBytes(titles.getLong(row * 8), key.title)
+                && equalBytes(authors.getLong(row * 8), key.author);
+    }
+
+    private void growColumns() {
+        capacity *= 2;
+        titles = grow(titles, capacity * 8);
+        authors = grow(authors, capacity * 8);
+        prices = grow(prices, capacity * 8);
+        scales = grow(scales, capacity);
+        quantities = grow(quantities, capacity * 4);
+        hashes = grow(hashes, capacity * 4);
+        flags = grow(flags, capacity);
+    }
+
+    private long write(byte[] bytes) {
+        int length = 4 + bytes.length;
+        ByteBuffer page = pages.isEmpty() ? null : pages.get(pages.size() - 1);
+        if (page == null || page.remaining() < length) {
+            page = ByteBuffer.allocateDirect(Math.max(PAGE_SIZE, length)).order(ByteOrder.nativeOrder());
+            pages.add(page);
+        }
+        long address = ((long) (pages.size() - 1) << 32) | page.position();
+        page.putInt(bytes.length);
+        page.put(bytes);
+        return address;
+    }
+
+    private String read(long address) {
+        ByteBuffer page = pages.get((int) (address >>> 32));
+        int offset = (int) address;
+        byte[] bytes = new byte[page.getInt(offset)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = page.get(offset + 4 + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private boolean equalBytes(long address, byte[] bytes) {
+        ByteBuffer page = pages.get((int) (address >>> 32));
+        int offset = (int) address;
+        if (page.getInt(offset) != bytes.length) return false;
+        for (int i = 0; i < bytes.length; i++) {
+            if (page.get(offset + 4 + i) != bytes[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compares the beginning of a stored string with the code points of the query the way
+     * {@link String#equalsIgnoreCase(String)} compares characters, decoding the UTF-8 in place.
+     */
+    private boolean startsWithIgnoreCase(long address, int[] query) {
+        ByteBuffer page = pages.get((int) (address >>> 32));
+        int position = (int) address + 4;
+        int end = position + page.getInt((int) address);
+        for (int expected : query) {
+            if (position >= end) return false;
+            int first = page.get(position) & 0xff;
+            int codePoint;
+            int length;
+            if (first < 0x80) {
+                codePoint = first;
+                length = 1;
+            } else if (first < 0xe0) {
+                codePoint = first & 0x1f;
+                length = 2;
+            } else if (first < 0xf0) {
+                codePoint = first & 0x0f;
+                length = 3;
+            } else {
+                codePoint = first & 0x07;
+                length = 4;
+            }
+            for (int i = 1; i < length && position + i < end; i++) {
+                codePoint = (codePoint << 6) | (page.get(position + i) & 0x3f);
+            }
+            position += length;
+            if (codePoint != expected
+                    && Character.toUpperCase(codePoint) != Character.toUpperCase(expected)
+                    && Character.toLowerCase(codePoint) != Character.toLowerCase(expected)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ByteBuffer allocate(int bytes) {
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int bytes) {
+        ByteBuffer source = buffer.duplicate();
+        source.clear();
+        ByteBuffer grown = allocate(bytes);
+        grown.put(source);
+        grown.clear();
+        return grown;
+    }
+
+    /**
+     * A book encoded the way it is stored
+     */
+    private static final class Key {
+        private final byte[] title;
+        private final byte[] author;
+        private final long unscaledPrice;
+        private final int scale;
+        private final int hash;
+
+        private Key(Book book) {
+            BigDecimal price = book.getPrice();
+            BigInteger unscaled = price.unscaledValue();
+            if (unscaled.bitLength() > 63 || price.scale() < Byte.MIN_VALUE || price.scale() > Byte.MAX_VALUE) {
+                throw new ArithmeticException(String.format("The price %s can't be stored", price));
+            }
+            this.title = book.getTitle().getBytes(StandardCharsets.UTF_8);
+            this.author = book.getAuthor().getBytes(StandardCharsets.UTF_8);
+            this.unscaledPrice = unscaled.longValue();
+            this.scale = price.scale();
+            BigDecimal normalizedPrice = price.signum() == 0 ? BigDecimal.ZERO : price.stripTrailingZeros();
+            int h = (Arrays.hashCode(title) * 31 + Arrays.hashCode(author)) * 31 + normalizedPrice.hashCode();
+            this.hash = h ^ (h >>> 16);
+        }
+    }
+}
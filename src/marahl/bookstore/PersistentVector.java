@@ -0,0 +1,102 @@
+package marahl.bookstore;
+
+/**
+ * An immutable array that can only grow at the end, where setting or appending an element returns a new vector
+ * sharing everything but the changed path with the old one.
+ * <p>
+ * The elements are kept in a trie of 32 element arrays, so a lookup follows O(log32 n) arrays and a change copies
+ * one array per level.
+ */
+final class PersistentVector<E> {
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+    private static final PersistentVector<?> EMPTY = new PersistentVector<>(0, 0, new Object[WIDTH]);
+
+    private final int size;
+    private final int shift;
+    private final Object[] root;
+
+    private PersistentVector(int size, int shift, Object[] root) {
+        this.size = size;
+        this.shift = shift;
+        this.root = root;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <E> PersistentVector<E> empty() {
+        return (PersistentVector<E>) EMPTY;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param index between 0 and {@link #size()}
+     */
+    @SuppressWarnings("unchecked")
+    E get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(String.format("Index %d of %d", index, size));
+        }
+        Object[] node = root;
+        for (int level = shift; level > 0; level -= BITS) {
+            node = (Object[]) node[(index >>> level) & MASK];
+        }
+        return (E) node[index & MASK];
+    }
+
+    /**
+     * @param index between 0 and {@link #size()}
+     */
+    PersistentVector<E> set(int index, E element) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(String.format("Index %d of %d", index, size));
+        }
+        return new PersistentVector<>(size, shift, set(root, shift, index, element));
+    }
+
+    private static Object[] set(Object[] node, int level, int index, Object element) {
+        Object[] copy = node.clone();
+        if (level == 0) {
+            copy[index & MASK] = element;
+        } else {
+            int child = (index >>> level) & MASK;
+            copy[child] = set((Object[]) node[child], level - BITS, index, element);
+        }
+        return copy;
+    }
+
+    PersistentVector<E> append(E element) {
+        if (size == 1 << (shift + BITS)) {
+            // the trie is full, grow it by a level
+            Object[] newRoot = new Object[WIDTH];
+            newRoot[0] = root;
+            newRoot[1] = path(shift, element);
+            return new PersistentVector<>(size + 1, shift + BITS, newRoot);
+        }
+        return new PersistentVector<>(size + 1, shift, append(root, shift, size, element));
+    }
+
+    private static Object[] append(Object[] node, int level, int index, Object element) {
+        Object[] copy = node.clone();
+        if (level == 0) {
+            copy[index & MASK] = element;
+        } else {
+            int child = (index >>> level) & MASK;
+            copy[child] = node[child] == null ? path(level - BITS, element)
+                    : append((Object[]) node[child], level - BITS, index, element);
+        }
+        return copy;
+    }
+
+    /**
+     * @return a new branch with the element as its first element
+     */
+    private static Object[] path(int level, Object element) {
+        Object[] node = new Object[WIDTH];
+        node[0] = level == 0 ? element : path(level - BITS, element);
+        return node;
+    }
+}
@@ -0,0 +1,374 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+/**
+ * Prices carts with promotions such as 3 for 2 per author, volume discounts and bundles.
+ * <p>
+ * The promotions are compiled into a plan when the engine is created: promotions limited to some books are indexed
+ * by book, promotions limited to some authors are indexed by author and the rest apply to every line. Pricing a cart
+ * is then a single pass over its lines, where each line is converted to cents once and handed only to the promotions
+ * indexed under its book, its author or every line. All sums are made in whole cents (rounded half up) in longs.
+ * <p>
+ * Discounts of different promotions add up but a cart never costs less than nothing. The quote of a {@link BookCart}
+ * is cached until the version of the cart changes.
+ */
+public final class PricingEngine {
+    private static final int[] NONE = new int[0];
+
+    private final Promotion[] promotions;
+    private final int[] everyLine;
+    private final Map<String, int[]> byAuthor = new HashMap<>();
+    private final Map<Book, int[]> byBook = new HashMap<>();
+    private final Map<BookCart, Quote> quotes = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * Compiles the promotions into a plan
+     *
+     * @param promotions the promotions applied to every cart, in the order their discounts are reported
+     */
+    public PricingEngine(Promotion... promotions) {
+        this.promotions = promotions.clone();
+        List<Integer> global = new ArrayList<>();
+        Map<String, List<Integer>> authors = new HashMap<>();
+        Map<Book, List<Integer>> books = new HashMap<>();
+        for (int i = 0; i < promotions.length; i++) {
+            Promotion promotion = promotions[i];
+            if (promotion.getBooks() != null) {
+                for (Book book : promotion.getBooks()) {
+                    books.computeIfAbsent(book, key -> new ArrayList<>()).add(i);
+                }
+            } else if (promotion.getAuthors() != null) {
+                for (String author : promotion.getAuthors()) {
+                    authors.computeIfAbsent(author, key -> new ArrayList<>()).add(i);
+                }
+            } else {
+                global.add(i);
+            }
+        }
+        everyLine = toArray(global);
+        authors.forEach((author, indexes) -> byAuthor.put(author, toArray(indexes)));
+        books.forEach((book, indexes) -> byBook.put(book, toArray(indexes)));
+    }
+
+    /**
+     * Prices the content of the cart, reusing the last quote of the cart if it hasn't changed since
+     *
+     * @param cart the cart to price
+     * @return the quote of the cart
+     */
+    public Quote price(BookCart cart) {
+        long version = cart.getVersion();
+        Quote quote = quotes.get(cart);
+        if (quote == null || quote.cartVersion != version) {
+            quote = price(cart.getLines(), version);
+            quotes.put(cart, quote);
+        }
+        return quote;
+    }
+
+    /**
+     * Prices books and quantities
+     *
+     * @param lines entries with the book as key and its quantity as value
+     * @return the quote of the lines, with the cart version -1
+     */
+    public Quote price(Map.Entry<Book, Integer>[] lines) {
+        return price(lines, -1);
+    }
+
+    private Quote price(Map.Entry<Book, Integer>[] lines, long version) {
+        Accumulator[] accumulators = new Accumulator[promotions.length];
+        for (int i = 0; i < promotions.length; i++) {
+            accumulators[i] = promotions[i].newAccumulator();
+        }
+        long subtotal = 0;
+        for (Map.Entry<Book, Integer> line : lines) {
+            Book book = line.getKey();
+            int quantity = line.getValue();
+            if (book == null || quantity <= 0) continue;
+            long cents = InventoryReport.toCents(book.getPrice());
+            subtotal = Math.addExact(subtotal, Math.multiplyExact(cents, quantity));
+            for (int i : everyLine) {
+                accumulators[i].add(book, cents, quantity);
+            }
+            for (int i : byAuthor.getOrDefault(book.getAuthor(), NONE)) {
+                accumulators[i].add(book, cents, quantity);
+            }
+            for (int i : byBook.getOrDefault(book, NONE)) {
+                accumulators[i].add(book, cents, quantity);
+            }
+        }
+        long[] discounts = new long[promotions.length];
+        long discount = 0;
+        for (int i = 0; i < promotions.length; i++) {
+            discounts[i] = Math.max(accumulators[i].getDiscount(), 0);
+            discount += discounts[i];
+        }
+        return new Quote(version, subtotal, Math.min(discount, subtotal), promotions, discounts);
+    }
+
+    private static int[] toArray(List<Integer> indexes) {
+        return indexes.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * For every <tt>buy</tt> copies by the same author the cheapest <tt>buy - pay</tt> are free, ex. 3 for 2
+     *
+     * @param buy     number of copies to buy
+     * @param pay     number of copies to pay for
+     * @param authors the authors included, all authors if none
+     * @return the promotion
+     * @throws IllegalArgumentException if <tt>pay</tt> isn't between 0 and <tt>buy</tt>
+     */
+    public static Promotion multiBuy(int buy, int pay, String... authors) {
+        if (buy < 1 || pay < 0 || pay >= buy) {
+            throw new IllegalArgumentException(String.format("Can't pay for %d of %d", pay, buy));
+        }
+        Set<String> included = authors.length > 0 ? new HashSet<>(Arrays.asList(authors)) : null;
+        return new Promotion() {
+            @Override
+            public String getName() {
+                return String.format("%d for %d", buy, pay);
+            }
+
+            @Override
+            public Set<String> getAuthors() {
+                return included;
+            }
+
+            @Override
+            public Accumulator newAccumulator() {
+                Map<String, List<long[]>> copiesByAuthor = new HashMap<>();
+                return new Accumulator() {
+                    @Override
+                    public void add(Book book, long cents, int quantity) {
+                        copiesByAuthor.computeIfAbsent(book.getAuthor(), key -> new ArrayList<>()).add(new long[]{cents, quantity});
+                    }
+
+                    @Override
+                    public long getDiscount() {
+                        long discount = 0;
+                        for (List<long[]> copies : copiesByAuthor.values()) {
+                            long count = 0;
+                            for (long[] copy : copies) {
+                                count += copy[1];
+                            }
+                            long free = count / buy * (buy - pay);
+                            copies.sort(Comparator.comparingLong(copy -> copy[0]));
+                            for (int i = 0; free > 0; i++) {
+                                long taken = Math.min(free, copies.get(i)[1]);
+                                discount += taken * copies.get(i)[0];
+                                free -= taken;
+                            }
+                        }
+                        return discount;
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * A percentage off the whole cart when it holds at least a number of copies
+     *
+     * @param minCopies the number of copies needed
+     * @param percent   the percentage off, rounded down to whole cents
+     * @return the promotion
+     * @throws IllegalArgumentException if the percentage isn't between 0 and 100
+     */
+    public static Promotion volumeDiscount(int minCopies, int percent) {
+        if (percent < 0 || percent > 100) {
+            throw new IllegalArgumentException(String.format("Invalid percentage (%d)", percent));
+        }
+        return new Promotion() {
+            @Override
+            public String getName() {
+                return String.format("%d%% off %d or more", percent, minCopies);
+            }
+
+            @Override
+            public Accumulator newAccumulator() {
+                return new Accumulator() {
+                    private long copies;
+                    private long subtotal;
+
+                    @Override
+                    public void add(Book book, long cents, int quantity) {
+                        copies += quantity;
+                        subtotal += cents * quantity;
+                    }
+
+                    @Override
+                    public long getDiscount() {
+                        return copies >= minCopies ? subtotal * percent / 100 : 0;
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * The books for a fixed price when all of them are bought together, once for every complete set in the cart
+     *
+     * @param price the price of the bundle
+     * @param books the books in the bundle
+     * @return the promotion
+     * @throws IllegalArgumentException if there are no books in the bundle
+     */
+    public static Promotion bundle(BigDecimal price, Book... books) {
+        if (books.length == 0) {
+            throw new IllegalArgumentException("A bundle needs at least one book");
+        }
+        long bundleCents = InventoryReport.toCents(price);
+        Map<Book, Integer> indexes = new HashMap<>();
+        for (Book book : books) {
+            indexes.putIfAbsent(book, indexes.size());
+        }
+        Set<Book> included = Collections.unmodifiableSet(indexes.keySet());
+        return new Promotion() {
+            @Override
+            public String getName() {
+                return String.format("Bundle for %s", price);
+            }
+
+            @Override
+            public Set<Book> getBooks() {
+                return included;
+            }
+
+            @Override
+            public Accumulator newAccumulator() {
+                long[] quantities = new long[indexes.size()];
+                long[] cents = new long[indexes.size()];
+                return new Accumulator() {
+                    @Override
+                    public void add(Book book, long bookCents, int quantity) {
+                        int index = indexes.get(book);
+                        quantities[index] += quantity;
+                        cents[index] = bookCents;
+                    }
+
+                    @Override
+                    public long getDiscount() {
+                        long sets = Long.MAX_VALUE;
+                        long setCents = 0;
+                        for (int i = 0; i < quantities.length; i++) {
+                            sets = Math.min(sets, quantities[i]);
+                            setCents += cents[i];
+                        }
+                        return sets * Math.max(setCents - bundleCents, 0);
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * A rule lowering the price of a cart
+     */
+    public interface Promotion {
+        /**
+         * @return the name the discount is reported under
+         */
+        String getName();
+
+        /**
+         * @return the authors of the books the promotion looks at, or null if it isn't limited to some authors
+         */
+        default Set<String> getAuthors() {
+            return null;
+        }
+
+        /**
+         * @return the books the promotion looks at, or null if it isn't limited to some books. Takes precedence over
+         * the authors.
+         */
+        default Set<Book> getBooks() {
+            return null;
+        }
+
+        /**
+         * @return a new accumulator for pricing one cart
+         */
+        Accumulator newAccumulator();
+    }
+
+    /**
+     * Collects the lines of one cart for a promotion and computes its discount
+     */
+    public interface Accumulator {
+        /**
+         * Called once for every line the promotion looks at
+         *
+         * @param book     the book of the line
+         * @param cents    the price of one copy in cents
+         * @param quantity the number of copies, at least 1
+         */
+        void add(Book book, long cents, int quantity);
+
+        /**
+         * @return the discount in cents after all lines have been added
+         */
+        long getDiscount();
+    }
+
+    /**
+     * The price of a cart
+     */
+    public static final class Quote {
+        private final long cartVersion;
+        private final long subtotalCents;
+        private final long discountCents;
+        private final Map<String, BigDecimal> discounts = new LinkedHashMap<>();
+
+        private Quote(long cartVersion, long subtotalCents, long discountCents, Promotion[] promotions, long[] discounts) {
+            this.cartVersion = cartVersion;
+            this.subtotalCents = subtotalCents;
+            this.discountCents = discountCents;
+            for (int i = 0; i < promotions.length; i++) {
+                if (discounts[i] > 0) {
+                    this.discounts.merge(promotions[i].getName(), BigDecimal.valueOf(discounts[i], 2), BigDecimal::add);
+                }
+            }
+        }
+
+        /**
+         * @return the version of the cart the quote was made for, -1 if it wasn't made for a cart
+         */
+        public long getCartVersion() {
+            return cartVersion;
+        }
+
+        /**
+         * @return the price of the books without promotions
+         */
+        public BigDecimal getSubtotal() {
+            return BigDecimal.valueOf(subtotalCents, 2);
+        }
+
+        /**
+         * @return the sum of all discounts, at most the subtotal
+         */
+        public BigDecimal getDiscount() {
+            return BigDecimal.valueOf(discountCents, 2);
+        }
+
+        /**
+         * @return the price of the books with promotions
+         */
+        public BigDecimal getTotal() {
+            return BigDecimal.valueOf(subtotalCents - discountCents, 2);
+        }
+
+        /**
+         * @return the discount of each promotion that lowered the price, by the name of the promotion
+         */
+        public Map<String, BigDecimal> getDiscounts() {
+            return Collections.unmodifiableMap(discounts);
+        }
+    }
+}
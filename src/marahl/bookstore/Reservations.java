@@ -0,0 +1,208 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Soft reservations of books in a {@link BookStore}.
+ * <p>
+ * A hold sets aside a quantity of a book so it can't be held by anyone else, it doesn't change the quantity in
+ * stock. Holds expire after a time to live and are then released automatically. Expiry is handled by a
+ * {@link TimingWheel} which is moved forward whenever the reservations are used, so there are no timers per hold.
+ */
+public class Reservations {
+    /**
+     * Default time to live of a hold, 15 minutes
+     */
+    public static final long DEFAULT_HOLD_MILLIS = 15 * 60 * 1000;
+    private static final long TICK_MILLIS = 100;
+
+    private final BookStore store;
+    private final LongSupplier clock;
+    private final TimingWheel<Hold> wheel;
+    private final Map<Integer, Integer> heldQuantity = new HashMap<>();
+    private long holdMillis = DEFAULT_HOLD_MILLIS;
+
+    Reservations(BookStore store, LongSupplier clock) {
+        this.store = store;
+        this.clock = clock;
+        this.wheel = new TimingWheel<>(TICK_MILLIS, clock.getAsLong());
+    }
+
+    /**
+     * Sets the time to live of new holds
+     *
+     * @param holdMillis time in milliseconds before a hold expires
+     * @throws IllegalArgumentException if the time is negative
+     */
+    public synchronized void setHoldTime(long holdMillis) {
+        if (holdMillis < 0) {
+            throw new IllegalArgumentException(String.format("The hold time can't be negative (%d)", holdMillis));
+        }
+        this.holdMillis = holdMillis;
+    }
+
+    /**
+     * Returns the time to live of new holds
+     *
+     * @return time in milliseconds before a hold expires
+     */
+    public synchronized long getHoldTime() {
+        return holdMillis;
+    }
+
+    /**
+     * Holds a quantity of a book with the default time to live
+     *
+     * @param book     the book to hold
+     * @param quantity how many of the book to hold, has to be greater than 0
+     * @return the hold or null if the book doesn't exist or too few of it are available
+     */
+    public Hold hold(Book book, int quantity) {
+        return hold(store.getBookID(book), quantity);
+    }
+
+    /**
+     * Holds a quantity of a book with the default time to live
+     *
+     * @param bookId   the id of the book to hold
+     * @param quantity how many of the book to hold, has to be greater than 0
+     * @return the hold or null if the book doesn't exist or too few of it are available
+     */
+    public synchronized Hold hold(int bookId, int quantity) {
+        return hold(bookId, quantity, holdMillis);
+    }
+
+    /**
+     * Holds a quantity of a book
+     *
+     * @param bookId     the id of the book to hold
+     * @param quantity   how many of the book to hold, has to be greater than 0
+     * @param holdMillis time in milliseconds before the hold expires
+     * @return the hold or null if the book doesn't exist or too few of it are available
+     */
+    public synchronized Hold hold(int bookId, int quantity, long holdMillis) {
+        if (bookId < 0 || quantity <= 0 || store.getBook(bookId) == null) {
+            return null;
+        }
+        long now = expire();
+        if (getAvailable(bookId) < quantity) {
+            return null;
+        }
+        Hold hold = new Hold(bookId, quantity);
+        hold.timeout = wheel.schedule(hold, now + holdMillis);
+        heldQuantity.merge(bookId, quantity, Integer::sum);
+        return hold;
+    }
+
+    /**
+     * Returns how many of the book that are currently held
+     *
+     * @param bookId the id of the book
+     * @return the held quantity
+     */
+    public synchronized int getHeldQuantity(int bookId) {
+        expire();
+        return heldQuantity.getOrDefault(bookId, 0);
+    }
+
+    /**
+     * Returns how many of the book that are in stock and not held
+     *
+     * @param bookId the id of the book
+     * @return the available quantity
+     */
+    public synchronized int getAvailableQuantity(int bookId) {
+        expire();
+        return getAvailable(bookId);
+    }
+
+    /**
+     * Returns the number of holds that have neither expired nor been released
+     *
+     * @return number of active holds
+     */
+    public synchronized int size() {
+        expire();
+        return wheel.size();
+    }
+
+    private int getAvailable(int bookId) {
+        return Math.max(store.getQuantity(bookId) - heldQuantity.getOrDefault(bookId, 0), 0);
+    }
+
+    private synchronized void release(Hold hold, int quantity) {
+        expire();
+        if (!hold.timeout.isPending()) return;
+        quantity = Math.min(quantity, hold.quantity);
+        hold.quantity -= quantity;
+        reduceHeld(hold.bookId, quantity);
+        if (hold.quantity == 0) {
+            wheel.cancel(hold.timeout);
+        }
+    }
+
+    private long expire() {
+        long now = clock.getAsLong();
+        wheel.advance(now, hold -> reduceHeld(hold.bookId, hold.quantity));
+        return now;
+    }
+
+    private void reduceHeld(int bookId, int quantity) {
+        heldQuantity.computeIfPresent(bookId, (id, held) -> held > quantity ? held - quantity : null);
+    }
+
+    /**
+     * A quantity of a book held by a shopper
+     */
+    public final class Hold {
+        private final int bookId;
+        private int quantity;
+        private TimingWheel.Timeout<Hold> timeout;
+
+        private Hold(int bookId, int quantity) {
+            this.bookId = bookId;
+            this.quantity = quantity;
+        }
+
+        public int getBookId() {
+            return bookId;
+        }
+
+        /**
+         * @return the quantity still held, 0 if the hold has expired
+         */
+        public int getQuantity() {
+            synchronized (Reservations.this) {
+                expire();
+                return timeout.isPending() ? quantity : 0;
+            }
+        }
+
+        /**
+         * @return <tt>true</tt> if the hold has neither expired nor been released
+         */
+        public boolean isActive() {
+            return getQuantity() > 0;
+        }
+
+        /**
+         * Releases part of the hold, the whole hold is released when its quantity reaches 0
+         *
+         * @param quantity how many to release
+         */
+        public void release(int quantity) {
+            Reservations.this.release(this, quantity);
+        }
+
+        /**
+         * Releases the whole hold
+         */
+        public void release() {
+            release(Integer.MAX_VALUE);
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package marahl.bookstore;
+
+import java.util.*;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps track of the best selling books and the books that are about to run out, in bounded memory.
+ * <p>
+ * Sales are counted with the Space-Saving algorithm: at most a fixed number of books are counted and a book that
+ * isn't counted replaces the book with the lowest count and continues from that count. Recent sales weigh
+ * more than old ones, each sale counts twice as much as a sale one half-life earlier, so the counts follow the
+ * sales velocity rather than the all-time totals.
+ * <p>
+ * The books with the lowest quantities at or below the low stock threshold are kept in a max-heap on quantity, also
+ * bounded to the capacity. When it is full a lower quantity replaces the highest one, and a book pushed out is only
+ * considered again when its quantity is next updated. Both heaps are indexed by book ID in an int hash table, so
+ * every update is O(log k) without boxing.
+ */
+public class SalesTracker {
+    /**
+     * Default number of books counted for top sellers and kept for low stock
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+    /**
+     * Default half-life of a sale, 24 hours
+     */
+    public static final long DEFAULT_HALF_LIFE_MILLIS = 24 * 60 * 60 * 1000;
+    /**
+     * Default quantity at or below which a book is low on stock
+     */
+    public static final int DEFAULT_LOW_STOCK_THRESHOLD = 3;
+    private static final double MAX_WEIGHT = 1e100;
+
+    private final LongSupplier clock;
+    private final long halfLifeMillis;
+    private final int capacity;
+    private final IndexedMinHeap sales;
+    private final IndexedMinHeap lowStock;
+    private int lowStockThreshold = DEFAULT_LOW_STOCK_THRESHOLD;
+    private long landmark;
+
+    SalesTracker(LongSupplier clock) {
+        this(clock, DEFAULT_CAPACITY, DEFAULT_HALF_LIFE_MILLIS);
+    }
+
+    SalesTracker(LongSupplier clock, int capacity, long halfLifeMillis) {
+        if (capacity < 1 || halfLifeMillis < 1) {
+            throw new IllegalArgumentException(String.format("Capacity and half-life have to be positive (%d, %d)", capacity, halfLifeMillis));
+        }
+        this.clock = clock;
+        this.halfLifeMillis = halfLifeMillis;
+        this.capacity = capacity;
+        this.sales = new IndexedMinHeap(capacity);
+        // quantities are negated so the highest is at the top and evicted first
+        this.lowStock = new IndexedMinHeap(Math.min(capacity, 16));
+        this.landmark = clock.getAsLong();
+    }
+
+    /**
+     * Records that a number of copies of a book were sold
+     *
+     * @param bookId   the id of the book sold
+     * @param quantity how many copies were sold
+     */
+    public synchronized void recordSale(int bookId, int quantity) {
+        if (quantity <= 0) return;
+        double weight = getWeight(clock.getAsLong()) * quantity;
+        int index = sales.indexOf(bookId);
+        if (index >= 0) {
+            sales.setKey(index, sales.keys[index] + weight);
+        } else if (sales.size < capacity) {
+            sales.insert(bookId, weight);
+        } else {
+            sales.replaceMinimum(bookId, sales.keys[0] + weight);
+        }
+    }
+
+    /**
+     * Updates the quantity in stock of a book
+     *
+     * @param bookId   the id of the book
+     * @param quantity the book's new quantity
+     */
+    public synchronized void updateQuantity(int bookId, int quantity) {
+        int index = lowStock.indexOf(bookId);
+        if (quantity > lowStockThreshold) {
+            if (index >= 0) {
+                lowStock.delete(index);
+            }
+        } else if (index >= 0) {
+            lowStock.setKey(index, -quantity);
+        } else if (lowStock.size < capacity) {
+            lowStock.insert(bookId, -quantity);
+        } else if (quantity < -lowStock.keys[0]) {
+            lowStock.replaceMinimum(bookId, -quantity);
+        }
+    }
+
+    /**
+     * Forgets a book that was removed from the store
+     *
+     * @param bookId the id of the book
+     */
+    public synchronized void removeBook(int bookId) {
+        int index = lowStock.indexOf(bookId);
+        if (index >= 0) {
+            lowStock.delete(index);
+        }
+        index = sales.indexOf(bookId);
+        if (index >= 0) {
+            sales.delete(index);
+        }
+    }
+
+    /**
+     * Returns the ids and estimated recent sales of the best selling books, best selling first.
+     * A sale made one half-life ago counts as half a sale, and a book that replaced another book in the
+     * count may be estimated too high by the count it continued from.
+     *
+     * @param n maximum number of books to return
+     * @return entries with book id as key and estimated recent sales as value
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public synchronized Map.Entry<Integer, Double>[] getTopSellers(int n) {
+        double weight = getWeight(clock.getAsLong());
+        Integer[] order = sales.sortedIndices();
+        int count = Math.min(Math.max(n, 0), order.length);
+        Map.Entry<Integer, Double>[] top = new Map.Entry[count];
+        for (int i = 0; i < count; i++) {
+            int index = order[order.length - 1 - i];
+            top[i] = new AbstractMap.SimpleImmutableEntry<>(sales.ids[index], sales.keys[index] / weight);
+        }
+        return top;
+    }
+
+    /**
+     * Returns the ids and quantities of the books with the lowest quantities at or below the threshold, lowest first
+     *
+     * @param n maximum number of books to return, at most the capacity are kept
+     * @return entries with book id as key and quantity as value
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public synchronized Map.Entry<Integer, Integer>[] getLowStock(int n) {
+        Integer[] order = lowStock.sortedIndices();
+        int count = Math.min(Math.max(n, 0), order.length);
+        Map.Entry<Integer, Integer>[] low = new Map.Entry[count];
+        for (int i = 0; i < count; i++) {
+            int index = order[order.length - 1 - i];
+            low[i] = new AbstractMap.SimpleImmutableEntry<>(lowStock.ids[index], (int) -lowStock.keys[index]);
+        }
+        return low;
+    }
+
+    /**
+     * Sets the quantity at or below which a book counts as low on stock, books already tracked keep being tracked
+     * until their quantity is updated
+     *
+     * @param threshold the low stock threshold
+     */
+    public synchronized void setLowStockThreshold(int threshold) {
+        this.lowStockThreshold = threshold;
+    }
+
+    public synchronized int getLowStockThreshold() {
+        return lowStockThreshold;
+    }
+
+    /**
+     * Returns the weight of a sale made now relative to the landmark. The counts are rescaled and the landmark
+     * moved when the weights grow too big to be represented.
+     */
+    private double getWeight(long now) {
+        double weight = Math.pow(2, (double) (now - landmark) / halfLifeMillis);
+        if (weight > MAX_WEIGHT) {
+            for (int i = 0; i < sales.size; i++) {
+                sales.keys[i] /= weight;
+            }
+            landmark = now;
+            weight = 1;
+        }
+        return weight;
+    }
+
+    /**
+     * A binary min-heap of ids on double keys with an index from id to heap position
+     */
+    private static final class IndexedMinHeap {
+        private final IntPositions positions = new IntPositions();
+        private int[] ids;
+        private double[] keys;
+        private int size;
+
+        private IndexedMinHeap(int capacity) {
+            this.ids = new int[capacity];
+            this.keys = new double[capacity];
+        }
+
+        private int indexOf(int id) {
+            return positions.get(id);
+        }
+
+        private void insert(int id, double key) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            set(size, id, key);
+            size++;
+            siftUp(size - 1);
+        }
+
+        private void replaceMinimum(int id, double key) {
+            positions.remove(ids[0]);
+            set(0, id, key);
+            siftDown(0);
+        }
+
+        private void setKey(int index, double key) {
+            double old = keys[index];
+            keys[index] = key;
+            if (key < old) {
+                siftUp(index);
+            } else {
+                siftDown(index);
+            }
+        }
+
+        private void delete(int index) {
+            positions.remove(ids[index]);
+            size--;
+            if (index == size) return;
+            int movedId = ids[size];
+            set(index, movedId, keys[size]);
+            siftDown(index);
+            siftUp(positions.get(movedId));
+        }
+
+        private Integer[] sortedIndices() {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparingDouble(i -> keys[i]));
+            return order;
+        }
+
+        private void siftUp(int index) {
+            while (index > 0) {
+                int parent = (index - 1) / 2;
+                if (keys[parent] <= keys[index]) break;
+                swap(index, parent);
+                index = parent;
+            }
+        }
+
+        private void siftDown(int index) {
+            while (true) {
+                int smallest = index;
+                int left = 2 * index + 1;
+                int right = left + 1;
+                if (left < size && keys[left] < keys[smallest]) smallest = left;
+                if (right < size && keys[right] < keys[smallest]) smallest = right;
+                if (smallest == index) break;
+                swap(index, smallest);
+                index = smallest;
+            }
+        }
+
+        private void swap(int a, int b) {
+            int id = ids[a];
+            double key = keys[a];
+            set(a, ids[b], keys[b]);
+            set(b, id, key);
+        }
+
+        private void set(int index, int id, double key) {
+            ids[index] = id;
+            keys[index] = key;
+            positions.put(id, index);
+        }
+    }
+
+    /**
+     * An open addressing hash table from ids to heap positions with linear probing
+     */
+    private static final class IntPositions {
+        private int[] keys = new int[16];
+        private int[] values = new int[16];
+        private boolean[] used = new boolean[16];
+        private int size;
+
+        /**
+         * @return the position of the id, or -1 if it isn't in the heap
+         */
+        private int get(int id) {
+            for (int i = slot(id, keys.length); used[i]; i = (i + 1) & (keys.length - 1)) {
+                if (keys[i] == id) return values[i];
+            }
+            return -1;
+        }
+
+        private void put(int id, int position) {
+            int i = slot(id, keys.length);
+            while (used[i]) {
+                if (keys[i] == id) {
+                    values[i] = position;
+                    return;
+                }
+                i = (i + 1) & (keys.length - 1);
+            }
+            used[i] = true;
+            keys[i] = id;
+            values[i] = position;
+            if (++size > keys.length / 2) {
+                grow();
+            }
+        }
+
+        private void remove(int id) {
+            int mask = keys.length - 1;
+            int i = slot(id, keys.length);
+            while (used[i] && keys[i] != id) {
+                i = (i + 1) & mask;
+            }
+            if (!used[i]) return;
+            used[i] = false;
+            size--;
+            // move later entries of the probe sequence back into the gap
+            for (int j = (i + 1) & mask; used[j]; j = (j + 1) & mask) {
+                int home = slot(keys[j], keys.length);
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+                    used[i] = true;
+                    used[j] = false;
+                    i = j;
+                }
+            }
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            int[] oldValues = values;
+            boolean[] oldUsed = used;
+            keys = new int[oldKeys.length * 2];
+            values = new int[oldKeys.length * 2];
+            used = new boolean[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldUsed[i]) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int slot(int id, int length) {
+            int hash = id * 0x9E3779B9;
+            return (hash ^ hash >>> 16) & (length - 1);
+        }
+    }
+}
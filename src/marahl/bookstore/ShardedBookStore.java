@@ -0,0 +1,322 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+import marahl.bookstore.books.BookList;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.function.BiFunction;
+import java.util.stream.IntStream;
+
+/**
+ * A book store that partitions its books across a number of independent {@link BookStore} segments.
+ * <p>
+ * Each book belongs to the segment picked by the hash of its title and author, and every segment has its own
+ * catalog, quantities and lock. The segment is encoded in the book's ID: segment s of n hands out the IDs
+ * s, s + n, s + 2n..., so operations on a single book or ID only touch one segment. Searches and batches are run on
+ * all segments in parallel. A segment hands out increasing IDs and visits its books in the order they were added,
+ * so every segment's result is already in ID order and the results are merged with a k-way merge.
+ */
+public class ShardedBookStore implements BookList {
+    private final BookStore[] segments;
+
+    /**
+     * Creates a store with the given number of segments
+     *
+     * @param segmentCount number of segments, has to be at least 1
+     * @throws IllegalArgumentException if the segment count is less than 1
+     */
+    public ShardedBookStore(int segmentCount) {
+        if (segmentCount < 1) {
+            throw new IllegalArgumentException(String.format("A store needs at least one segment (%d)", segmentCount));
+        }
+        segments = new BookStore[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new BookStore(i, segmentCount, false, System::currentTimeMillis);
+        }
+    }
+
+    /**
+     * Returns the number of segments
+     *
+     * @return number of segments
+     */
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    /**
+     * Matches the search string against the beginning of each book's title and author in every segment
+     *
+     * @param searchString String to search from among books in stock. Not case sensitive.
+     * @return Array of books matching the search string ordered by ID.
+     * @see BookStore#list(String)
+     */
+    @Override
+    public Book[] list(String searchString) {
+        SegmentResult[] results = new SegmentResult[segments.length];
+        IntStream.range(0, segments.length).parallel()
+                .forEach(i -> results[i] = new SegmentResult(segments[i], searchString));
+        return merge(results);
+    }
+
+    /**
+     * Adds zero or more book to the stock of the book's segment
+     *
+     * @param book     book to be added, can't be null
+     * @param quantity quantity of the books to be added, can't be negative
+     * @return <tt>true</tt> if the book and quantity was able to be added
+     * @see BookStore#add(Book, int)
+     */
+    @Override
+    public boolean add(Book book, int quantity) {
+        if (book == null) {
+            return false;
+        }
+        return getSegment(book).add(book, quantity);
+    }
+
+    /**
+     * Adds multiple books and their quantities to the stock, each segment adds its part of the books in parallel
+     *
+     * @param books books to be added
+     */
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void addBatch(Map.Entry<Book, Integer>[] books) {
+        List<List<Map.Entry<Book, Integer>>> batches = new ArrayList<>();
+        for (int i = 0; i < segments.length; i++) {
+            batches.add(new ArrayList<>());
+        }
+        for (Map.Entry<Book, Integer> book : books) {
+            if (book.getKey() != null) {
+                batches.get(getSegmentIndex(book.getKey())).add(book);
+            }
+        }
+        IntStream.range(0, segments.length).parallel().forEach(i -> {
+            List<Map.Entry<Book, Integer>> batch = batches.get(i);
+            if (!batch.isEmpty()) {
+                segments[i].addBatch(batch.toArray(new Map.Entry[batch.size()]));
+            }
+        });
+    }
+
+    /**
+     * Remove a book with the ID provided
+     *
+     * @param bookId id of the book to remove
+     * @return an entry containing the book that was removed as key and its quantity as value or null and 0 if nothing was removed
+     */
+    public Map.Entry<Book, Integer> remove(int bookId) {
+        return getSegment(bookId).remove(bookId);
+    }
+
+    /**
+     * Remove a book from the stock
+     *
+     * @param book the book to remove
+     * @return an entry containing the book that was removed as key and its quantity as value or null and 0 if nothing was removed
+     */
+    public Map.Entry<Book, Integer> remove(Book book) {
+        return getSegment(book).remove(book);
+    }
+
+    /**
+     * Reduces the quantity of a book from the stock. Won't remove more of the book than available.
+     *
+     * @param id  the id of the book to reduce
+     * @param qty the quantity of books to be removed, has to be greater than 0
+     * @return an entry containing the book that was removed as key and the quantity removed as value or null and 0 if nothing was removed
+     */
+    public Map.Entry<Book, Integer> reduceQuantity(int id, int qty) {
+        return getSegment(id).reduceQuantity(id, qty);
+    }
+
+    /**
+     * Returns the book with the provided ID
+     *
+     * @param id the id of the book to return
+     * @return the book or null if there was no book with that id
+     */
+    public Book getBook(int id) {
+        return getSegment(id).getBook(id);
+    }
+
+    /**
+     * Returns the book's ID
+     *
+     * @param book the book to get the ID of
+     * @return the ID of the book or -1 if it wasn't found
+     */
+    public int getBookID(Book book) {
+        return getSegment(book).getBookID(book);
+    }
+
+    /**
+     * Returns the quantity of the book with the provided ID
+     *
+     * @param id the id of the book
+     * @return quantity of the book
+     */
+    public int getQuantity(int id) {
+        return getSegment(id).getQuantity(id);
+    }
+
+    /**
+     * Returns the quantity of the book
+     *
+     * @param book the book
+     * @return quantity of the book
+     */
+    public int getQuantity(Book book) {
+        return getSegment(book).getQuantity(book);
+    }
+
+    /**
+     * Return the status of the books in the array against the current stock of books.
+     * Each segment checks its own books, so the same book is always counted in one place.
+     *
+     * @param books books that should be checked
+     * @return an array with the same size as the input array and corresponds to each book's status in order.
+     * @see BookStore#buy(Book...)
+     */
+    @Override
+    public int[] buy(Book... books) {
+        return bySegment(books, BookStore::buy);
+    }
+
+    /**
+     * Sums up price of all book with an OK status, without buying them
+     *
+     * @param books books to calculate the prices from
+     * @return the price of all books with the OK status
+     */
+    public BigDecimal getPrice(Book... books) {
+        return segments[0].getPrice(books, bySegment(books, BookStore::getStatus));
+    }
+
+    /**
+     * Returns the best selling books by recent sales over all segments, best selling first
+     *
+     * @param n maximum number of books to return
+     * @return entries with the book as key and its estimated recent sales as value
+     * @see BookStore#getTopSellers(int)
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public Map.Entry<Book, Double>[] getTopSellers(int n) {
+        List<Map.Entry<Book, Double>> topSellers = new ArrayList<>();
+        for (BookStore segment : segments) {
+            topSellers.addAll(Arrays.asList(segment.getTopSellers(n)));
+        }
+        topSellers.sort(Map.Entry.<Book, Double>comparingByValue().reversed());
+        return topSellers.subList(0, Math.min(Math.max(n, 0), topSellers.size())).toArray(new Map.Entry[0]);
+    }
+
+    /**
+     * Hands each segment its own books and puts the statuses it returns back in the order of the books
+     */
+    private int[] bySegment(Book[] books, BiFunction<BookStore, Book[], int[]> status) {
+        int[] bookStatus = new int[books.length];
+        int[][] indices = new int[segments.length][];
+        int[] counts = new int[segments.length];
+        for (int i = 0; i < books.length; i++) {
+            int segment = getSegmentIndex(books[i]);
+            if (indices[segment] == null) {
+                indices[segment] = new int[books.length];
+            }
+            indices[segment][counts[segment]++] = i;
+        }
+        for (int segment = 0; segment < segments.length; segment++) {
+            int count = counts[segment];
+            if (count == 0) continue;
+            Book[] segmentBooks = new Book[count];
+            for (int i = 0; i < count; i++) {
+                segmentBooks[i] = books[indices[segment][i]];
+            }
+            int[] segmentStatus = status.apply(segments[segment], segmentBooks);
+            for (int i = 0; i < count; i++) {
+                bookStatus[indices[segment][i]] = segmentStatus[i];
+            }
+        }
+        return bookStatus;
+    }
+
+    /**
+     * Returns all books currently in stock ordered by ID
+     *
+     * @return all books
+     */
+    public Book[] getStock() {
+        SegmentResult[] results = new SegmentResult[segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            results[i] = new SegmentResult(segments[i], "");
+        }
+        return merge(results);
+    }
+
+    /**
+     * Merges the results of the segments, each in ID order, into one array in ID order
+     */
+    private static Book[] merge(SegmentResult[] results) {
+        int size = 0;
+        PriorityQueue<SegmentResult> heads = new PriorityQueue<>(results.length,
+                Comparator.comparingInt(SegmentResult::getHeadId));
+        for (SegmentResult result : results) {
+            size += result.size;
+            if (result.size > 0) {
+                heads.add(result);
+            }
+        }
+        Book[] merged = new Book[size];
+        for (int i = 0; i < size; i++) {
+            SegmentResult head = heads.poll();
+            merged[i] = head.books[head.position++];
+            if (head.position < head.size) {
+                heads.add(head);
+            }
+        }
+        return merged;
+    }
+
+    private BookStore getSegment(int id) {
+        return segments[Math.floorMod(id, segments.length)];
+    }
+
+    private BookStore getSegment(Book book) {
+        return segments[getSegmentIndex(book)];
+    }
+
+    private int getSegmentIndex(Book book) {
+        if (book == null) return 0;
+        int hash = book.getTitle().hashCode() * 31 + book.getAuthor().hashCode();
+        hash ^= hash >>> 16;
+        return Math.floorMod(hash, segments.length);
+    }
+
+    /**
+     * The IDs and books of a segment matching a search string, with the position of the next one to merge
+     */
+    private static final class SegmentResult {
+        private int[] ids = new int[16];
+        private Book[] books = new Book[16];
+        private int size;
+        private int position;
+
+        private SegmentResult(BookStore segment, String searchString) {
+            segment.visit(searchString, (id, book, quantity) -> {
+                if (size == ids.length) {
+                    ids = Arrays.copyOf(ids, size * 2);
+                    books = Arrays.copyOf(books, size * 2);
+                }
+                ids[size] = id;
+                books[size] = book;
+                size++;
+                return true;
+            });
+        }
+
+        private int getHeadId() {
+            return ids[position];
+        }
+    }
+}
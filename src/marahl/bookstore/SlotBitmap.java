@@ -0,0 +1,496 @@
+package marahl.bookstore;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * An immutable compressed set of catalog slots, organized like a roaring bitmap.
+ * <p>
+ * Slots are split on their upper 16 bits into containers of up to 65536 slots. A container holding at most
+ * {@link #ARRAY_MAX} slots stores them as a sorted array of their lower 16 bits, a fuller container stores a bitmap
+ * of 1024 longs. Sparse sets like the books of one author cost two bytes per book, dense sets like the books in
+ * stock one bit per slot, and AND, OR and AND NOT work on whole containers at a time, a word at a time for bitmaps.
+ * <p>
+ * Changes are made on a {@link Builder}, which copies a container the first time it's changed and shares the rest
+ * with the bitmap it was started from.
+ */
+public final class SlotBitmap {
+    /**
+     * Most slots stored as an array in a container
+     */
+    public static final int ARRAY_MAX = 4096;
+    /**
+     * The empty set
+     */
+    public static final SlotBitmap EMPTY = new SlotBitmap(new char[0], new Container[0], 0);
+
+    private static final int WORDS = 1024;
+
+    private final char[] keys;
+    private final Container[] containers;
+    private final int size;
+
+    private SlotBitmap(char[] keys, Container[] containers, int size) {
+        this.keys = keys;
+        this.containers = containers;
+        this.size = size;
+    }
+
+    /**
+     * @param slot the slot to look for
+     * @return <tt>true</tt> if the slot is in the set
+     */
+    public boolean contains(int slot) {
+        int index = find(keys, size, (char) (slot >>> 16));
+        return index >= 0 && containers[index].contains((char) slot);
+    }
+
+    /**
+     * @return the number of slots in the set
+     */
+    public int cardinality() {
+        int cardinality = 0;
+        for (int i = 0; i < size; i++) {
+            cardinality += containers[i].cardinality;
+        }
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Calls the consumer with every slot in the set, lowest first
+     *
+     * @param consumer called with each slot
+     */
+    public void forEach(IntConsumer consumer) {
+        for (int i = 0; i < size; i++) {
+            containers[i].forEach(keys[i] << 16, consumer);
+        }
+    }
+
+    /**
+     * @return the slots in the set, lowest first
+     */
+    public int[] toArray() {
+        int[] slots = new int[cardinality()];
+        int[] count = {0};
+        forEach(slot -> slots[count[0]++] = slot);
+        return slots;
+    }
+
+    /**
+     * @param other another set
+     * @return the slots in both sets
+     */
+    public SlotBitmap and(SlotBitmap other) {
+        char[] resultKeys = new char[Math.min(size, other.size)];
+        Container[] result = new Container[resultKeys.length];
+        int count = 0;
+        for (int i = 0, j = 0; i < size && j < other.size; ) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                Container container = containers[i].and(other.containers[j]);
+                if (container.cardinality > 0) {
+                    resultKeys[count] = keys[i];
+                    result[count++] = container;
+                }
+                i++;
+                j++;
+            }
+        }
+        return new SlotBitmap(resultKeys, result, count);
+    }
+
+    /**
+     * @param other another set
+     * @return the slots in either set
+     */
+    public SlotBitmap or(SlotBitmap other) {
+        char[] resultKeys = new char[size + other.size];
+        Container[] result = new Container[resultKeys.length];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < size || j < other.size) {
+            if (j == other.size || (i < size && keys[i] < other.keys[j])) {
+                resultKeys[count] = keys[i];
+                result[count++] = containers[i++];
+            } else if (i == size || keys[i] > other.keys[j]) {
+                resultKeys[count] = other.keys[j];
+                result[count++] = other.containers[j++];
+            } else {
+                resultKeys[count] = keys[i];
+                result[count++] = containers[i++].or(other.containers[j++]);
+            }
+        }
+        return new SlotBitmap(resultKeys, result, count);
+    }
+
+    /**
+     * @param other another set
+     * @return the slots in this set but not in the other
+     */
+    public SlotBitmap andNot(SlotBitmap other) {
+        char[] resultKeys = new char[size];
+        Container[] result = new Container[size];
+        int count = 0;
+        for (int i = 0, j = 0; i < size; i++) {
+            while (j < other.size && other.keys[j] < keys[i]) {
+                j++;
+            }
+            Container container = j < other.size && other.keys[j] == keys[i]
+                    ? containers[i].andNot(other.containers[j]) : containers[i];
+            if (container.cardinality > 0) {
+                resultKeys[count] = keys[i];
+                result[count++] = container;
+            }
+        }
+        return new SlotBitmap(resultKeys, result, count);
+    }
+
+    /**
+     * @param bitmaps any number of sets
+     * @return the slots in any of the sets
+     */
+    public static SlotBitmap or(SlotBitmap... bitmaps) {
+        SlotBitmap result = EMPTY;
+        for (SlotBitmap bitmap : bitmaps) {
+            result = result.or(bitmap);
+        }
+        return result;
+    }
+
+    Builder edit() {
+        return new Builder(this);
+    }
+
+    private static int find(char[] keys, int size, char key) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (keys[middle] < key) {
+                low = middle + 1;
+            } else if (keys[middle] > key) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Collects changes to a bitmap, the original bitmap is left untouched
+     */
+    static final class Builder {
+        private SlotBitmap base;
+        private char[] keys;
+        private Container[] containers;
+        private boolean[] owned;
+        private int size;
+
+        private Builder(SlotBitmap base) {
+            this.base = base;
+        }
+
+        /**
+         * @return <tt>true</tt> if the slot wasn't in the set
+         */
+        boolean add(int slot) {
+            copy();
+            char key = (char) (slot >>> 16);
+            int index = find(keys, size, key);
+            if (index < 0) {
+                index = -index - 1;
+                if (size == keys.length) {
+                    keys = Arrays.copyOf(keys, Math.max(size * 2, 4));
+                    containers = Arrays.copyOf(containers, keys.length);
+                    owned = Arrays.copyOf(owned, keys.length);
+                }
+                System.arraycopy(keys, index, keys, index + 1, size - index);
+                System.arraycopy(containers, index, containers, index + 1, size - index);
+                System.arraycopy(owned, index, owned, index + 1, size - index);
+                keys[index] = key;
+                containers[index] = new Container(new char[4], null, 0);
+                owned[index] = true;
+                size++;
+            }
+            return own(index).add((char) slot);
+        }
+
+        /**
+         * @return <tt>true</tt> if the slot was in the set
+         */
+        boolean remove(int slot) {
+            int index = find(keys != null ? keys : base.keys, keys != null ? size : base.size, (char) (slot >>> 16));
+            if (index < 0) {
+                return false;
+            }
+            copy();
+            Container container = own(index);
+            if (!container.remove((char) slot)) {
+                return false;
+            }
+            if (container.cardinality == 0) {
+                System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+                System.arraycopy(containers, index + 1, containers, index, size - index - 1);
+                System.arraycopy(owned, index + 1, owned, index, size - index - 1);
+                size--;
+            }
+            return true;
+        }
+
+        boolean isChanged() {
+            return keys != null;
+        }
+
+        /**
+         * @return the new bitmap or the original bitmap if nothing changed
+         */
+        SlotBitmap build() {
+            if (keys == null) return base;
+            base = new SlotBitmap(Arrays.copyOf(keys, size), Arrays.copyOf(containers, size), size);
+            keys = null;
+            containers = null;
+            owned = null;
+            return base;
+        }
+
+        private Container own(int index) {
+            if (!owned[index]) {
+                containers[index] = containers[index].copy();
+                owned[index] = true;
+            }
+            return containers[index];
+        }
+
+        private void copy() {
+            if (keys == null) {
+                keys = Arrays.copyOf(base.keys, Math.max(base.size, 4));
+                containers = Arrays.copyOf(base.containers, keys.length);
+                owned = new boolean[keys.length];
+                size = base.size;
+            }
+        }
+    }
+
+    /**
+     * The slots sharing their upper 16 bits, as a sorted array of the lower 16 bits or as a bitmap
+     */
+    private static final class Container {
+        private char[] array;
+        private long[] bits;
+        private int cardinality;
+
+        private Container(char[] array, long[] bits, int cardinality) {
+            this.array = array;
+            this.bits = bits;
+            this.cardinality = cardinality;
+        }
+
+        private boolean contains(char value) {
+            if (bits != null) {
+                return (bits[value >>> 6] & (1L << value)) != 0;
+            }
+            return Arrays.binarySearch(array, 0, cardinality, value) >= 0;
+        }
+
+        private boolean add(char value) {
+            if (bits != null) {
+                long word = bits[value >>> 6];
+                bits[value >>> 6] = word | (1L << value);
+                if (word == bits[value >>> 6]) return false;
+                cardinality++;
+                return true;
+            }
+            int index = Arrays.binarySearch(array, 0, cardinality, value);
+            if (index >= 0) return false;
+            if (cardinality == ARRAY_MAX) {
+                bits = toBits();
+                array = null;
+                return add(value);
+            }
+            index = -index - 1;
+            if (cardinality == array.length) {
+                array = Arrays.copyOf(array, Math.min(Math.max(cardinality * 2, 4), ARRAY_MAX));
+            }
+            System.arraycopy(array, index, array, index + 1, cardinality - index);
+            array[index] = value;
+            cardinality++;
+            return true;
+        }
+
+        private boolean remove(char value) {
+            if (bits != null) {
+                long word = bits[value >>> 6];
+                bits[value >>> 6] = word & ~(1L << value);
+                if (word == bits[value >>> 6]) return false;
+                cardinality--;
+                // converting back only well below the limit keeps a container near it from flipping back and forth
+                if (cardinality < ARRAY_MAX / 2) {
+                    array = toArray(bits, cardinality);
+                    bits = null;
+                }
+                return true;
+            }
+            int index = Arrays.binarySearch(array, 0, cardinality, value);
+            if (index < 0) return false;
+            System.arraycopy(array, index + 1, array, index, cardinality - index - 1);
+            cardinality--;
+            return true;
+        }
+
+        private Container copy() {
+            return new Container(array != null ? array.clone() : null, bits != null ? bits.clone() : null, cardinality);
+        }
+
+        private void forEach(int high, IntConsumer consumer) {
+            if (bits == null) {
+                for (int i = 0; i < cardinality; i++) {
+                    consumer.accept(high | array[i]);
+                }
+                return;
+            }
+            for (int i = 0; i < WORDS; i++) {
+                long word = bits[i];
+                while (word != 0) {
+                    consumer.accept(high | i << 6 | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+
+        private Container and(Container other) {
+            if (bits == null && other.bits == null) {
+                char[] result = new char[Math.min(cardinality, other.cardinality)];
+                int count = 0;
+                for (int i = 0, j = 0; i < cardinality && j < other.cardinality; ) {
+                    if (array[i] < other.array[j]) {
+                        i++;
+                    } else if (array[i] > other.array[j]) {
+                        j++;
+                    } else {
+                        result[count++] = array[i];
+                        i++;
+                        j++;
+                    }
+                }
+                return new Container(result, null, count);
+            }
+            if (bits == null || other.bits == null) {
+                Container sparse = bits == null ? this : other;
+                Container dense = bits == null ? other : this;
+                char[] result = new char[sparse.cardinality];
+                int count = 0;
+                for (int i = 0; i < sparse.cardinality; i++) {
+                    if (dense.contains(sparse.array[i])) {
+                        result[count++] = sparse.array[i];
+                    }
+                }
+                return new Container(result, null, count);
+            }
+            long[] result = new long[WORDS];
+            for (int i = 0; i < WORDS; i++) {
+                result[i] = bits[i] & other.bits[i];
+            }
+            return fromBits(result);
+        }
+
+        private Container or(Container other) {
+            if (bits == null && other.bits == null && cardinality + other.cardinality <= ARRAY_MAX) {
+                char[] result = new char[cardinality + other.cardinality];
+                int count = 0;
+                int i = 0;
+                int j = 0;
+                while (i < cardinality || j < other.cardinality) {
+                    if (j == other.cardinality || (i < cardinality && array[i] < other.array[j])) {
+                        result[count++] = array[i++];
+                    } else if (i == cardinality || array[i] > other.array[j]) {
+                        result[count++] = other.array[j++];
+                    } else {
+                        result[count++] = array[i++];
+                        j++;
+                    }
+                }
+                return new Container(result, null, count);
+            }
+            long[] result = toBits();
+            if (other.bits != null) {
+                for (int i = 0; i < WORDS; i++) {
+                    result[i] |= other.bits[i];
+                }
+            } else {
+                for (int i = 0; i < other.cardinality; i++) {
+                    result[other.array[i] >>> 6] |= 1L << other.array[i];
+                }
+            }
+            return fromBits(result);
+        }
+
+        private Container andNot(Container other) {
+            if (bits == null) {
+                char[] result = new char[cardinality];
+                int count = 0;
+                for (int i = 0; i < cardinality; i++) {
+                    if (!other.contains(array[i])) {
+                        result[count++] = array[i];
+                    }
+                }
+                return new Container(result, null, count);
+            }
+            long[] result = bits.clone();
+            if (other.bits != null) {
+                for (int i = 0; i < WORDS; i++) {
+                    result[i] &= ~other.bits[i];
+                }
+            } else {
+                for (int i = 0; i < other.cardinality; i++) {
+                    result[other.array[i] >>> 6] &= ~(1L << other.array[i]);
+                }
+            }
+            return fromBits(result);
+        }
+
+        private long[] toBits() {
+            if (bits != null) {
+                return bits.clone();
+            }
+            long[] result = new long[WORDS];
+            for (int i = 0; i < cardinality; i++) {
+                result[array[i] >>> 6] |= 1L << array[i];
+            }
+            return result;
+        }
+
+        private static Container fromBits(long[] bits) {
+            int cardinality = 0;
+            for (long word : bits) {
+                cardinality += Long.bitCount(word);
+            }
+            if (cardinality <= ARRAY_MAX) {
+                return new Container(toArray(bits, cardinality), null, cardinality);
+            }
+            return new Container(null, bits, cardinality);
+        }
+
+        private static char[] toArray(long[] bits, int cardinality) {
+            char[] array = new char[Math.max(cardinality, 4)];
+            int count = 0;
+            for (int i = 0; i < WORDS; i++) {
+                long word = bits[i];
+                while (word != 0) {
+                    array[count++] = (char) (i << 6 | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return array;
+        }
+    }
+}
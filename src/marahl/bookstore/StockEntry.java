@@ -0,0 +1,44 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+
+/**
+ * A book of a {@link BookStore} with its ID and quantity, as returned by {@link BookStore#spliterator(String)}
+ */
+public final class StockEntry {
+    private final int id;
+    private final Book book;
+    private final int quantity;
+
+    StockEntry(int id, Book book, int quantity) {
+        this.id = id;
+        this.book = book;
+        this.quantity = quantity;
+    }
+
+    /**
+     * @return the ID of the book
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return the book
+     */
+    public Book getBook() {
+        return book;
+    }
+
+    /**
+     * @return the quantity of the book when the entry was created
+     */
+    public int getQuantity() {
+        return quantity;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d=%s (%d)", id, book, quantity);
+    }
+}
@@ -0,0 +1,363 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports the stock of a {@link BookStore} and imports it into another store, keeping the IDs of the books.
+ * <p>
+ * Two formats are supported:
+ * <ul>
+ * <li>CSV as described by RFC 4180 with the header <tt>id,title,author,price,quantity</tt>. Fields containing commas,
+ * quotes or line breaks are quoted and prices are written as plain decimal numbers without grouping.</li>
+ * <li>A GZIP compressed binary format storing the stock column by column, so that similar values end up next to each
+ * other and compress well. IDs are delta encoded, authors are written once in a dictionary and referred to by index,
+ * and all numbers are written as variable length integers.</li>
+ * </ul>
+ * Books whose ID already exists in the store with the same title, author and price only get their quantity updated.
+ * An import with an ID that belongs to a different book, or with a negative quantity, fails without changing the store.
+ */
+public class StockExport {
+    private static final String CSV_HEADER = "id,title,author,price,quantity";
+    private static final int CSV_FIELD_COUNT = 5;
+    private static final int BINARY_MAGIC = 0x424b5331;
+    private static final int BUFFER_SIZE = 65536;
+
+    /**
+     * Writes the snapshot as CSV
+     *
+     * @param snapshot the stock to write
+     * @param writer   where to write, isn't closed
+     * @throws IOException if writing fails
+     */
+    public static void writeCsv(StockSnapshot snapshot, Writer writer) throws IOException {
+        BufferedWriter out = new BufferedWriter(writer, BUFFER_SIZE);
+        out.write(CSV_HEADER);
+        out.write("\r\n");
+        for (int i = 0; i < snapshot.size(); i++) {
+            Book book = snapshot.getBookAt(i);
+            out.write(Integer.toString(snapshot.getIdAt(i)));
+            out.write(',');
+            writeCsvField(out, book.getTitle());
+            out.write(',');
+            writeCsvField(out, book.getAuthor());
+            out.write(',');
+            out.write(book.getPrice().toPlainString());
+            out.write(',');
+            out.write(Integer.toString(snapshot.getQuantityAt(i)));
+            out.write("\r\n");
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads books written by {@link #writeCsv(StockSnapshot, Writer)} into the store
+     *
+     * @param reader where to read from, isn't closed
+     * @param store  the store to import into
+     * @return the number of books read
+     * @throws IOException    if reading fails
+     * @throws ParseException if the CSV is malformed or has a negative quantity, the error offset is the number of
+     *                        the record, or if it has an ID of a different book in the store, the error offset is
+     *                        the number of records
+     */
+    public static int readCsv(Reader reader, BookStore store) throws IOException, ParseException {
+        PushbackReader in = new PushbackReader(new BufferedReader(reader, BUFFER_SIZE), 1);
+        List<String> record = new ArrayList<>(CSV_FIELD_COUNT);
+        if (!readCsvRecord(in, record) || !String.join(",", record).equals(CSV_HEADER)) {
+            throw new ParseException(String.format("Expected the header %s", CSV_HEADER), 0);
+        }
+        List<Integer> ids = new ArrayList<>();
+        List<Book> books = new ArrayList<>();
+        List<Integer> quantities = new ArrayList<>();
+        int recordNumber = 0;
+        while (readCsvRecord(in, record)) {
+            recordNumber++;
+            if (record.size() == 1 && record.get(0).isEmpty()) continue;
+            try {
+                if (record.size() != CSV_FIELD_COUNT) {
+                    throw new IndexOutOfBoundsException(String.format("Expected %d fields but found %d", CSV_FIELD_COUNT, record.size()));
+                }
+                ids.add(Integer.parseInt(record.get(0)));
+                books.add(new Book(record.get(1), record.get(2), new BigDecimal(record.get(3))));
+                int quantity = Integer.parseInt(record.get(4));
+                if (quantity < 0) {
+                    throw new NumberFormatException(String.format("Negative quantity %d", quantity));
+                }
+                quantities.add(quantity);
+            } catch (IndexOutOfBoundsException | NumberFormatException e) {
+                String message = String.format("While parsing record: %s\n%s %s", String.join(",", record), e.getClass().getName(), e.getMessage());
+                ParseException pex = new ParseException(message, recordNumber);
+                pex.setStackTrace(e.getStackTrace());
+                throw pex;
+            }
+        }
+        try {
+            store.restore(ids.stream().mapToInt(Integer::intValue).toArray(), books.toArray(new Book[books.size()]),
+                    quantities.stream().mapToInt(Integer::intValue).toArray());
+        } catch (IllegalArgumentException e) {
+            throw new ParseException(e.getMessage(), recordNumber);
+        }
+        return books.size();
+    }
+
+    /**
+     * Writes the snapshot in the compressed binary format
+     *
+     * @param snapshot the stock to write
+     * @param output   where to write, isn't closed
+     * @throws IOException if writing fails
+     */
+    public static void writeBinary(StockSnapshot snapshot, OutputStream output) throws IOException {
+        GZIPOutputStream gzip = new GZIPOutputStream(output, BUFFER_SIZE);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(gzip, BUFFER_SIZE));
+        int size = snapshot.size();
+        out.writeInt(BINARY_MAGIC);
+        writeVarInt(out, size);
+
+        int previousId = 0;
+        for (int i = 0; i < size; i++) {
+            writeVarInt(out, zigZag(snapshot.getIdAt(i) - previousId));
+            previousId = snapshot.getIdAt(i);
+        }
+
+        Map<String, Integer> authors = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            authors.putIfAbsent(snapshot.getBookAt(i).getAuthor(), authors.size());
+        }
+        writeVarInt(out, authors.size());
+        for (String author : authors.keySet()) {
+            writeString(out, author);
+        }
+        for (int i = 0; i < size; i++) {
+            writeVarInt(out, authors.get(snapshot.getBookAt(i).getAuthor()));
+        }
+
+        for (int i = 0; i < size; i++) {
+            writeString(out, snapshot.getBookAt(i).getTitle());
+        }
+
+        for (int i = 0; i < size; i++) {
+            BigDecimal price = snapshot.getBookAt(i).getPrice();
+            byte[] unscaled = price.unscaledValue().toByteArray();
+            writeVarInt(out, zigZag(price.scale()));
+            writeVarInt(out, unscaled.length);
+            out.write(unscaled);
+        }
+
+        for (int i = 0; i < size; i++) {
+            writeVarInt(out, snapshot.getQuantityAt(i));
+        }
+        out.flush();
+        gzip.finish();
+    }
+
+    /**
+     * Reads books written by {@link #writeBinary(StockSnapshot, OutputStream)} into the store
+     *
+     * @param input where to read from, isn't closed
+     * @param store the store to import into
+     * @return the number of books read
+     * @throws IOException if reading fails, the data isn't in the binary format or has a negative quantity or an ID
+     *                     of a different book in the store
+     */
+    public static int readBinary(InputStream input, BookStore store) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(input, BUFFER_SIZE), BUFFER_SIZE));
+        if (in.readInt() != BINARY_MAGIC) {
+            throw new IOException("Not a stock export");
+        }
+        int size = readLength(in);
+
+        // the counts are only trusted as far as the data goes, so a corrupt count runs out of data, not memory
+        int[] ids = new int[Math.min(size, BUFFER_SIZE)];
+        int previousId = 0;
+        for (int i = 0; i < size; i++) {
+            if (i == ids.length) {
+                ids = Arrays.copyOf(ids, (int) Math.min(size, 2L * ids.length));
+            }
+            ids[i] = previousId + unZigZag(readVarInt(in));
+            previousId = ids[i];
+        }
+
+        int authorCount = readLength(in);
+        String[] authors = new String[Math.min(authorCount, BUFFER_SIZE)];
+        for (int i = 0; i < authorCount; i++) {
+            if (i == authors.length) {
+                authors = Arrays.copyOf(authors, (int) Math.min(authorCount, 2L * authors.length));
+            }
+            authors[i] = readString(in);
+        }
+        int[] bookAuthors = new int[size];
+        for (int i = 0; i < size; i++) {
+            bookAuthors[i] = readVarInt(in);
+            if (bookAuthors[i] < 0 || bookAuthors[i] >= authors.length) {
+                throw new IOException(String.format("Unknown author (%d)", bookAuthors[i]));
+            }
+        }
+
+        String[] titles = new String[size];
+        for (int i = 0; i < size; i++) {
+            titles[i] = readString(in);
+        }
+
+        Book[] books = new Book[size];
+        for (int i = 0; i < size; i++) {
+            int scale = unZigZag(readVarInt(in));
+            byte[] unscaled = readBytes(in);
+            books[i] = new Book(titles[i], authors[bookAuthors[i]], new BigDecimal(new BigInteger(unscaled), scale));
+        }
+
+        int[] quantities = new int[size];
+        for (int i = 0; i < size; i++) {
+            quantities[i] = readVarInt(in);
+            if (quantities[i] < 0) {
+                throw new IOException(String.format("Negative quantity (%d)", quantities[i]));
+            }
+        }
+        try {
+            store.restore(ids, books, quantities);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        return size;
+    }
+
+    private static void writeCsvField(Writer out, String field) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < field.length() && !quote; i++) {
+            char c = field.charAt(i);
+            quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (quote) {
+            out.write('"');
+            out.write(field.replace("\"", "\"\""));
+            out.write('"');
+        } else {
+            out.write(field);
+        }
+    }
+
+    /**
+     * Reads the fields of the next record, line breaks inside quoted fields are part of the field
+     *
+     * @return <tt>false</tt> if there were no more records
+     */
+    private static boolean readCsvRecord(PushbackReader in, List<String> record) throws IOException, ParseException {
+        record.clear();
+        int c = in.read();
+        if (c == -1) {
+            return false;
+        }
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        while (true) {
+            if (quoted) {
+                if (c == -1) {
+                    throw new ParseException("Unterminated quoted field", 0);
+                } else if (c == '"') {
+                    int next = in.read();
+                    if (next == '"') {
+                        field.append('"');
+                    } else {
+                        quoted = false;
+                        if (next != -1) in.unread(next);
+                    }
+                } else {
+                    field.append((char) c);
+                }
+            } else if (c == '"' && field.length() == 0) {
+                quoted = true;
+            } else if (c == ',') {
+                record.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\r' || c == '\n' || c == -1) {
+                if (c == '\r') {
+                    int next = in.read();
+                    if (next != '\n' && next != -1) in.unread(next);
+                }
+                record.add(field.toString());
+                return true;
+            } else {
+                field.append((char) c);
+            }
+            c = in.read();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a length and that many bytes, growing the array as the bytes arrive so a corrupt length runs into the end
+     * of the data instead of allocating it up front
+     */
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = readLength(in);
+        byte[] bytes = new byte[Math.min(length, BUFFER_SIZE)];
+        for (int read = 0; read < length; read = bytes.length) {
+            if (read == bytes.length) {
+                bytes = Arrays.copyOf(bytes, (int) Math.min(length, 2L * bytes.length));
+            }
+            in.readFully(bytes, read, bytes.length - read);
+        }
+        return bytes;
+    }
+
+    private static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Writes the int seven bits at a time, lowest bits first, with the high bit set on every byte but the last
+     */
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * Reads a count or a length, which can't be negative
+     */
+    private static int readLength(DataInputStream in) throws IOException {
+        int length = readVarInt(in);
+        if (length < 0) {
+            throw new IOException(String.format("Corrupt length (%d)", length));
+        }
+        return length;
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+}
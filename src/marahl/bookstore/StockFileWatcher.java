@@ -0,0 +1,287 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+import marahl.bookstore.books.BookParser;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.text.ParseException;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps a {@link BookStore} in sync with a stock file written in the {@link BookParser} format.
+ * <p>
+ * The file is split into chunks of whole lines where the chunk boundaries depend on the content of the lines
+ * rather than their position, so an inserted or edited line only changes the chunk it lives in. Each chunk is
+ * identified by its checksum, and on reload only chunks whose checksum wasn't seen in the previous version of
+ * the file are parsed. The rows of new chunks are added and the rows of vanished chunks are subtracted, and the
+ * net difference per book is applied to the store, the added books in one {@link BookStore#addBatch(Map.Entry[])} and
+ * the reduced ones with {@link BookStore#reduceQuantity(int, int)}.
+ * <p>
+ * Rows are matched by title, author and price, so rows describing the same book are merged into one stocked book.
+ */
+public class StockFileWatcher implements Closeable {
+    private static final int BOUNDARY_MASK = 0x3f;
+    private static final int MAX_CHUNK_LINES = 1024;
+
+    private final Path file;
+    private final BookStore store;
+    private final Consumer<? super Exception> errorHandler;
+    private final Map<String, Book> books = new HashMap<>();
+    private final Map<Book, Integer> rowCounts = new HashMap<>();
+    private List<Chunk> chunks = new ArrayList<>();
+    private WatchService watchService;
+    private Thread watchThread;
+
+    /**
+     * Creates a watcher for the file, nothing is loaded until {@link #reload()} or {@link #start()} is called.
+     * Errors while reloading in the background are passed to the uncaught exception handler of the watching thread.
+     *
+     * @param file  the stock file to keep track of
+     * @param store the store the rows of the file should be applied to
+     */
+    public StockFileWatcher(Path file, BookStore store) {
+        this(file, store, null);
+    }
+
+    /**
+     * Creates a watcher for the file, nothing is loaded until {@link #reload()} or {@link #start()} is called
+     *
+     * @param file         the stock file to keep track of
+     * @param store        the store the rows of the file should be applied to
+     * @param errorHandler called with the {@link IOException} or {@link ParseException} of a failed background
+     *                     reload, null to pass them to the uncaught exception handler of the watching thread
+     */
+    public StockFileWatcher(Path file, BookStore store, Consumer<? super Exception> errorHandler) {
+        if (file == null || store == null) {
+            throw new NullPointerException();
+        }
+        this.file = file.toAbsolutePath();
+        this.store = store;
+        this.errorHandler = errorHandler != null ? errorHandler
+                : e -> Thread.currentThread().getUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), e);
+    }
+
+    /**
+     * Reads the file and applies everything that changed since the last reload to the store.
+     * The first reload adds every row of the file.
+     *
+     * @return the number of chunks that had to be parsed
+     * @throws IOException    if the file couldn't be read
+     * @throws ParseException if a changed row couldn't be parsed, nothing is applied to the store in that case
+     */
+    public synchronized int reload() throws IOException, ParseException {
+        byte[] content = Files.exists(file) ? Files.readAllBytes(file) : new byte[0];
+        List<Chunk> newChunks = split(content);
+
+        Map<Long, Deque<Chunk>> oldChunks = new HashMap<>();
+        for (Chunk chunk : chunks) {
+            oldChunks.computeIfAbsent(chunk.checksum, k -> new ArrayDeque<>()).add(chunk);
+        }
+
+        Map<Book, Integer> deltas = new LinkedHashMap<>();
+        Map<Book, Integer> rowChanges = new HashMap<>();
+        Map<String, Book> newBooks = new HashMap<>();
+        int parsedChunks = 0;
+        for (Chunk chunk : newChunks) {
+            Deque<Chunk> sameChunks = oldChunks.get(chunk.checksum);
+            Chunk oldChunk = sameChunks == null ? null : sameChunks.poll();
+            if (oldChunk != null) {
+                chunk.books = oldChunk.books;
+                chunk.quantities = oldChunk.quantities;
+            } else {
+                parse(content, chunk, newBooks);
+                parsedChunks++;
+                addDeltas(deltas, rowChanges, chunk, 1);
+            }
+        }
+        for (Deque<Chunk> removedChunks : oldChunks.values()) {
+            for (Chunk chunk : removedChunks) {
+                addDeltas(deltas, rowChanges, chunk, -1);
+            }
+        }
+
+        books.putAll(newBooks);
+        chunks = newChunks;
+        apply(deltas, rowChanges);
+        return parsedChunks;
+    }
+
+    /**
+     * @return the number of distinct books in the rows of the file as of the last reload
+     */
+    synchronized int getBookCount() {
+        return rowCounts.size();
+    }
+
+    /**
+     * Starts watching the file for changes in a background thread and loads it.
+     * Errors while reloading in the background go to the error handler and the file is read again on the next change.
+     *
+     * @throws IOException    if the file couldn't be watched or read
+     * @throws ParseException if the file couldn't be parsed, the file is still watched and applied once it is fixed
+     */
+    public synchronized void start() throws IOException, ParseException {
+        if (watchThread != null) return;
+        Path directory = file.getParent();
+        watchService = directory.getFileSystem().newWatchService();
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        watchThread = new Thread(this::watch, "stock-file-watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+        reload();
+    }
+
+    /**
+     * Stops watching the file
+     *
+     * @throws IOException if the watch service couldn't be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (watchThread != null) {
+            watchThread.interrupt();
+            watchThread = null;
+        }
+        if (watchService != null) {
+            watchService.close();
+            watchService = null;
+        }
+    }
+
+    private void watch() {
+        WatchService service = watchService;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = service.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    Object context = event.context();
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                            || (context instanceof Path && file.getFileName().equals(context))) {
+                        changed = true;
+                    }
+                }
+                key.reset();
+                if (changed) {
+                    try {
+                        reload();
+                    } catch (IOException | ParseException e) {
+                        errorHandler.accept(e);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Stopped by close()
+        }
+    }
+
+    /**
+     * Applies the net quantity changes to the store and forgets the books that no longer have any rows in the file
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void apply(Map<Book, Integer> deltas, Map<Book, Integer> rowChanges) {
+        for (Map.Entry<Book, Integer> change : rowChanges.entrySet()) {
+            Book book = change.getKey();
+            if (rowCounts.merge(book, change.getValue(), (rows, added) -> rows + added > 0 ? rows + added : null) == null) {
+                books.remove(getKey(book));
+            }
+        }
+        List<Map.Entry<Book, Integer>> added = new ArrayList<>();
+        for (Map.Entry<Book, Integer> delta : deltas.entrySet()) {
+            Book book = delta.getKey();
+            int quantity = delta.getValue();
+            if (quantity > 0) {
+                added.add(new AbstractMap.SimpleImmutableEntry<>(book, quantity));
+            } else if (quantity < 0) {
+                int id = store.getBookID(book);
+                if (id >= 0) {
+                    store.reduceQuantity(id, -quantity);
+                }
+            }
+        }
+        if (!added.isEmpty()) {
+            store.addBatch(added.toArray(new Map.Entry[added.size()]));
+        }
+    }
+
+    private static void addDeltas(Map<Book, Integer> deltas, Map<Book, Integer> rowChanges, Chunk chunk, int sign) {
+        for (int i = 0; i < chunk.books.length; i++) {
+            deltas.merge(chunk.books[i], sign * chunk.quantities[i], Integer::sum);
+            rowChanges.merge(chunk.books[i], sign, Integer::sum);
+        }
+    }
+
+    private void parse(byte[] content, Chunk chunk, Map<String, Book> newBooks) throws ParseException {
+        String text = new String(content, chunk.offset, chunk.length, StandardCharsets.UTF_8);
+        Map.Entry<Book, Integer>[] rows = BookParser.parseBooks(text.replace("\r", ""));
+        chunk.books = new Book[rows.length];
+        chunk.quantities = new int[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            Book parsed = rows[i].getKey();
+            String key = getKey(parsed);
+            Book book = books.get(key);
+            if (book == null) {
+                book = newBooks.computeIfAbsent(key, k -> parsed);
+            }
+            chunk.books[i] = book;
+            chunk.quantities[i] = rows[i].getValue();
+        }
+    }
+
+    private static String getKey(Book book) {
+        BigDecimal price = book.getPrice();
+        return book.getTitle() + '\n' + book.getAuthor() + '\n' + price.stripTrailingZeros().toPlainString();
+    }
+
+    /**
+     * Splits the content into chunks of whole lines. A chunk ends after a line whose checksum has its lowest bits
+     * cleared, so boundaries follow the content and re-synchronize right after an inserted or removed line.
+     */
+    private static List<Chunk> split(byte[] content) {
+        List<Chunk> chunks = new ArrayList<>();
+        CRC32 lineCrc = new CRC32();
+        int chunkStart = 0;
+        int lines = 0;
+        long checksum = 1;
+        int lineStart = 0;
+        for (int i = 0; i <= content.length; i++) {
+            if (i < content.length && content[i] != '\n') continue;
+            int lineEnd = Math.min(i + 1, content.length);
+            if (lineEnd > lineStart) {
+                lineCrc.reset();
+                lineCrc.update(content, lineStart, i - lineStart);
+                long value = lineCrc.getValue();
+                checksum = checksum * 0x9E3779B97F4A7C15L + value + 1;
+                lines++;
+                if ((value & BOUNDARY_MASK) == 0 || lines >= MAX_CHUNK_LINES || lineEnd == content.length) {
+                    chunks.add(new Chunk(chunkStart, lineEnd - chunkStart, checksum ^ (lineEnd - chunkStart)));
+                    chunkStart = lineEnd;
+                    lines = 0;
+                    checksum = 1;
+                }
+            }
+            lineStart = lineEnd;
+        }
+        return chunks;
+    }
+
+    private static class Chunk {
+        private final int offset;
+        private final int length;
+        private final long checksum;
+        private Book[] books;
+        private int[] quantities;
+
+        private Chunk(int offset, int length, long checksum) {
+            this.offset = offset;
+            this.length = length;
+            this.checksum = checksum;
+        }
+    }
+}
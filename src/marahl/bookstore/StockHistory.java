@@ -0,0 +1,306 @@
+package marahl.bookstore;
+
+import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * An append only record of how the quantity and price of every book in a {@link BookStore} changed over time.
+ * <p>
+ * Each book has its own series of changes. Timestamps and quantities are stored as deltas from the previous change in
+ * int arrays, and every {@link #CHECKPOINT_INTERVAL} changes a checkpoint stores the absolute timestamp and quantity.
+ * A query binary searches the checkpoints and then adds up at most one interval of deltas. Prices rarely change so
+ * they are stored separately, only when they change.
+ * <p>
+ * Changes older than the retention time are dropped a checkpoint interval at a time, and the series of a removed book
+ * is dropped once all of it is older than the retention time. Every new checkpoint and removal is queued in time
+ * order, and each change handles the queued ones that have become older than the retention time, so books that stopped
+ * changing are trimmed too without going through the series of every book.
+ */
+public class StockHistory {
+    /**
+     * Number of changes between checkpoints
+     */
+    public static final int CHECKPOINT_INTERVAL = 64;
+    /**
+     * Default time changes are kept, 90 days
+     */
+    public static final long DEFAULT_RETENTION_MILLIS = 90L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Returned by {@link #getQuantity(int, long)} for times older than the retained history
+     */
+    public static final int UNKNOWN = -1;
+
+    private final LongSupplier clock;
+    private final Map<Integer, Series> series = new ConcurrentHashMap<>();
+    private final Deque<Expiry> expiries = new ArrayDeque<>();
+    private volatile long retentionMillis = DEFAULT_RETENTION_MILLIS;
+
+    StockHistory(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Sets how long changes are kept, older changes are dropped as new changes are recorded
+     *
+     * @param retentionMillis the retention time in milliseconds
+     * @throws IllegalArgumentException if the retention time isn't positive
+     */
+    public void setRetentionMillis(long retentionMillis) {
+        if (retentionMillis <= 0) {
+            throw new IllegalArgumentException(String.format("The retention time has to be positive (%d)", retentionMillis));
+        }
+        this.retentionMillis = retentionMillis;
+    }
+
+    public long getRetentionMillis() {
+        return retentionMillis;
+    }
+
+    /**
+     * Records the quantity and price of a book at the current time, called by the store while it's locked
+     *
+     * @param id       the id of the book
+     * @param quantity the quantity of the book
+     * @param price    the price of the book or null if the book was removed from the store
+     */
+    void record(int id, int quantity, BigDecimal price) {
+        long now = clock.getAsLong();
+        long cutoff = now - retentionMillis;
+        Series bookSeries = series.computeIfAbsent(id, key -> new Series());
+        long expiryTime = bookSeries.record(now, quantity, price, cutoff);
+        if (expiryTime >= 0) {
+            expiries.add(new Expiry(expiryTime, id, bookSeries));
+        }
+        dropExpired(cutoff);
+    }
+
+    /**
+     * Returns the quantity a book had at the time
+     *
+     * @param id   the id of the book
+     * @param time milliseconds since the epoch
+     * @return the quantity, 0 if the book wasn't in the store, or {@link #UNKNOWN} if the time is older than the retained
+     * history of the book
+     */
+    public int getQuantity(int id, long time) {
+        Series bookSeries = series.get(id);
+        return bookSeries != null ? bookSeries.getQuantity(time) : 0;
+    }
+
+    /**
+     * Returns the price a book had at the time
+     *
+     * @param id   the id of the book
+     * @param time milliseconds since the epoch
+     * @return the price or null if the book wasn't in the store or the time is older than the retained history
+     */
+    public BigDecimal getPrice(int id, long time) {
+        Series bookSeries = series.get(id);
+        return bookSeries != null ? bookSeries.getPrice(time) : null;
+    }
+
+    /**
+     * @return the number of recorded changes still retained for all books
+     */
+    public long size() {
+        long size = 0;
+        for (Series bookSeries : series.values()) {
+            size += bookSeries.size();
+        }
+        return size;
+    }
+
+    /**
+     * Trims the series whose queued checkpoints or removals are older than the cutoff, and drops the expired ones
+     */
+    private void dropExpired(long cutoff) {
+        while (!expiries.isEmpty() && expiries.peek().time <= cutoff) {
+            Expiry expiry = expiries.poll();
+            if (expiry.series.trim(cutoff)) {
+                series.remove(expiry.id, expiry.series);
+            }
+        }
+    }
+
+    /**
+     * A checkpoint or removal of a book, from when the series of the book can be trimmed or dropped. The series may
+     * have changed since it was queued, so it is only checked again.
+     */
+    private static final class Expiry {
+        private final long time;
+        private final int id;
+        private final Series series;
+
+        private Expiry(long time, int id, Series series) {
+            this.time = time;
+            this.id = id;
+            this.series = series;
+        }
+    }
+
+    /**
+     * The changes of one book
+     */
+    private static final class Series {
+        private int size;
+        private int[] timeDeltas = new int[4];
+        private int[] quantityDeltas = new int[4];
+        private long lastTime;
+        private int lastQuantity;
+
+        private int checkpointCount;
+        private int[] checkpointIndexes = new int[1];
+        private long[] checkpointTimes = new long[1];
+        private int[] checkpointQuantities = new int[1];
+
+        private int priceCount;
+        private long[] priceTimes = new long[1];
+        private BigDecimal[] prices = new BigDecimal[1];
+
+        private boolean truncated;
+
+        /**
+         * @return the time of the change if it added a checkpoint after the first one or removed the book, when
+         * something may be dropped once the time is older than the retention time, otherwise -1
+         */
+        private synchronized long record(long time, int quantity, BigDecimal price, long cutoff) {
+            time = Math.max(time, lastTime);
+            if (size == timeDeltas.length) {
+                timeDeltas = Arrays.copyOf(timeDeltas, size * 2);
+                quantityDeltas = Arrays.copyOf(quantityDeltas, size * 2);
+            }
+            long timeDelta = time - lastTime;
+            boolean expires = price == null;
+            if (checkpointCount == 0 || size - checkpointIndexes[checkpointCount - 1] >= CHECKPOINT_INTERVAL
+                    || timeDelta > Integer.MAX_VALUE) {
+                expires |= checkpointCount > 0;
+                addCheckpoint(size, time, quantity);
+                timeDelta = 0;
+            }
+            timeDeltas[size] = (int) timeDelta;
+            quantityDeltas[size] = quantity - lastQuantity;
+            size++;
+            lastTime = time;
+            lastQuantity = quantity;
+
+            BigDecimal lastPrice = priceCount > 0 ? prices[priceCount - 1] : null;
+            if (priceCount == 0 || (price == null ? lastPrice != null : lastPrice == null || price.compareTo(lastPrice) != 0)) {
+                if (priceCount == prices.length) {
+                    priceTimes = Arrays.copyOf(priceTimes, priceCount * 2);
+                    prices = Arrays.copyOf(prices, priceCount * 2);
+                }
+                priceTimes[priceCount] = time;
+                prices[priceCount] = price;
+                priceCount++;
+            }
+            dropBefore(cutoff);
+            return expires ? time : -1;
+        }
+
+        private void addCheckpoint(int index, long time, int quantity) {
+            if (checkpointCount == checkpointIndexes.length) {
+                checkpointIndexes = Arrays.copyOf(checkpointIndexes, checkpointCount * 2);
+                checkpointTimes = Arrays.copyOf(checkpointTimes, checkpointCount * 2);
+                checkpointQuantities = Arrays.copyOf(checkpointQuantities, checkpointCount * 2);
+            }
+            checkpointIndexes[checkpointCount] = index;
+            checkpointTimes[checkpointCount] = time;
+            checkpointQuantities[checkpointCount] = quantity;
+            checkpointCount++;
+        }
+
+        private synchronized int getQuantity(long time) {
+            int checkpoint = findLast(checkpointTimes, checkpointCount, time);
+            if (checkpoint < 0) {
+                return truncated ? UNKNOWN : 0;
+            }
+            int index = checkpointIndexes[checkpoint];
+            long currentTime = checkpointTimes[checkpoint];
+            int quantity = checkpointQuantities[checkpoint];
+            int end = checkpoint + 1 < checkpointCount ? checkpointIndexes[checkpoint + 1] : size;
+            for (int i = index + 1; i < end && currentTime + timeDeltas[i] <= time; i++) {
+                currentTime += timeDeltas[i];
+                quantity += quantityDeltas[i];
+            }
+            return quantity;
+        }
+
+        private synchronized BigDecimal getPrice(long time) {
+            int index = findLast(priceTimes, priceCount, time);
+            return index >= 0 ? prices[index] : null;
+        }
+
+        private synchronized int size() {
+            return size;
+        }
+
+        /**
+         * Drops the oldest checkpoint intervals as long as the next checkpoint is older than the cutoff,
+         * so the history at the cutoff can still be answered
+         */
+        private void dropBefore(long cutoff) {
+            int dropCheckpoints = 0;
+            while (dropCheckpoints + 1 < checkpointCount && checkpointTimes[dropCheckpoints + 1] <= cutoff) {
+                dropCheckpoints++;
+            }
+            if (dropCheckpoints == 0) {
+                return;
+            }
+            int dropEntries = checkpointIndexes[dropCheckpoints];
+            size -= dropEntries;
+            System.arraycopy(timeDeltas, dropEntries, timeDeltas, 0, size);
+            System.arraycopy(quantityDeltas, dropEntries, quantityDeltas, 0, size);
+            checkpointCount -= dropCheckpoints;
+            System.arraycopy(checkpointTimes, dropCheckpoints, checkpointTimes, 0, checkpointCount);
+            System.arraycopy(checkpointQuantities, dropCheckpoints, checkpointQuantities, 0, checkpointCount);
+            for (int i = 0; i < checkpointCount; i++) {
+                checkpointIndexes[i] = checkpointIndexes[i + dropCheckpoints] - dropEntries;
+            }
+
+            int dropPrices = 0;
+            while (dropPrices + 1 < priceCount && priceTimes[dropPrices + 1] <= checkpointTimes[0]) {
+                dropPrices++;
+            }
+            priceCount -= dropPrices;
+            System.arraycopy(priceTimes, dropPrices, priceTimes, 0, priceCount);
+            System.arraycopy(prices, dropPrices, prices, 0, priceCount);
+            Arrays.fill(prices, priceCount, priceCount + dropPrices, null);
+            // the first price now starts at the first retained checkpoint
+            priceTimes[0] = Math.max(priceTimes[0], checkpointTimes[0]);
+            truncated = true;
+        }
+
+        /**
+         * Drops the changes older than the cutoff
+         *
+         * @return <tt>true</tt> if the book was removed and all of the series is older than the cutoff
+         */
+        private synchronized boolean trim(long cutoff) {
+            dropBefore(cutoff);
+            return lastQuantity == 0 && priceCount > 0 && prices[priceCount - 1] == null && lastTime <= cutoff;
+        }
+
+        /**
+         * Returns the index of the last time that is at or before the time, or -1 if all are after it
+         */
+        private static int findLast(long[] times, int count, long time) {
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (times[middle] <= time) {
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return high;
+        }
+    }
+}
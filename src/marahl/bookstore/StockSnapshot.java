@@ -0,0 +1,74 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+
+/**
+ * The books and quantities of a {@link BookStore} at one point in time.
+ * <p>
+ * The quantities are copied while the store is locked, so unlike reading the catalog and the quantities separately
+ * they always agree with each other. The snapshot also records the sequence of the last event published on the
+ * store's {@link ChangeFeed} before it was taken, a subscriber can continue from there.
+ * <p>
+ * The books are indexed from 0 to {@link #size()} - 1 in the order they were first added, which lets bulk work like
+ * {@link InventoryReport} split the snapshot into ranges and process them in parallel.
+ */
+public final class StockSnapshot {
+    private final Catalog catalog;
+    private final int[] ids;
+    private final Book[] books;
+    private final int[] quantities;
+    private final long sequence;
+
+    StockSnapshot(Catalog catalog, int[] ids, Book[] books, int[] quantities, long sequence) {
+        this.catalog = catalog;
+        this.ids = ids;
+        this.books = books;
+        this.quantities = quantities;
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return the books of the snapshot
+     */
+    public Catalog getCatalog() {
+        return catalog;
+    }
+
+    /**
+     * @return the sequence of the last change feed event included in the snapshot, -1 if there was none
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the number of books in the snapshot
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * @param index the index of the book, from 0 to {@link #size()} - 1
+     * @return the ID of the book
+     */
+    public int getIdAt(int index) {
+        return ids[index];
+    }
+
+    /**
+     * @param index the index of the book, from 0 to {@link #size()} - 1
+     * @return the book
+     */
+    public Book getBookAt(int index) {
+        return books[index];
+    }
+
+    /**
+     * @param index the index of the book, from 0 to {@link #size()} - 1
+     * @return the quantity of the book
+     */
+    public int getQuantityAt(int index) {
+        return quantities[index];
+    }
+}
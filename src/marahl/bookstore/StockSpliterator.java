@@ -0,0 +1,106 @@
+package marahl.bookstore;
+
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Walks a range of the slots of a {@link Catalog}, skipping holes and books that don't match the search. Nothing is
+ * copied up front, each book is looked up by the ID in its slot and its quantity read when it is reached.
+ * Splitting hands the lower half of the remaining slots to a new spliterator, keeping the catalog order.
+ */
+final class StockSpliterator implements Spliterator<StockEntry> {
+    private static final int MIN_SPLIT_SLOTS = 256;
+
+    private final Catalog catalog;
+    private final String query;
+    private final IntUnaryOperator quantities;
+    private int slot;
+    private final int end;
+
+    /**
+     * @param catalog    the catalog to walk
+     * @param query      the folded search string, books whose search key starts with it are included
+     * @param quantities the quantity of the book with an ID
+     */
+    StockSpliterator(Catalog catalog, String query, IntUnaryOperator quantities) {
+        this(catalog, query, quantities, 0, catalog.getSlotCount());
+    }
+
+    private StockSpliterator(Catalog catalog, String query, IntUnaryOperator quantities, int slot, int end) {
+        this.catalog = catalog;
+        this.query = query;
+        this.quantities = quantities;
+        this.slot = slot;
+        this.end = end;
+    }
+
+    /**
+     * Visits the remaining matching books until the visitor asks to stop
+     *
+     * @return <tt>true</tt> if every book was visited
+     */
+    boolean visitRemaining(StockVisitor visitor) {
+        for (int id = next(); id >= 0; id = next()) {
+            if (!visitor.visit(id, catalog.getBook(id), quantities.applyAsInt(id))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the ID of the next matching book or -1 if there are none left
+     */
+    private int next() {
+        while (slot < end) {
+            int id = catalog.getIdAt(slot);
+            if (id >= 0 && (query.isEmpty() || catalog.getSearchKeyAt(slot).startsWith(query))) {
+                slot++;
+                return id;
+            }
+            slot++;
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super StockEntry> action) {
+        int id = next();
+        if (id < 0) {
+            return false;
+        }
+        action.accept(new StockEntry(id, catalog.getBook(id), quantities.applyAsInt(id)));
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super StockEntry> action) {
+        for (int id = next(); id >= 0; id = next()) {
+            action.accept(new StockEntry(id, catalog.getBook(id), quantities.applyAsInt(id)));
+        }
+    }
+
+    @Override
+    public Spliterator<StockEntry> trySplit() {
+        int remaining = end - slot;
+        if (remaining < MIN_SPLIT_SLOTS) {
+            return null;
+        }
+        int middle = slot + remaining / 2;
+        StockSpliterator lower = new StockSpliterator(catalog, query, quantities, slot, middle);
+        slot = middle;
+        return lower;
+    }
+
+    @Override
+    public long estimateSize() {
+        return end - slot;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | DISTINCT | NONNULL | IMMUTABLE;
+    }
+}
@@ -0,0 +1,20 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+
+/**
+ * Receives the books of a {@link BookStore} one at a time, see {@link BookStore#visit(String, StockVisitor)}
+ */
+@FunctionalInterface
+public interface StockVisitor {
+
+    /**
+     * Called once for every book, in the order the books were first added
+     *
+     * @param id       the ID of the book
+     * @param book     the book
+     * @param quantity the quantity of the book when it was visited
+     * @return <tt>true</tt> to continue with the next book, <tt>false</tt> to stop
+     */
+    boolean visit(int id, Book book, int quantity);
+}
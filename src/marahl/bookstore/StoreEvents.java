@@ -0,0 +1,221 @@
+package marahl.bookstore;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timed events around the operations of a {@link BookStore}: searches, checkouts, ingested batches, snapshots, price
+ * sums and the time spent waiting for the store's lock.
+ * <p>
+ * Recording is off by default and can be switched on and off at any time. While it is off an instrumented operation
+ * costs one volatile read. While it is on every event is timed with {@link System#nanoTime()}, counted in per type
+ * totals and, if there are listeners, handed to them as an {@link Event} on the thread that ran the operation. A
+ * listener can forward the events to Java Flight Recorder or any other profiler the store runs under.
+ * <p>
+ * Each event carries two numbers whose meaning depends on its type:
+ * <table summary="Event fields">
+ * <tr><th>Type</th><th>Size</th><th>Count</th></tr>
+ * <tr><td>SEARCH</td><td>length of the search string</td><td>books found</td></tr>
+ * <tr><td>CHECKOUT</td><td>books in the checkout</td><td>books bought</td></tr>
+ * <tr><td>INGEST</td><td>books or characters in the batch</td><td>books added</td></tr>
+ * <tr><td>SNAPSHOT</td><td>books in the snapshot</td><td>books in the snapshot</td></tr>
+ * <tr><td>PRICE</td><td>books priced</td><td>books in stock</td></tr>
+ * <tr><td>LOCK_WAIT</td><td>0</td><td>0</td></tr>
+ * </table>
+ */
+public final class StoreEvents {
+    private static final long DISABLED = Long.MIN_VALUE;
+
+    private volatile boolean enabled;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final LongAdder[] counts = new LongAdder[Type.values().length];
+    private final LongAdder[] nanos = new LongAdder[Type.values().length];
+    private final LongAccumulator[] maxNanos = new LongAccumulator[Type.values().length];
+
+    StoreEvents() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+            nanos[i] = new LongAdder();
+            maxNanos[i] = new LongAccumulator(Math::max, 0);
+        }
+    }
+
+    /**
+     * Switches recording on or off, operations already started are recorded the way they started
+     *
+     * @param enabled <tt>true</tt> to record events
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return <tt>true</tt> if events are recorded
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Adds a listener called with every recorded event
+     *
+     * @param listener the listener, called on the thread running the operation so it should return quickly
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @param listener the listener to remove
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @param type the type of events
+     * @return the number of events of the type recorded so far
+     */
+    public long getCount(Type type) {
+        return counts[type.ordinal()].sum();
+    }
+
+    /**
+     * @param type the type of events
+     * @return the total duration in nanoseconds of the events of the type recorded so far
+     */
+    public long getTotalNanos(Type type) {
+        return nanos[type.ordinal()].sum();
+    }
+
+    /**
+     * @param type the type of events
+     * @return the longest duration in nanoseconds of an event of the type recorded so far
+     */
+    public long getMaxNanos(Type type) {
+        return maxNanos[type.ordinal()].get();
+    }
+
+    /**
+     * Clears the totals, listeners and the recording state are kept
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i].reset();
+            nanos[i].reset();
+            maxNanos[i].reset();
+        }
+    }
+
+    /**
+     * Starts timing an operation
+     *
+     * @return the start time to pass to {@link #end(Type, String, long, long, long)}, or a marker that makes it do
+     * nothing if recording is off
+     */
+    long begin() {
+        return enabled ? System.nanoTime() : DISABLED;
+    }
+
+    /**
+     * Records an operation started with {@link #begin()}
+     */
+    void end(Type type, String operation, long start, long size, long count) {
+        if (start == DISABLED) {
+            return;
+        }
+        long duration = System.nanoTime() - start;
+        int index = type.ordinal();
+        counts[index].increment();
+        nanos[index].add(duration);
+        maxNanos[index].accumulate(duration);
+        if (!listeners.isEmpty()) {
+            Event event = new Event(type, operation, start, duration, size, count);
+            for (Listener listener : listeners) {
+                listener.onEvent(event);
+            }
+        }
+    }
+
+    public enum Type {
+        SEARCH, CHECKOUT, INGEST, SNAPSHOT, PRICE, LOCK_WAIT
+    }
+
+    /**
+     * Receives recorded events
+     */
+    @FunctionalInterface
+    public interface Listener {
+        void onEvent(Event event);
+    }
+
+    /**
+     * A recorded operation
+     */
+    public static final class Event {
+        private final Type type;
+        private final String operation;
+        private final long startNanos;
+        private final long durationNanos;
+        private final long size;
+        private final long count;
+
+        private Event(Type type, String operation, long startNanos, long durationNanos, long size, long count) {
+            this.type = type;
+            this.operation = operation;
+            this.startNanos = startNanos;
+            this.durationNanos = durationNanos;
+            this.size = size;
+            this.count = count;
+        }
+
+        /**
+         * @return the type of the event
+         */
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * @return the name of the store method, ex. <tt>list</tt> or <tt>addBatch</tt>
+         */
+        public String getOperation() {
+            return operation;
+        }
+
+        /**
+         * @return the {@link System#nanoTime()} the operation started at
+         */
+        public long getStartNanos() {
+            return startNanos;
+        }
+
+        /**
+         * @return how long the operation took in nanoseconds
+         */
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        /**
+         * @return the size of the input, see {@link StoreEvents}
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return the size of the result, see {@link StoreEvents}
+         */
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s %dns size=%d count=%d", type, operation, durationNanos, size, count);
+        }
+    }
+}
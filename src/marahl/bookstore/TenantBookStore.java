@@ -0,0 +1,450 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+import marahl.bookstore.books.BookList;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * A front end sharing one {@link BookList} between several tenants, each getting its own rate limit and a fair share
+ * of the store.
+ * <p>
+ * Every call of a tenant first takes a token from the tenant's token bucket. A call finding the bucket empty waits for
+ * its token, or is rejected with a {@link RejectedExecutionException} if it would have to wait longer than the tenant's
+ * maximum wait. The call is then queued on the tenant's read or write queue and run by a pool of worker threads.
+ * <p>
+ * The workers pick queued calls by deficit round robin: every time a queue's turn comes it's given a quantum
+ * proportional to the tenant's weight, and it runs calls as long as their cost fits in what it has been given. A read
+ * costs 1 and a write costs the number of books it touches, so a tenant adding thousands of books gets the same share
+ * of the store as a tenant making as many small calls. Writes all take the store's lock, so only one write runs at a
+ * time and the other workers keep serving reads meanwhile. Batches are split into chunks of {@link #BATCH_CHUNK} books
+ * so other tenants' writes get their turn between the chunks of a large batch.
+ */
+public class TenantBookStore implements AutoCloseable {
+    /**
+     * Number of books of a batch added by one write
+     */
+    public static final int BATCH_CHUNK = 1000;
+    /**
+     * Default time a call waits for a token before it's rejected
+     */
+    public static final long DEFAULT_MAX_WAIT_MILLIS = 1000;
+
+    private static final int QUANTUM = 100;
+
+    private final BookList store;
+    private final LongSupplier nanoClock;
+    private final Map<String, Tenant> tenants = new ConcurrentHashMap<>();
+    private final Object lock = new Object();
+    private final Deque<Queue> activeQueues = new ArrayDeque<>();
+    private final Thread[] workers;
+    private boolean writeRunning;
+    private boolean closed;
+
+    /**
+     * Creates a front end for the store, starting the worker threads
+     *
+     * @param store       the store to share
+     * @param workerCount number of calls run at the same time, at least 2 lets reads run beside a write
+     * @throws IllegalArgumentException if the worker count is less than 1
+     */
+    public TenantBookStore(BookList store, int workerCount) {
+        this(store, workerCount, System::nanoTime);
+    }
+
+    TenantBookStore(BookList store, int workerCount, LongSupplier nanoClock) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException(String.format("At least one worker is needed (%d)", workerCount));
+        }
+        this.store = store;
+        this.nanoClock = nanoClock;
+        this.workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Thread(this::work, "tenant-worker-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Adds a tenant
+     *
+     * @param name              the name of the tenant
+     * @param weight            the share of the store the tenant gets compared to the other tenants, at least 1
+     * @param requestsPerSecond the rate the tenant's token bucket is refilled at
+     * @param burst             the size of the tenant's token bucket, at least 1
+     * @return the tenant, used to make calls to the store
+     * @throws IllegalArgumentException if the tenant already exists or a limit isn't positive
+     */
+    public Tenant addTenant(String name, int weight, double requestsPerSecond, int burst) {
+        if (weight < 1 || !(requestsPerSecond > 0) || burst < 1) {
+            throw new IllegalArgumentException(String.format("Invalid limits for tenant %s (weight %d, rate %s, burst %d)",
+                    name, weight, requestsPerSecond, burst));
+        }
+        Tenant tenant = new Tenant(name, weight, requestsPerSecond, burst);
+        if (tenants.putIfAbsent(name, tenant) != null) {
+            throw new IllegalArgumentException(String.format("Tenant %s already exists", name));
+        }
+        return tenant;
+    }
+
+    /**
+     * @param name the name of the tenant
+     * @return the tenant or null if there's no tenant with the name
+     */
+    public Tenant getTenant(String name) {
+        return tenants.get(name);
+    }
+
+    /**
+     * @return all tenants ordered by name
+     */
+    public Tenant[] getTenants() {
+        Tenant[] all = tenants.values().toArray(new Tenant[0]);
+        Arrays.sort(all, Comparator.comparing(Tenant::getName));
+        return all;
+    }
+
+    /**
+     * Stops the workers, calls still queued are rejected
+     */
+    @Override
+    public void close() {
+        List<Call<?>> rejected = new ArrayList<>();
+        synchronized (lock) {
+            closed = true;
+            for (Queue queue : activeQueues) {
+                rejected.addAll(queue.calls);
+                queue.calls.clear();
+                queue.active = false;
+            }
+            activeQueues.clear();
+            lock.notifyAll();
+        }
+        for (Call<?> call : rejected) {
+            call.result.completeExceptionally(new RejectedExecutionException("The store is closed"));
+        }
+    }
+
+    private void work() {
+        while (true) {
+            Call<?> call;
+            synchronized (lock) {
+                while ((call = next()) == null) {
+                    if (closed) {
+                        return;
+                    }
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            call.run();
+            synchronized (lock) {
+                if (call.queue.write) {
+                    writeRunning = false;
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Picks the next call by deficit round robin, skipping write queues while a write is running
+     *
+     * @return the call or null if there's nothing that can be run
+     */
+    private Call<?> next() {
+        boolean runnable = false;
+        for (Queue queue : activeQueues) {
+            runnable |= !queue.write || !writeRunning;
+        }
+        if (!runnable) {
+            return null;
+        }
+        while (true) {
+            Queue queue = activeQueues.pollFirst();
+            if (queue.write && writeRunning) {
+                activeQueues.addLast(queue);
+                continue;
+            }
+            Call<?> call = queue.calls.peekFirst();
+            if (call.cost > queue.deficit) {
+                queue.deficit += QUANTUM * queue.tenant.weight;
+                activeQueues.addLast(queue);
+                continue;
+            }
+            queue.calls.pollFirst();
+            queue.deficit -= call.cost;
+            if (queue.calls.isEmpty()) {
+                queue.deficit = 0;
+                queue.active = false;
+            } else {
+                activeQueues.addFirst(queue);
+            }
+            writeRunning |= queue.write;
+            return call;
+        }
+    }
+
+    /**
+     * A tenant of the store. Calls block until they have been run and are counted in the tenant's statistics.
+     */
+    public final class Tenant implements BookList {
+        private final String name;
+        private final int weight;
+        private final TokenBucket bucket;
+        private final Queue reads = new Queue(this, false);
+        private final Queue writes = new Queue(this, true);
+        private final long created = nanoClock.getAsLong();
+        private final LongAdder readCount = new LongAdder();
+        private final LongAdder writeCount = new LongAdder();
+        private final LongAdder throttledCount = new LongAdder();
+        private final LongAdder rejectedCount = new LongAdder();
+        private final LongAdder queuedNanos = new LongAdder();
+        private volatile long maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_WAIT_MILLIS);
+
+        private Tenant(String name, int weight, double requestsPerSecond, int burst) {
+            this.name = name;
+            this.weight = weight;
+            this.bucket = new TokenBucket(requestsPerSecond, burst, created);
+        }
+
+        /**
+         * @see BookStore#list(String)
+         */
+        @Override
+        public Book[] list(String searchString) {
+            return call(false, 1, () -> store.list(searchString));
+        }
+
+        /**
+         * @see BookStore#add(Book, int)
+         */
+        @Override
+        public boolean add(Book book, int quantity) {
+            return call(true, 1, () -> store.add(book, quantity));
+        }
+
+        /**
+         * @see BookStore#buy(Book...)
+         */
+        @Override
+        public int[] buy(Book... books) {
+            return call(true, Math.max(books.length, 1), () -> store.buy(books));
+        }
+
+        /**
+         * Adds the books {@link #BATCH_CHUNK} at a time, each chunk takes a token and is a write of its own
+         *
+         * @see BookStore#addBatch(Map.Entry[])
+         */
+        @Override
+        public void addBatch(Map.Entry<Book, Integer>[] books) {
+            for (int from = 0; from < books.length; from += BATCH_CHUNK) {
+                Map.Entry<Book, Integer>[] chunk = Arrays.copyOfRange(books, from, Math.min(from + BATCH_CHUNK, books.length));
+                call(true, Math.max(chunk.length, 1), () -> {
+                    store.addBatch(chunk);
+                    return null;
+                });
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        /**
+         * Sets how long a call waits for a token before it's rejected
+         *
+         * @param maxWaitMillis the maximum wait in milliseconds, 0 rejects calls as soon as the bucket is empty
+         */
+        public void setMaxWaitMillis(long maxWaitMillis) {
+            this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(maxWaitMillis, 0));
+        }
+
+        /**
+         * @return number of reads run
+         */
+        public long getReadCount() {
+            return readCount.sum();
+        }
+
+        /**
+         * @return number of writes run
+         */
+        public long getWriteCount() {
+            return writeCount.sum();
+        }
+
+        /**
+         * @return number of calls that had to wait for a token
+         */
+        public long getThrottledCount() {
+            return throttledCount.sum();
+        }
+
+        /**
+         * @return number of calls rejected because the wait for a token was too long
+         */
+        public long getRejectedCount() {
+            return rejectedCount.sum();
+        }
+
+        /**
+         * @return average calls run per second since the tenant was added
+         */
+        public double getThroughput() {
+            long elapsed = Math.max(nanoClock.getAsLong() - created, 1);
+            return (getReadCount() + getWriteCount()) * 1e9 / elapsed;
+        }
+
+        /**
+         * @return average time in milliseconds a call waited in the queue before it was run
+         */
+        public double getAverageQueueMillis() {
+            long count = getReadCount() + getWriteCount();
+            return count == 0 ? 0 : queuedNanos.sum() / 1e6 / count;
+        }
+
+        private <T> T call(boolean write, int cost, Supplier<T> operation) {
+            long wait = bucket.reserve(nanoClock.getAsLong(), maxWaitNanos);
+            if (wait < 0) {
+                rejectedCount.increment();
+                throw new RejectedExecutionException(String.format("Tenant %s is over its rate limit", name));
+            }
+            if (wait > 0) {
+                throttledCount.increment();
+                LockSupport.parkNanos(wait);
+            }
+            try {
+                return submit(write, cost, operation).join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Queues a call without taking a token
+         *
+         * @return the result of the call once it has been run
+         */
+        <T> CompletableFuture<T> submit(boolean write, int cost, Supplier<T> operation) {
+            Call<T> call = new Call<>(write ? writes : reads, cost, operation, nanoClock.getAsLong());
+            synchronized (lock) {
+                if (closed) {
+                    throw new RejectedExecutionException("The store is closed");
+                }
+                call.queue.calls.addLast(call);
+                if (!call.queue.active) {
+                    call.queue.active = true;
+                    activeQueues.addLast(call.queue);
+                }
+                lock.notifyAll();
+            }
+            return call.result;
+        }
+    }
+
+    /**
+     * The reads or writes queued by a tenant
+     */
+    private static final class Queue {
+        private final Tenant tenant;
+        private final boolean write;
+        private final Deque<Call<?>> calls = new ArrayDeque<>();
+        private long deficit;
+        private boolean active;
+
+        private Queue(Tenant tenant, boolean write) {
+            this.tenant = tenant;
+            this.write = write;
+        }
+    }
+
+    private final class Call<T> {
+        private final Queue queue;
+        private final int cost;
+        private final Supplier<T> operation;
+        private final long queued;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+
+        private Call(Queue queue, int cost, Supplier<T> operation, long queued) {
+            this.queue = queue;
+            this.cost = cost;
+            this.operation = operation;
+            this.queued = queued;
+        }
+
+        private void run() {
+            Tenant tenant = queue.tenant;
+            tenant.queuedNanos.add(nanoClock.getAsLong() - queued);
+            T value;
+            try {
+                value = operation.get();
+            } catch (RuntimeException | Error e) {
+                (queue.write ? tenant.writeCount : tenant.readCount).increment();
+                result.completeExceptionally(e);
+                return;
+            }
+            (queue.write ? tenant.writeCount : tenant.readCount).increment();
+            result.complete(value);
+        }
+    }
+
+    /**
+     * Tokens are reserved ahead of time: a call finding the bucket empty takes a token it has to wait for, so waiting
+     * calls are served in order without polling
+     */
+    private static final class TokenBucket {
+        private final double tokensPerNano;
+        private final int burst;
+        private double tokens;
+        private long refilled;
+
+        private TokenBucket(double requestsPerSecond, int burst, long now) {
+            this.tokensPerNano = requestsPerSecond / 1e9;
+            this.burst = burst;
+            this.tokens = burst;
+            this.refilled = now;
+        }
+
+        /**
+         * Takes a token
+         *
+         * @return nanoseconds to wait until the token is available, or -1 if that's longer than the maximum wait
+         */
+        private synchronized long reserve(long now, long maxWaitNanos) {
+            tokens = Math.min(burst, tokens + (now - refilled) * tokensPerNano);
+            refilled = now;
+            if (tokens >= 1) {
+                tokens--;
+                return 0;
+            }
+            long wait = (long) Math.ceil((1 - tokens) / tokensPerNano);
+            if (wait > maxWaitNanos) {
+                return -1;
+            }
+            tokens--;
+            return wait;
+        }
+    }
+}
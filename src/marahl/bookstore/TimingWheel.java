@@ -0,0 +1,207 @@
+package marahl.bookstore;
+
+import java.util.function.Consumer;
+
+/**
+ * A hierarchical timing wheel for a large number of timeouts that are mostly cancelled before they expire.
+ * <p>
+ * Time is divided into ticks and every level of the wheel has 64 slots, where a slot on level n covers 64^n ticks.
+ * A timeout is put in the slot of the lowest level that can hold its deadline and is moved down a level each time
+ * the wheel passes its slot, until it expires from the lowest level. Scheduling and cancelling are O(1) and
+ * expiring costs O(1) per timeout and level. Timeouts further away than the wheel can hold are kept in the last
+ * slot of the top level until they get close enough.
+ * <p>
+ * The wheel has no thread of its own, it is moved forward with {@link #advance(long, Consumer)} and isn't thread
+ * safe.
+ *
+ * @param <T> type of the values attached to the timeouts
+ */
+public class TimingWheel<T> {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    private static final long MAX_DELTA = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    private final long tickMillis;
+    private final Timeout<T>[][] wheel;
+    private long currentTick;
+    private int size;
+
+    /**
+     * Creates a timing wheel
+     *
+     * @param tickMillis how many milliseconds each tick is, timeouts expire at most one tick late
+     * @param nowMillis  the current time in milliseconds
+     * @throws IllegalArgumentException if the tick is less than one millisecond
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(long tickMillis, long nowMillis) {
+        if (tickMillis < 1) {
+            throw new IllegalArgumentException(String.format("The tick has to be at least one millisecond (%d)", tickMillis));
+        }
+        this.tickMillis = tickMillis;
+        this.currentTick = nowMillis / tickMillis;
+        this.wheel = new Timeout[LEVELS][SLOTS];
+    }
+
+    /**
+     * Schedules a value to expire at a certain time
+     *
+     * @param value          the value to pass to the expiry handler
+     * @param deadlineMillis the time in milliseconds when the value expires
+     * @return the timeout, which can be cancelled
+     */
+    public Timeout<T> schedule(T value, long deadlineMillis) {
+        Timeout<T> timeout = new Timeout<>(value, (deadlineMillis + tickMillis - 1) / tickMillis);
+        insert(timeout, currentTick + 1);
+        size++;
+        return timeout;
+    }
+
+    /**
+     * Cancels a timeout, nothing happens if it already expired or was cancelled
+     *
+     * @param timeout the timeout to cancel
+     * @return <tt>true</tt> if the timeout was pending
+     */
+    public boolean cancel(Timeout<T> timeout) {
+        if (timeout.level < 0) return false;
+        unlink(timeout);
+        size--;
+        return true;
+    }
+
+    /**
+     * Moves the wheel forward and hands every value whose deadline has passed to the handler
+     *
+     * @param nowMillis the current time in milliseconds
+     * @param expired   handler receiving each expired value
+     * @return the number of expired values
+     */
+    public int advance(long nowMillis, Consumer<T> expired) {
+        long targetTick = nowMillis / tickMillis;
+        if (size == 0) {
+            currentTick = Math.max(currentTick, targetTick);
+            return 0;
+        }
+        int count = 0;
+        while (currentTick < targetTick && size > 0) {
+            currentTick++;
+            int index = (int) (currentTick & SLOT_MASK);
+            if (index == 0) {
+                cascade(1);
+            }
+            Timeout<T> timeout = wheel[0][index];
+            wheel[0][index] = null;
+            while (timeout != null) {
+                Timeout<T> next = timeout.next;
+                timeout.level = -1;
+                timeout.next = null;
+                timeout.previous = null;
+                size--;
+                count++;
+                expired.accept(timeout.value);
+                timeout = next;
+            }
+        }
+        currentTick = Math.max(currentTick, targetTick);
+        return count;
+    }
+
+    /**
+     * Returns the number of pending timeouts
+     *
+     * @return number of timeouts that haven't expired or been cancelled
+     */
+    public int size() {
+        return size;
+    }
+
+    private void cascade(int level) {
+        if (level >= LEVELS) return;
+        int index = (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+        if (index == 0) {
+            cascade(level + 1);
+        }
+        Timeout<T> timeout = wheel[level][index];
+        wheel[level][index] = null;
+        while (timeout != null) {
+            Timeout<T> next = timeout.next;
+            timeout.next = null;
+            timeout.previous = null;
+            insert(timeout, currentTick);
+            timeout = next;
+        }
+    }
+
+    /**
+     * Puts the timeout in its slot. The slot of the current tick is only still to be processed while cascading,
+     * so new timeouts are never put earlier than the next tick.
+     */
+    private void insert(Timeout<T> timeout, long earliestTick) {
+        long deadline = Math.max(timeout.deadlineTick, earliestTick);
+        long delta = deadline - currentTick;
+        if (delta > MAX_DELTA) {
+            deadline = currentTick + MAX_DELTA;
+            delta = MAX_DELTA;
+        }
+        int level = 0;
+        while (delta >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        int index = (int) ((deadline >>> (SLOT_BITS * level)) & SLOT_MASK);
+        timeout.level = level;
+        timeout.index = index;
+        timeout.previous = null;
+        timeout.next = wheel[level][index];
+        if (timeout.next != null) {
+            timeout.next.previous = timeout;
+        }
+        wheel[level][index] = timeout;
+    }
+
+    private void unlink(Timeout<T> timeout) {
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            wheel[timeout.level][timeout.index] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+        timeout.level = -1;
+        timeout.next = null;
+        timeout.previous = null;
+    }
+
+    /**
+     * A scheduled value in a {@link TimingWheel}
+     *
+     * @param <T> type of the value
+     */
+    public static final class Timeout<T> {
+        private final T value;
+        private final long deadlineTick;
+        private int level = -1;
+        private int index;
+        private Timeout<T> previous;
+        private Timeout<T> next;
+
+        private Timeout(T value, long deadlineTick) {
+            this.value = value;
+            this.deadlineTick = deadlineTick;
+        }
+
+        public T getValue() {
+            return value;
+        }
+
+        /**
+         * @return <tt>true</tt> if the timeout has neither expired nor been cancelled
+         */
+        public boolean isPending() {
+            return level >= 0;
+        }
+    }
+}
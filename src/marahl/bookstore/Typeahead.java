@@ -0,0 +1,313 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+import marahl.bookstore.books.SearchKey;
+
+import java.util.*;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Completes the beginning of a title or an author to the best ranked titles and authors of a {@link Catalog}.
+ * <p>
+ * Every distinct title and author is a completion, scored by the recent sales and the quantity in stock of the books
+ * with that title or by that author. The folded completions are sorted and put in a radix trie where a node only
+ * exists where completions branch, so there are less than two nodes per completion. Each node keeps the best
+ * {@link #MAX_SUGGESTIONS} completions below it, computed once when the trie is built, so a lookup only walks the
+ * branching characters of the prefix and copies a list however many books share the prefix.
+ * <p>
+ * A typeahead is immutable and reflects the catalog, sales and quantities it was built from, see
+ * {@link BookStore#suggest(String, int, Ranking)} for how the store keeps it fresh.
+ */
+public final class Typeahead {
+    /**
+     * The most suggestions kept per prefix
+     */
+    public static final int MAX_SUGGESTIONS = 10;
+    private static final Suggestion[] NONE = new Suggestion[0];
+
+    private final Ranking ranking;
+    private final long sequence;
+    private final long builtAt;
+    private final String[] texts;
+    private final Suggestion[] suggestions;
+    private final Node root;
+
+    /**
+     * How completions are ordered, ties are broken by the other measure and then alphabetically
+     */
+    public enum Ranking {
+        /**
+         * Most recent sales first, see {@link SalesTracker}
+         */
+        SALES,
+        /**
+         * Largest quantity in stock first
+         */
+        STOCK
+    }
+
+    /**
+     * Builds the typeahead of a catalog
+     *
+     * @param catalog    the books to complete
+     * @param quantities the quantity of the book with an ID
+     * @param sales      the recent sales by book ID, books not in the map have no recent sales
+     * @param ranking    how to order the completions
+     * @param sequence   the change feed sequence the inputs were read at
+     * @param builtAt    the time in milliseconds the inputs were read at
+     */
+    Typeahead(Catalog catalog, IntUnaryOperator quantities, Map<Integer, Double> sales, Ranking ranking, long sequence,
+              long builtAt) {
+        this.ranking = ranking;
+        this.sequence = sequence;
+        this.builtAt = builtAt;
+        Map<String, Completion> completions = new HashMap<>();
+        for (Map.Entry<Integer, SearchKey> entry : catalog.getSearchKeys().entrySet()) {
+            int id = entry.getKey();
+            Book book = catalog.getBook(id);
+            int quantity = quantities.applyAsInt(id);
+            double bookSales = sales.getOrDefault(id, 0.0);
+            add(completions, entry.getValue().getTitle(), book.getTitle(), false, quantity, bookSales);
+            add(completions, entry.getValue().getAuthor(), book.getAuthor(), true, quantity, bookSales);
+        }
+        Completion[] sorted = completions.values().toArray(new Completion[completions.size()]);
+        Arrays.sort(sorted, Comparator.comparing((Completion completion) -> completion.folded)
+                .thenComparing(completion -> completion.author));
+        texts = new String[sorted.length];
+        suggestions = new Suggestion[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            texts[i] = sorted[i].folded;
+            suggestions[i] = new Suggestion(sorted[i]);
+        }
+        Integer[] byRank = new Integer[sorted.length];
+        for (int i = 0; i < byRank.length; i++) {
+            byRank[i] = i;
+        }
+        Comparator<Suggestion> order = ranking == Ranking.SALES
+                ? Comparator.comparingDouble(Suggestion::getSales).reversed().thenComparing(Suggestion::getStock, Comparator.reverseOrder())
+                : Comparator.comparingLong(Suggestion::getStock).reversed().thenComparing(Suggestion::getSales, Comparator.reverseOrder());
+        Arrays.sort(byRank, Comparator.comparing((Integer i) -> suggestions[i], order.thenComparing(Suggestion::getText)));
+        int[] ranks = new int[sorted.length];
+        for (int rank = 0; rank < byRank.length; rank++) {
+            ranks[byRank[rank]] = rank;
+        }
+        root = sorted.length > 0 ? build(0, sorted.length, 0, ranks, byRank) : null;
+    }
+
+    private static void add(Map<String, Completion> completions, String folded, String text, boolean author,
+                            int quantity, double sales) {
+        Completion completion = completions.computeIfAbsent((author ? 'a' : 't') + folded,
+                key -> new Completion(folded, text, author));
+        completion.stock += Math.max(quantity, 0);
+        completion.sales += sales;
+        completion.books++;
+    }
+
+    /**
+     * Builds the node of the sorted completions from <tt>lo</tt> to <tt>hi</tt>, which share at least
+     * <tt>depth</tt> characters
+     */
+    private Node build(int lo, int hi, int depth, int[] ranks, Integer[] byRank) {
+        int common = commonPrefix(texts[lo], texts[hi - 1], depth);
+        List<Node> children = new ArrayList<>();
+        StringBuilder childChars = new StringBuilder();
+        int[] candidates = new int[MAX_SUGGESTIONS];
+        int candidateCount = 0;
+        int i = lo;
+        while (i < hi && texts[i].length() == common) {
+            candidateCount = merge(candidates, candidateCount, ranks[i]);
+            i++;
+        }
+        while (i < hi) {
+            char c = texts[i].charAt(common);
+            int j = i + 1;
+            while (j < hi && texts[j].charAt(common) == c) {
+                j++;
+            }
+            Node child = build(i, j, common + 1, ranks, byRank);
+            for (int suggestion : child.top) {
+                candidateCount = merge(candidates, candidateCount, ranks[suggestion]);
+            }
+            children.add(child);
+            childChars.append(c);
+            i = j;
+        }
+        int[] top = new int[candidateCount];
+        for (int k = 0; k < candidateCount; k++) {
+            top[k] = byRank[candidates[k]];
+        }
+        return new Node(common, lo, childChars.toString().toCharArray(), children.toArray(new Node[children.size()]), top);
+    }
+
+    /**
+     * Inserts a rank into the sorted best ranks, dropping the worst if there are too many
+     *
+     * @return the new number of ranks
+     */
+    private static int merge(int[] best, int count, int rank) {
+        if (count == best.length && rank > best[count - 1]) {
+            return count;
+        }
+        int position = count == best.length ? count - 1 : count++;
+        while (position > 0 && best[position - 1] > rank) {
+            best[position] = best[position - 1];
+            position--;
+        }
+        best[position] = rank;
+        return count;
+    }
+
+    private static int commonPrefix(String first, String last, int from) {
+        int length = Math.min(first.length(), last.length());
+        int i = from;
+        while (i < length && first.charAt(i) == last.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Returns the best ranked titles and authors starting with a prefix
+     *
+     * @param foldedPrefix the prefix folded with {@link SearchKey#fold(String, boolean)}, an empty prefix matches all
+     * @param k            the most suggestions to return, at most {@link #MAX_SUGGESTIONS} are returned
+     * @return the suggestions, best first
+     */
+    public Suggestion[] suggest(String foldedPrefix, int k) {
+        Node node = root;
+        while (node != null && node.depth < foldedPrefix.length()) {
+            int child = Arrays.binarySearch(node.childChars, foldedPrefix.charAt(node.depth));
+            node = child >= 0 ? node.children[child] : null;
+        }
+        if (node == null || !texts[node.first].startsWith(foldedPrefix)) {
+            return NONE;
+        }
+        Suggestion[] result = new Suggestion[Math.min(Math.max(k, 0), node.top.length)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = suggestions[node.top[i]];
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of distinct titles and authors
+     */
+    public int size() {
+        return texts.length;
+    }
+
+    /**
+     * @return how the suggestions are ordered
+     */
+    public Ranking getRanking() {
+        return ranking;
+    }
+
+    /**
+     * @return the last change feed sequence included in the typeahead
+     */
+    long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the time in milliseconds the typeahead was built at
+     */
+    long getBuiltAt() {
+        return builtAt;
+    }
+
+    /**
+     * A node of the radix trie. All completions below it start with the first <tt>depth</tt> characters of the
+     * completion <tt>first</tt>, and the children are keyed by the character that follows.
+     */
+    private static final class Node {
+        private final int depth;
+        private final int first;
+        private final char[] childChars;
+        private final Node[] children;
+        private final int[] top;
+
+        private Node(int depth, int first, char[] childChars, Node[] children, int[] top) {
+            this.depth = depth;
+            this.first = first;
+            this.childChars = childChars;
+            this.children = children;
+            this.top = top;
+        }
+    }
+
+    private static final class Completion {
+        private final String folded;
+        private final String text;
+        private final boolean author;
+        private long stock;
+        private double sales;
+        private int books;
+
+        private Completion(String folded, String text, boolean author) {
+            this.folded = folded;
+            this.text = text;
+            this.author = author;
+        }
+    }
+
+    /**
+     * A title or author to complete a prefix with
+     */
+    public static final class Suggestion {
+        private final String text;
+        private final boolean author;
+        private final long stock;
+        private final double sales;
+        private final int books;
+
+        private Suggestion(Completion completion) {
+            this.text = completion.text;
+            this.author = completion.author;
+            this.stock = completion.stock;
+            this.sales = completion.sales;
+            this.books = completion.books;
+        }
+
+        /**
+         * @return the title or author as written on the first book added with it
+         */
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * @return <tt>true</tt> if the suggestion is an author, <tt>false</tt> if it is a title
+         */
+        public boolean isAuthor() {
+            return author;
+        }
+
+        /**
+         * @return the total quantity in stock of the books with the title or by the author
+         */
+        public long getStock() {
+            return stock;
+        }
+
+        /**
+         * @return the estimated recent sales of the books with the title or by the author
+         */
+        public double getSales() {
+            return sales;
+        }
+
+        /**
+         * @return the number of books with the title or by the author
+         */
+        public int getBookCount() {
+            return books;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (%s)", text, author ? "author" : "title");
+        }
+    }
+}
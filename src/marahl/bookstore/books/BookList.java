@@ -1,5 +1,7 @@
 package marahl.bookstore.books;
 
+import java.util.Map;
+
 public interface BookList {
 
     Book[] list(String searchString);
@@ -8,4 +10,12 @@ public interface BookList {
 
     int[] buy(Book... books);
 
-}
\ No newline at end of file
+    default void addBatch(Map.Entry<Book, Integer>[] books) {
+        for (Map.Entry<Book, Integer> book : books) {
+            if (book.getKey() != null && book.getValue() != null) {
+                add(book.getKey(), book.getValue());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,288 @@
+package marahl.bookstore.books;
+
+import java.math.BigDecimal;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A compact binary record of a {@link Book} and a flyweight for reading records in place.
+ * <p>
+ * A record is laid out as
+ * <pre>
+ * varint  length of the rest of the record
+ * varint  length of the title, UTF-8 title
+ * varint  length of the author, UTF-8 author
+ * varlong zig-zag encoded unscaled price
+ * varint  zig-zag encoded scale of the price
+ * </pre>
+ * where varints are written seven bits at a time, lowest bits first, with the high bit set on every byte but the
+ * last. A book with short strings and a price like 185.50 takes a few bytes more than its title and author.
+ * <p>
+ * A {@link BookRecord} is wrapped around a record in a buffer, ex. a mapped file, and reads the fields straight
+ * from the buffer with absolute gets, so the buffer's position isn't touched and several flyweights can share it.
+ * Wrapping a record only reads the lengths and where the scale of the price starts. Strings, prices and books are
+ * only created by the getters that return them; scans can compare titles and authors and read prices without
+ * creating anything:
+ * <pre>
+ * BookRecord record = new BookRecord();
+ * for (int offset = 0; offset &lt; buffer.limit(); offset = record.wrap(buffer, offset)) {
+ *     if (record.authorStartsWith(prefix)) ...
+ * }
+ * </pre>
+ * Prices are stored as an unscaled long, so they can have at most 18 digits.
+ */
+public final class BookRecord {
+    private ByteBuffer buffer;
+    private int titleOffset;
+    private int titleLength;
+    private int authorOffset;
+    private int authorLength;
+    private int priceOffset;
+    private int scaleOffset;
+    private int end;
+    private int varEnd;
+
+    /**
+     * Appends the record of a book at the position of the buffer, moving the position past it
+     *
+     * @param buffer where to write
+     * @param book   the book to write
+     * @throws BufferOverflowException if the record doesn't fit in the remaining bytes, nothing is written then
+     * @throws ArithmeticException     if the price has more than 18 digits
+     */
+    public static void write(ByteBuffer buffer, Book book) {
+        byte[] title = book.getTitle().getBytes(StandardCharsets.UTF_8);
+        byte[] author = book.getAuthor().getBytes(StandardCharsets.UTF_8);
+        long unscaled = book.getPrice().unscaledValue().longValueExact();
+        int scale = book.getPrice().scale();
+        int length = varLength(title.length) + title.length + varLength(author.length) + author.length
+                + varLength(zigZag(unscaled)) + varLength(zigZag(scale));
+        if (buffer.remaining() < varLength(length) + length) {
+            throw new BufferOverflowException();
+        }
+        putVar(buffer, length);
+        putVar(buffer, title.length);
+        buffer.put(title);
+        putVar(buffer, author.length);
+        buffer.put(author);
+        putVar(buffer, zigZag(unscaled));
+        putVar(buffer, zigZag(scale));
+    }
+
+    /**
+     * Returns the number of bytes {@link #write(ByteBuffer, Book)} writes for the book
+     *
+     * @param book the book
+     * @return the length of the record, including its length prefix
+     * @throws ArithmeticException if the price has more than 18 digits
+     */
+    public static int getRecordLength(Book book) {
+        int title = utf8Length(book.getTitle());
+        int author = utf8Length(book.getAuthor());
+        int length = varLength(title) + title + varLength(author) + author
+                + varLength(zigZag(book.getPrice().unscaledValue().longValueExact()))
+                + varLength(zigZag(book.getPrice().scale()));
+        return varLength(length) + length;
+    }
+
+    /**
+     * Points this flyweight at the record starting at an offset of the buffer
+     *
+     * @param buffer the buffer holding the record, its position and limit are left as they are
+     * @param offset the absolute offset of the record
+     * @return the offset right after the record, where the next record starts
+     * @throws IllegalArgumentException if there is no valid record at the offset
+     */
+    public int wrap(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        end = buffer.limit();
+        int length = readLength(offset);
+        end = varEnd + length;
+        titleLength = readLength(varEnd);
+        titleOffset = varEnd;
+        authorLength = readLength(titleOffset + titleLength);
+        authorOffset = varEnd;
+        priceOffset = authorOffset + authorLength;
+        getVar(priceOffset);
+        scaleOffset = varEnd;
+        if (scaleOffset >= end) {
+            throw new IllegalArgumentException(String.format("Record at %d is truncated", offset));
+        }
+        return end;
+    }
+
+    /**
+     * Reads a length and checks that it fits before the end of the record
+     */
+    private int readLength(int position) {
+        long length = getVar(position);
+        if (length < 0 || length > end - varEnd) {
+            throw new IllegalArgumentException(String.format("Length at %d runs past the record (%d)", position, length));
+        }
+        return (int) length;
+    }
+
+    /**
+     * @return the title, decoded into a new string
+     */
+    public String getTitle() {
+        return decode(titleOffset, titleLength);
+    }
+
+    /**
+     * @return the author, decoded into a new string
+     */
+    public String getAuthor() {
+        return decode(authorOffset, authorLength);
+    }
+
+    /**
+     * @return the price, created from the unscaled price and scale
+     */
+    public BigDecimal getPrice() {
+        return BigDecimal.valueOf(getUnscaledPrice(), getPriceScale());
+    }
+
+    /**
+     * @return the price without its decimal point, ex. 18550 for 185.50
+     */
+    public long getUnscaledPrice() {
+        return unZigZag(getVar(priceOffset));
+    }
+
+    /**
+     * @return the number of digits after the decimal point of the price, ex. 2 for 185.50
+     */
+    public int getPriceScale() {
+        return (int) unZigZag(getVar(scaleOffset));
+    }
+
+    /**
+     * @return a new book with the title, author and price of the record
+     */
+    public Book getBook() {
+        return new Book(getTitle(), getAuthor(), getPrice());
+    }
+
+    /**
+     * @return the length of the title in UTF-8 bytes
+     */
+    public int getTitleLength() {
+        return titleLength;
+    }
+
+    /**
+     * @return the length of the author in UTF-8 bytes
+     */
+    public int getAuthorLength() {
+        return authorLength;
+    }
+
+    /**
+     * Compares the beginning of the title to UTF-8 bytes without decoding it
+     *
+     * @param prefix the UTF-8 bytes to look for
+     * @return <tt>true</tt> if the title starts with the bytes, the comparison is case sensitive
+     */
+    public boolean titleStartsWith(byte[] prefix) {
+        return startsWith(titleOffset, titleLength, prefix);
+    }
+
+    /**
+     * Compares the beginning of the author to UTF-8 bytes without decoding it
+     *
+     * @param prefix the UTF-8 bytes to look for
+     * @return <tt>true</tt> if the author starts with the bytes, the comparison is case sensitive
+     */
+    public boolean authorStartsWith(byte[] prefix) {
+        return startsWith(authorOffset, authorLength, prefix);
+    }
+
+    private boolean startsWith(int offset, int length, byte[] prefix) {
+        if (prefix.length > length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(offset + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String decode(int offset, int length) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + offset, length, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int utf8Length(String string) {
+        int length = 0;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < string.length()
+                    && Character.isLowSurrogate(string.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                // lone surrogates are encoded as '?'
+                length += Character.isSurrogate(c) ? 1 : 3;
+            }
+        }
+        return length;
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int varLength(long value) {
+        int length = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    private static void putVar(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Reads the varint at an offset of the record and sets <tt>varEnd</tt> to the offset after it
+     */
+    private long getVar(int offset) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (offset >= end) {
+                throw new IllegalArgumentException(String.format("Varint at %d runs past the record", offset));
+            }
+            byte b = buffer.get(offset++);
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                varEnd = offset;
+                return value;
+            }
+        }
+        throw new IllegalArgumentException(String.format("Varint before %d is too long", offset));
+    }
+}
@@ -0,0 +1,67 @@
+package marahl.bookstore.books;
+
+import java.text.Normalizer;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * The normalized title and author of a book, used to search among books without folding every book's strings on
+ * every search.
+ * <p>
+ * Strings are normalized with Unicode NFKC, so different encodings of the same text such as "å" written as one or
+ * two code points or the ligature "ﬁ" compare equal, and then case folded so that ex. "ß" matches "SS".
+ * Diacritics can optionally be stripped so that ex. "é" matches "e", this is off by default since letters like
+ * "å", "ä" and "ö" are letters of their own in many languages.
+ */
+public final class SearchKey {
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{Mn}+");
+
+    private final String title;
+    private final String author;
+
+    /**
+     * Creates the search key of a book
+     *
+     * @param book            the book
+     * @param stripDiacritics true if diacritics should be removed
+     */
+    public SearchKey(Book book, boolean stripDiacritics) {
+        this.title = fold(book.getTitle(), stripDiacritics);
+        this.author = fold(book.getAuthor(), stripDiacritics);
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public String getAuthor() {
+        return author;
+    }
+
+    /**
+     * Matches a folded query against the beginning of the title and author
+     *
+     * @param foldedQuery a query folded with {@link #fold(String, boolean)}
+     * @return <tt>true</tt> if either the title or author starts with the query
+     */
+    public boolean startsWith(String foldedQuery) {
+        return title.startsWith(foldedQuery) || author.startsWith(foldedQuery);
+    }
+
+    /**
+     * Normalizes and case folds a string
+     *
+     * @param text            the string to fold
+     * @param stripDiacritics true if diacritics should be removed
+     * @return the folded string
+     */
+    public static String fold(String text, boolean stripDiacritics) {
+        String folded = Normalizer.normalize(text, Normalizer.Form.NFKC);
+        folded = folded.toUpperCase(Locale.ROOT).toLowerCase(Locale.ROOT);
+        if (stripDiacritics) {
+            folded = DIACRITICS.matcher(Normalizer.normalize(folded, Normalizer.Form.NFD)).replaceAll("");
+            folded = Normalizer.normalize(folded, Normalizer.Form.NFC);
+        }
+        return folded;
+    }
+}
@@ -0,0 +1,161 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class BitmapIndexTest {
+
+    private final Book swede = new Book("Mastering åäö", "Average Swede", "762.00");
+    private final Book money = new Book("How To Spend Money", "Rich Bloke", "1000000.00");
+    private final Book first = new Book("Generic Title", "First Author", "185.50");
+    private final Book second = new Book("Generic Title", "Second Author", "299.99");
+    private final Book desired = new Book("Desired", "Rich Bloke", "300.00");
+    private BookStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new BookStore();
+        store.add(swede, 15);
+        store.add(money, 1);
+        store.add(first, 0);
+        store.add(second, 3);
+        store.add(desired, 3);
+    }
+
+    @Test
+    public void filters() throws Exception {
+        BitmapIndex index = store.getIndex();
+        assertArrayEquals(new Book[]{swede, money, first, second, desired}, index.getBooks(index.getAll()));
+        assertArrayEquals(new int[]{0, 1, 3, 4}, index.getIds(index.getInStock()));
+        assertArrayEquals(new Book[]{money, desired}, index.getBooks(index.getByAuthor("Rich Bloke")));
+        assertArrayEquals(new Book[]{money, first, desired},
+                index.getBooks(index.getByAuthors("Rich Bloke", "First Author", "Nobody")));
+
+        SlotBitmap cheap = index.getByPrice(null, new BigDecimal(300));
+        assertArrayEquals(new Book[]{first, second}, index.getBooks(cheap));
+        assertArrayEquals(new Book[]{second}, index.getBooks(index.getInStock().and(cheap)));
+        assertArrayEquals(new Book[]{desired, swede}, sortByPrice(index.getBooks(
+                index.getByPrice(new BigDecimal("299.999"), new BigDecimal("1000000")))));
+        assertArrayEquals(new Book[]{money}, index.getBooks(index.getByPrice(new BigDecimal("1000"), null)));
+
+        List<Integer> ids = new ArrayList<>();
+        index.forEach(index.getInStock().andNot(index.getByAuthor("Rich Bloke")), (book, id) -> ids.add(id));
+        assertEquals(Arrays.asList(0, 3), ids);
+    }
+
+    @Test
+    public void keptUpToDate() throws Exception {
+        BitmapIndex before = store.getIndex();
+        store.reduceQuantity(3, 3);
+        store.add(first, 2);
+        Book added = new Book("New", "Rich Bloke", "10");
+        store.add(added, 1);
+        store.remove(money);
+
+        BitmapIndex index = store.getIndex();
+        assertArrayEquals(new int[]{0, 2, 4, 5}, index.getIds(index.getInStock()));
+        assertArrayEquals(new Book[]{desired, added}, index.getBooks(index.getByAuthor("Rich Bloke")));
+        assertArrayEquals(new Book[]{first, second, added}, index.getBooks(index.getByPrice(null, new BigDecimal(300))));
+        assertTrue(index.getByPrice(new BigDecimal(1000), null).isEmpty());
+
+        // an index read earlier doesn't change
+        assertArrayEquals(new int[]{0, 1, 3, 4}, before.getIds(before.getInStock()));
+
+        store.remove(swede);
+        assertTrue(store.compact(0));
+        index = store.getIndex();
+        assertEquals(0, index.getCatalog().getHoleCount());
+        assertArrayEquals(new int[]{2, 4, 5}, index.getIds(index.getInStock()));
+        assertArrayEquals(new Book[]{desired, added}, index.getBooks(index.getByAuthor("Rich Bloke")));
+    }
+
+    @Test
+    public void readersNeverSeeOldSlotsAfterCompaction() throws Exception {
+        Map.Entry<Book, Integer>[] books = new Map.Entry[5000];
+        for (int i = 0; i < books.length; i++) {
+            books[i] = new AbstractMap.SimpleImmutableEntry<>(new Book("Book " + i, "Author", "1.00"), 1);
+        }
+        store.addBatch(books);
+        store.getIndex();
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            try {
+                while (!done.get()) {
+                    BitmapIndex index = store.getIndex();
+                    index.getByPrice(BigDecimal.ZERO, null);
+                    index.forEach(index.getAll(), (book, id) -> assertNotNull(book));
+                }
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        reader.start();
+        Book previous = books[books.length - 1].getKey();
+        for (int i = 0; i < 200; i++) {
+            // removing the book before the last one moves the last book down a slot
+            Book book = new Book("Title " + i, "Author", "1.00");
+            store.add(book, 1);
+            store.remove(previous);
+            store.compact(0);
+            previous = book;
+        }
+        done.set(true);
+        reader.join();
+        assertNull(failure.get());
+    }
+
+    @Test
+    public void matchesScan() throws Exception {
+        Random random = new Random(3);
+        Map.Entry<Book, Integer>[] books = new Map.Entry[20000];
+        for (int i = 0; i < books.length; i++) {
+            Book book = new Book("Title " + i, "Author " + random.nextInt(50),
+                    BigDecimal.valueOf(random.nextInt(100000), 2));
+            books[i] = new AbstractMap.SimpleImmutableEntry<>(book, random.nextInt(3));
+        }
+        store.addBatch(books);
+        for (int i = 0; i < 2000; i++) {
+            store.remove(random.nextInt(books.length));
+            store.reduceQuantity(random.nextInt(books.length), 1);
+        }
+        BigDecimal min = new BigDecimal("123.45");
+        BigDecimal max = new BigDecimal("678.90");
+        BitmapIndex index = store.getIndex();
+        SlotBitmap filter = index.getInStock().and(index.getByPrice(min, max))
+                .and(index.getByAuthors("Author 1", "Author 2", "Author 3"));
+
+        List<Book> expected = new ArrayList<>();
+        for (Book book : store.getStock()) {
+            if (store.getQuantity(book) > 0 && book.getPrice().compareTo(min) >= 0 && book.getPrice().compareTo(max) < 0
+                    && book.getAuthor().matches("Author [123]")) {
+                expected.add(book);
+            }
+        }
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, Arrays.asList(index.getBooks(filter)));
+    }
+
+    @Test
+    public void priceBuckets() throws Exception {
+        for (long cents = 0; cents < 100000; cents++) {
+            int bucket = BitmapIndex.bucket(cents);
+            assertTrue(BitmapIndex.lowerBound(bucket) <= cents);
+            assertTrue(BitmapIndex.lowerBound(bucket + 1) > cents);
+        }
+        assertEquals(0, BitmapIndex.bucket(-5));
+    }
+
+    private static Book[] sortByPrice(Book[] books) {
+        Arrays.sort(books, Comparator.comparing(Book::getPrice));
+        return books;
+    }
+}
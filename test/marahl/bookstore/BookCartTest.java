@@ -5,21 +5,13 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.math.BigDecimal;
-import java.util.AbstractMap;
 import java.util.Map;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 public class BookCartTest {
 
-    private static final Map.Entry<Book, Integer>[] testBooks = new Map.Entry[]{
-            newEntry(new Book("Mastering åäö", "Average Swede", new BigDecimal(762.00)), 15),
-            newEntry(new Book("How To Spend Money", "Rich Bloke", new BigDecimal(1000000.00)), 1),
-            newEntry(new Book("Generic Title", "First Author", new BigDecimal(185.50)), 5),
-            newEntry(new Book("Generic Title", "Second Author", new BigDecimal(1748.00)), 3),
-            newEntry(new Book("Random Sales", "Cunning Bastard", new BigDecimal(999.00)), 20),
-            newEntry(new Book("Random Sales", "Cunning Bastard", new BigDecimal(499.00)), 3),
-            newEntry(new Book("Desired", "Rich Bloke", new BigDecimal(564.50)), 3)};
+    private static final Map.Entry<Book, Integer>[] testBooks = TestBooks.create();
 
     private BookCart cart = null;
 
@@ -29,10 +21,6 @@ public class BookCartTest {
     }
 
 
-    private static Map.Entry<Book, Integer> newEntry(Book book, int i) {
-        return new AbstractMap.SimpleImmutableEntry<>(book, i);
-    }
-
     @Test
     public void getCartContent() throws Exception {
         Book book = testBooks[1].getKey();
@@ -73,4 +61,108 @@ public class BookCartTest {
         assertEquals(expectedValue, actualValue);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void addHoldsInStore() throws Exception {
+        long[] now = {0};
+        BookStore store = new BookStore(() -> now[0]);
+        Book book = testBooks[3].getKey();
+        store.add(book, 3);
+        BookCart storeCart = new BookCart(store);
+        BookCart otherCart = new BookCart(store);
+
+        assertTrue(storeCart.addToCart(book, 2));
+        assertEquals(3, store.getQuantity(book));
+        assertEquals(1, store.getAvailableQuantity(book));
+        assertFalse(otherCart.addToCart(book, 2));
+        assertTrue(otherCart.addToCart(book, 1));
+        assertEquals(0, store.getAvailableQuantity(book));
+
+        storeCart.removeFromCart(0);
+        assertEquals(1, store.getAvailableQuantity(book));
+    }
+
+    @Test
+    public void buyReleasesHolds() throws Exception {
+        BookStore store = new BookStore(() -> 0);
+        Book book = testBooks[3].getKey();
+        store.add(book, 3);
+        BookCart storeCart = new BookCart(store);
+        storeCart.addToCart(book, 2);
+        storeCart.addToCart(book, 1);
+        assertEquals(0, store.getAvailableQuantity(book));
+
+        store.buy(storeCart);
+        assertEquals(0, store.getReservations().size());
+        assertEquals(3, store.getAvailableQuantity(book));
+        storeCart.removeFromCart(0);
+        assertEquals(3, store.getAvailableQuantity(book));
+    }
+
+    @Test
+    public void holdsExpire() throws Exception {
+        long[] now = {0};
+        BookStore store = new BookStore(() -> now[0]);
+        store.getReservations().setHoldTime(60_000);
+        Book book = testBooks[3].getKey();
+        store.add(book, 3);
+        BookCart storeCart = new BookCart(store);
+
+        storeCart.addToCart(book, 3);
+        now[0] = 59_000;
+        assertEquals(0, store.getAvailableQuantity(book));
+        now[0] = 60_000;
+        assertEquals(3, store.getAvailableQuantity(book));
+        assertEquals(0, store.getReservations().size());
+        assertEquals(3, storeCart.getCartContent().length);
+    }
+
+    @Test
+    public void statusMatchesBuy() throws Exception {
+        BookStore store = new BookStore();
+        store.add(testBooks[0].getKey(), 2);
+        store.add(testBooks[1].getKey(), 0);
+        cart.addToCart(testBooks[0].getKey(), 1);
+        cart.addToCart(testBooks[1].getKey(), 1);
+        cart.addToCart(testBooks[2].getKey(), 1);
+        cart.addToCart(testBooks[0].getKey(), 2);
+
+        Book[] content = cart.getCartContent();
+        int[] expected = store.buy(content);
+        assertArrayEquals(new int[]{BookStore.OK, BookStore.NOT_IN_STOCK, BookStore.DOES_NOT_EXIST, BookStore.OK,
+                BookStore.NOT_IN_STOCK}, expected);
+        assertArrayEquals(expected, cart.getStatus(store));
+        assertEquals(0, store.getPrice(content, expected).compareTo(cart.getTotal(store)));
+        assertArrayEquals(expected, store.buy(cart));
+    }
+
+    @Test
+    public void cachedUntilCartOrStockChanges() throws Exception {
+        BookStore store = new BookStore();
+        Book book = testBooks[0].getKey();
+        Book other = testBooks[2].getKey();
+        store.add(book, 1);
+        cart.addToCart(book, 2);
+        cart.addToCart(other, 1);
+
+        BigDecimal total = cart.getTotal(store);
+        assertEquals(0, new BigDecimal(762).compareTo(total));
+        store.add(testBooks[4].getKey(), 1);
+        assertSame(total, cart.getTotal(store));
+
+        long stockVersion = store.getStockVersion(0);
+        store.add(book, 1);
+        assertNotEquals(stockVersion, store.getStockVersion(0));
+        assertEquals(0, new BigDecimal(1524).compareTo(cart.getTotal(store)));
+
+        store.add(other, 1);
+        assertEquals(0, new BigDecimal("1709.50").compareTo(cart.getTotal(store)));
+
+        cart.removeFromCart(0);
+        assertEquals(0, new BigDecimal("947.50").compareTo(cart.getTotal(store)));
+
+        store.remove(book);
+        assertEquals(-1, store.getStockVersion(0));
+        assertArrayEquals(new int[]{BookStore.DOES_NOT_EXIST, BookStore.OK}, cart.getStatus(store));
+    }
+
+}
@@ -0,0 +1,49 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BookFilterTest {
+
+    @Test
+    public void noFalseNegatives() throws Exception {
+        BookFilter filter = new BookFilter(10000);
+        List<Book> books = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            Book book = new Book("Title " + i, "Author", "1");
+            books.add(book);
+            filter.add(book);
+        }
+        for (Book book : books) {
+            assertTrue(filter.mightContain(book));
+        }
+        assertEquals(10000, filter.size());
+    }
+
+    @Test
+    public void falsePositiveRateWithinCapacity() throws Exception {
+        BookFilter filter = new BookFilter(10000);
+        for (int i = 0; i < 10000; i++) {
+            filter.add(new Book("Title " + i, "Author", "1"));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (filter.mightContain(new Book("Missing " + i, "Author", "1"))) {
+                falsePositives++;
+            }
+        }
+        assertTrue("False positive rate " + falsePositives / 100000.0, falsePositives < 3000);
+    }
+
+    @Test
+    public void emptyFilterContainsNothing() throws Exception {
+        BookFilter filter = new BookFilter(0);
+        assertEquals(1, filter.getCapacity());
+        assertFalse(filter.mightContain(new Book("Title", "Author", "1")));
+    }
+}
@@ -0,0 +1,104 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+public class BookStoreReplicaTest {
+
+    private static final Book MASTERING = new Book("Mastering åäö", "Average Swede", "762.00");
+    private static final Book DESIRED = new Book("Desired", "Rich Bloke", "564.50");
+
+    private BookStore store;
+    private BookStorePrimary primary;
+    private BookStoreReplica replica;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new BookStore();
+        store.add(MASTERING, 15);
+        primary = new BookStorePrimary(store, 0, 4);
+        replica = new BookStoreReplica("localhost", primary.getPort());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        replica.close();
+        primary.close();
+    }
+
+    @Test
+    public void snapshotThenChanges() throws Exception {
+        awaitCaughtUp();
+        assertEquals(1, replica.getSnapshotCount());
+        assertEquals("Mastering åäö", replica.getBook(0).getTitle());
+        assertEquals(15, replica.getQuantity(0));
+
+        store.add(DESIRED, 3);
+        store.reduceQuantity(0, 5);
+        store.buy(MASTERING);
+        awaitCaughtUp();
+        assertEquals(1, replica.list("rich").length);
+        assertEquals(3, replica.getQuantity(replica.getBookID(replica.list("rich")[0])));
+        assertEquals(10, replica.getQuantity(0));
+
+        store.remove(0);
+        awaitCaughtUp();
+        assertEquals(0, replica.list("mastering").length);
+        assertEquals(0, replica.getLag());
+    }
+
+    @Test
+    public void reconnectCatchesUpFromLog() throws Exception {
+        awaitCaughtUp();
+        primary.disconnectReplicas();
+        store.add(DESIRED, 3);
+        store.add(DESIRED, 1);
+        await(() -> replica.getQuantity(1) == 4);
+        assertEquals(1, replica.getSnapshotCount());
+    }
+
+    @Test
+    public void reconnectAfterLogIsDiscardedGetsSnapshot() throws Exception {
+        awaitCaughtUp();
+        primary.disconnectReplicas();
+        for (int i = 0; i < 20; i++) {
+            store.add(new Book("Book " + i, "Author", "1"), 1);
+        }
+        await(() -> replica.getStock().length == 21);
+        assertEquals(2, replica.getSnapshotCount());
+    }
+
+    @Test
+    public void largeSnapshotIsInstalledInOneBatch() throws Exception {
+        awaitCaughtUp();
+        primary.disconnectReplicas();
+        Map.Entry<Book, Integer>[] books = new Map.Entry[50000];
+        for (int i = 0; i < books.length; i++) {
+            books[i] = new AbstractMap.SimpleImmutableEntry<>(new Book("Book " + i, "Author " + i % 100, "1"), i % 7);
+        }
+        store.addBatch(books);
+        await(() -> replica.getSnapshotCount() == 2);
+        assertEquals(50001, replica.getStock().length);
+        assertEquals(6, replica.getQuantity(7));
+    }
+
+    private void awaitCaughtUp() throws InterruptedException {
+        await(() -> replica.getSnapshotCount() > 0 && replica.getSequence() == store.getChangeFeed().getCursor());
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timed out waiting for the replica", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
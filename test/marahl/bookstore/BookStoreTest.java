@@ -7,19 +7,13 @@ import org.junit.Test;
 import java.math.BigDecimal;
 import java.util.*;
 
+import static marahl.bookstore.TestBooks.newEntry;
 import static org.junit.Assert.*;
 
 
 public class BookStoreTest {
 
-    private static final Map.Entry<Book, Integer>[] testBooks = new Map.Entry[]{
-            newEntry(new Book("Mastering åäö", "Average Swede", new BigDecimal(762.00)), 15),
-            newEntry(new Book("How To Spend Money", "Rich Bloke", new BigDecimal(1000000.00)), 1),
-            newEntry(new Book("Generic Title", "First Author", new BigDecimal(185.50)), 5),
-            newEntry(new Book("Generic Title", "Second Author", new BigDecimal(1748.00)), 3),
-            newEntry(new Book("Random Sales", "Cunning Bastard", new BigDecimal(999.00)), 20),
-            newEntry(new Book("Random Sales", "Cunning Bastard", new BigDecimal(499.00)), 3),
-            newEntry(new Book("Desired", "Rich Bloke", new BigDecimal(564.50)), 3)};
+    private static final Map.Entry<Book, Integer>[] testBooks = TestBooks.create();
     private BookStore store = null;
 
     @Before
@@ -30,10 +24,6 @@ public class BookStoreTest {
         }
     }
 
-    private static Map.Entry<Book, Integer> newEntry(Book book, int i) {
-        return new AbstractMap.SimpleImmutableEntry<>(book, i);
-    }
-
     @Test
     public void add() throws Exception {
         Book newBook = new Book("", "", "");
@@ -166,6 +156,19 @@ public class BookStoreTest {
         assertEquals(expectedQuantityAfterRemoval, actualQuantityAfterRemoval);
     }
 
+    @Test
+    public void removeNullBook() throws Exception {
+        final int sizeBefore = store.getStock().length;
+
+        final Map.Entry<Book, Integer> removed = store.remove((Book) null);
+
+        assertNull(removed.getKey());
+        assertEquals(0, (int) removed.getValue());
+        assertEquals(sizeBefore, store.getStock().length);
+        assertEquals(-1, store.getCatalog().getBookID(null));
+        assertFalse(store.getCatalog().contains(null));
+    }
+
     @Test
     public void reduceQuantityOfBook() throws Exception {
         final int idBefore = 2;
@@ -366,4 +369,218 @@ public class BookStoreTest {
         assertEquals(expectedTotalPrice, actualTotalPrice);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void catalogSnapshotUnchangedByLaterWrites() throws Exception {
+        Catalog snapshot = store.getCatalog();
+        int sizeBefore = snapshot.size();
+        Book removedBook = snapshot.getBook(0);
+
+        store.remove(0);
+        store.add(new Book("New", "Book", "1"), 1);
+
+        assertEquals(sizeBefore, snapshot.size());
+        assertEquals(removedBook, snapshot.getBook(0));
+        assertEquals(snapshot.getVersion() + 2, store.getCatalog().getVersion());
+        assertNull(store.getCatalog().getBook(0));
+    }
+
+    @Test
+    public void addBatchPublishesOneVersion() throws Exception {
+        long versionBefore = store.getCatalog().getVersion();
+        store.addBatch(new Map.Entry[]{
+                newEntry(new Book("A", "B", "1"), 1),
+                newEntry(new Book("C", "D", "2"), 2)});
+        assertEquals(versionBefore + 1, store.getCatalog().getVersion());
+    }
+
+    @Test
+    public void addQuantityKeepsVersion() throws Exception {
+        long versionBefore = store.getCatalog().getVersion();
+        store.add(testBooks[0].getKey(), 1);
+        store.reduceQuantity(0, 1);
+        assertEquals(versionBefore, store.getCatalog().getVersion());
+    }
+
+    @Test
+    public void readWhileWriting() throws Exception {
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 2000; i++) {
+                Book book = new Book("Title " + i, "Author", "1");
+                store.add(book, 1);
+                if (i % 2 == 0) store.remove(book);
+            }
+        });
+        writer.start();
+        while (writer.isAlive()) {
+            store.list("Title");
+            store.getStock();
+        }
+        writer.join();
+        assertEquals(testBooks.length + 1000, store.getStock().length);
+    }
+
+    @Test
+    public void buyRecordsTopSellers() throws Exception {
+        Book popular = testBooks[4].getKey();
+        store.buy(popular, popular, testBooks[0].getKey());
+        store.getPrice(testBooks[0].getKey(), testBooks[0].getKey());
+
+        Map.Entry<Book, Double>[] topSellers = store.getTopSellers(5);
+        assertEquals(2, topSellers.length);
+        assertEquals(popular, topSellers[0].getKey());
+        assertEquals(2, topSellers[0].getValue(), 0.01);
+        assertEquals(1, topSellers[1].getValue(), 0.01);
+    }
+
+    @Test
+    public void getLowStock() throws Exception {
+        store.reduceQuantity(0, 15);
+        Map.Entry<Book, Integer>[] lowStock = store.getLowStock(10);
+        assertEquals(testBooks[0].getKey(), lowStock[0].getKey());
+        assertEquals(0, (int) lowStock[0].getValue());
+        assertEquals(testBooks[1].getKey(), lowStock[1].getKey());
+
+        store.remove(0);
+        assertEquals(testBooks[1].getKey(), store.getLowStock(10)[0].getKey());
+    }
+
+    @Test
+    public void fuzzyList() throws Exception {
+        Book[] list = store.fuzzyList("Rich Bloka");
+        assertEquals(2, list.length);
+        assertEquals(testBooks[1].getKey(), list[0]);
+        assertEquals(testBooks[6].getKey(), list[1]);
+
+        store.remove(1);
+        assertEquals(1, store.fuzzyList("Rich Bloka").length);
+        assertEquals(0, store.fuzzyList("Marcus Ahlén").length);
+        assertEquals(testBooks[0].getKey(), store.fuzzyList("Mastring", 1)[0]);
+    }
+
+    @Test
+    public void listFoldsNonAscii() throws Exception {
+        assertEquals(testBooks[0].getKey(), store.list("MASTERING ÅÄÖ")[0]);
+        assertEquals(testBooks[0].getKey(), store.list("Mastering a\u030a")[0]);
+        assertEquals(0, store.list("Mastering aao").length);
+
+        BookStore ignoringDiacritics = new BookStore(true);
+        ignoringDiacritics.add(testBooks[0].getKey(), 1);
+        assertEquals(1, ignoringDiacritics.list("Mastering aao").length);
+    }
+
+    @Test
+    public void missingBooksAreFiltered() throws Exception {
+        Book missing = new Book("Mastering åäö", "Average Swede", new BigDecimal(762.00));
+        assertEquals(-1, store.getBookID(missing));
+        assertArrayEquals(new int[]{BookStore.DOES_NOT_EXIST}, store.buy(missing));
+        assertEquals(0, store.getQuantity(missing));
+        assertTrue(store.getFilterFalsePositiveRate() < 1);
+
+        for (int i = 0; i < 2000; i++) {
+            store.add(new Book("Title " + i, "Author", "1"), 1);
+        }
+        assertEquals(2, store.getBookID(testBooks[2].getKey()));
+        assertEquals(1000, store.getBookID(store.list("Title 993")[0]));
+        Book removed = store.getBook(7);
+        for (int i = 0; i < 1500; i++) {
+            store.remove(7 + i);
+        }
+        assertEquals(-1, store.getBookID(removed));
+        assertEquals(2, store.getBookID(testBooks[2].getKey()));
+        assertEquals(2000 + 6, store.getBookID(store.list("Title 1999")[0]));
+    }
+
+    @Test
+    public void compactPacksSlots() throws Exception {
+        Catalog before = store.getCatalog();
+        assertEquals(testBooks.length, before.getSlotCount());
+        assertEquals(3, before.getSlot(3));
+        store.remove(1);
+        store.remove(4);
+        assertEquals(2, store.getCatalog().getHoleCount());
+        assertEquals(-1, store.getCatalog().getIdAt(1));
+        assertFalse(store.compact(0.5));
+
+        assertTrue(store.compact(0.25));
+        Catalog after = store.getCatalog();
+        assertEquals(0, after.getHoleCount());
+        assertEquals(testBooks.length - 2, after.getSlotCount());
+        int[] expectedIds = {0, 2, 3, 5, 6};
+        for (int slot = 0; slot < expectedIds.length; slot++) {
+            assertEquals(expectedIds[slot], after.getIdAt(slot));
+            assertEquals(slot, after.getSlot(expectedIds[slot]));
+        }
+        assertEquals(-1, after.getSlot(1));
+        assertEquals(testBooks[5].getKey(), store.getBook(5));
+        assertFalse(store.compact(0));
+
+        // the catalog read before compaction is untouched
+        assertEquals(4, before.getSlot(4));
+        assertEquals(testBooks.length, before.getSlotCount());
+
+        store.add(new Book("New", "Book", "1"), 1);
+        assertEquals(expectedIds.length, store.getCatalog().getSlot(testBooks.length));
+    }
+
+    @Test
+    public void compactInBackground() throws Exception {
+        for (int id = 0; id < 4; id++) {
+            store.remove(id);
+        }
+        try (CatalogCompactor compactor = new CatalogCompactor(store, 10, CatalogCompactor.DEFAULT_MIN_HOLE_RATIO)) {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (compactor.getCompactionCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(1, compactor.getCompactionCount());
+        }
+        assertEquals(testBooks.length - 4, store.getCatalog().getSlotCount());
+        assertEquals(4, store.getCatalog().getIdAt(0));
+    }
+
+    @Test
+    public void visit() throws Exception {
+        store.remove(2);
+        List<String> visited = new ArrayList<>();
+        assertTrue(store.visit("random", (id, book, quantity) -> visited.add(id + ":" + book.getTitle() + ":" + quantity)));
+        assertEquals(Arrays.asList("4:Random Sales:20", "5:Random Sales:3"), visited);
+
+        List<Integer> ids = new ArrayList<>();
+        assertTrue(store.visit("", (id, book, quantity) -> ids.add(id)));
+        assertEquals(Arrays.asList(0, 1, 3, 4, 5, 6), ids);
+
+        ids.clear();
+        assertFalse(store.visit("", (id, book, quantity) -> ids.add(id) && ids.size() < 2));
+        assertEquals(Arrays.asList(0, 1), ids);
+        assertTrue(store.visit("nothing matches", (id, book, quantity) -> false));
+    }
+
+    @Test
+    public void stream() throws Exception {
+        for (int i = 0; i < 5000; i++) {
+            store.add(new Book("Streamed " + i, "Author", BigDecimal.ONE), i % 7);
+        }
+        for (int id = 0; id < 5000; id += 3) {
+            store.remove(id);
+        }
+        List<Integer> expected = new ArrayList<>();
+        long expectedQuantity = 0;
+        for (Book book : store.list("streamed")) {
+            expected.add(store.getBookID(book));
+            expectedQuantity += store.getQuantity(book);
+        }
+        assertEquals(expected, store.stream("streamed", true).map(StockEntry::getId).collect(java.util.stream.Collectors.toList()));
+        assertEquals(expectedQuantity, store.stream("streamed", true).mapToLong(StockEntry::getQuantity).sum());
+
+        Spliterator<StockEntry> spliterator = store.spliterator("");
+        Spliterator<StockEntry> prefix = spliterator.trySplit();
+        assertNotNull(prefix);
+        List<Integer> ids = new ArrayList<>();
+        prefix.forEachRemaining(entry -> ids.add(entry.getId()));
+        spliterator.forEachRemaining(entry -> ids.add(entry.getId()));
+        assertEquals(store.getCatalog().size(), ids.size());
+        assertEquals(new ArrayList<>(store.getCatalog().getEntries().keySet()), ids);
+
+        assertEquals(1, store.stream("", false).limit(1).count());
+    }
+}
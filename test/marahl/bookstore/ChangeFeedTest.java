@@ -0,0 +1,169 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ChangeFeedTest {
+
+    private static final Book BOOK = new Book("Mastering åäö", "Average Swede", "762.00");
+
+    private ChangeFeed feed;
+    private List<Long> sequences;
+    private List<Integer> quantities;
+    private int batches;
+    private final ChangeFeed.Handler handler = (event, endOfBatch) -> {
+        sequences.add(event.getSequence());
+        quantities.add(event.getQuantity());
+        if (endOfBatch) {
+            batches++;
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        feed = new ChangeFeed(8);
+        sequences = new ArrayList<>();
+        quantities = new ArrayList<>();
+        batches = 0;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sizeNotPowerOfTwo() throws Exception {
+        new ChangeFeed(6);
+    }
+
+    @Test
+    public void pollInBatches() throws Exception {
+        ChangeFeed.Subscription subscription = feed.subscribe(ChangeFeed.SlowConsumerPolicy.BLOCK);
+        for (int i = 0; i < 5; i++) {
+            feed.publish(ChangeEvent.ADD, 0, BOOK, 1, i + 1);
+        }
+        assertEquals(5, subscription.getLag());
+        assertEquals(3, subscription.poll(handler, 3));
+        assertEquals(2, subscription.poll(handler, 3));
+        assertEquals(0, subscription.poll(handler, 3));
+        assertEquals(2, batches);
+        assertEquals(0, subscription.getLag());
+        assertEquals(4, subscription.getSequence());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, (long) sequences.get(i));
+            assertEquals(i + 1, (int) quantities.get(i));
+        }
+    }
+
+    @Test
+    public void subscribersConsumeAtOwnPace() throws Exception {
+        ChangeFeed.Subscription fast = feed.subscribe(ChangeFeed.SlowConsumerPolicy.BLOCK);
+        feed.publish(ChangeEvent.ADD, 0, BOOK, 1, 1);
+        ChangeFeed.Subscription late = feed.subscribe(ChangeFeed.SlowConsumerPolicy.BLOCK);
+        feed.publish(ChangeEvent.REDUCE, 0, BOOK, -1, 0);
+
+        assertEquals(2, fast.poll(handler, 10));
+        assertEquals(1, late.poll(handler, 10));
+        assertEquals(1, (long) sequences.get(2));
+    }
+
+    @Test
+    public void blockingSubscriberStallsPublisher() throws Exception {
+        ChangeFeed.Subscription subscription = feed.subscribe(ChangeFeed.SlowConsumerPolicy.BLOCK);
+        for (int i = 0; i < 8; i++) {
+            feed.publish(ChangeEvent.ADD, 0, BOOK, 1, i);
+        }
+        Thread publisher = new Thread(() -> feed.publish(ChangeEvent.ADD, 0, BOOK, 1, 8));
+        publisher.start();
+        publisher.join(100);
+        assertTrue(publisher.isAlive());
+
+        assertEquals(8, subscription.poll(handler, 100));
+        publisher.join(5000);
+        assertFalse(publisher.isAlive());
+        assertEquals(1, subscription.poll(handler, 100));
+        assertEquals(0, subscription.getDroppedCount());
+        assertEquals(8, (int) quantities.get(8));
+    }
+
+    @Test
+    public void closedSubscriberDoesNotBlock() throws Exception {
+        ChangeFeed.Subscription subscription = feed.subscribe(ChangeFeed.SlowConsumerPolicy.BLOCK);
+        subscription.close();
+        for (int i = 0; i < 20; i++) {
+            feed.publish(ChangeEvent.ADD, 0, BOOK, 1, i);
+        }
+        assertEquals(19, feed.getCursor());
+    }
+
+    @Test
+    public void droppingSubscriberSkipsAhead() throws Exception {
+        ChangeFeed.Subscription subscription = feed.subscribe(ChangeFeed.SlowConsumerPolicy.DROP);
+        for (int i = 0; i < 20; i++) {
+            feed.publish(ChangeEvent.ADD, 0, BOOK, 1, i);
+        }
+        assertEquals(8, subscription.poll(handler, 100));
+        assertEquals(12, subscription.getDroppedCount());
+        assertEquals(12, (long) sequences.get(0));
+        assertEquals(19, (int) quantities.get(7));
+    }
+
+    @Test
+    public void storePublishesChanges() throws Exception {
+        BookStore store = new BookStore();
+        ChangeFeed.Subscription subscription = store.getChangeFeed().subscribe(ChangeFeed.SlowConsumerPolicy.BLOCK);
+        List<String> events = new ArrayList<>();
+        store.add(BOOK, 3);
+        store.add(BOOK, 2);
+        store.reduceQuantity(0, 1);
+        store.buy(BOOK, BOOK);
+        store.buy(new Book("Not", "Here", "1"));
+        store.remove(0);
+        subscription.poll((event, endOfBatch) -> events.add(event.getType() + ":" + event.getBookId() + ":"
+                + event.getQuantityChange() + ":" + event.getQuantity()), 100);
+        assertEquals(Arrays.asList("0:0:3:3", "0:0:2:5", "2:0:-1:4", "3:0:1:3", "3:0:1:2", "1:0:-4:0"),
+                events);
+    }
+
+    @Test
+    public void cartSalesReportTheQuantityLeft() throws Exception {
+        BookStore store = new BookStore();
+        ChangeFeed.Subscription subscription = store.getChangeFeed().subscribe(ChangeFeed.SlowConsumerPolicy.BLOCK);
+        store.add(BOOK, 5);
+        BookCart cart = new BookCart();
+        cart.addToCart(BOOK, 2);
+        store.buy(cart);
+        subscription.poll(handler, 100);
+        assertEquals(Arrays.asList(5, 3), quantities);
+    }
+
+    @Test
+    public void blockingSubscriberDoesNotStallTheLock() throws Exception {
+        BookStore store = new BookStore();
+        ChangeFeed.Subscription subscription = store.getChangeFeed().subscribe(ChangeFeed.SlowConsumerPolicy.BLOCK);
+        int ringSize = ChangeFeed.DEFAULT_SIZE;
+        for (int i = 0; i < ringSize; i++) {
+            store.add(BOOK, 1);
+        }
+        Thread writer = new Thread(() -> store.add(BOOK, 1));
+        writer.start();
+        writer.join(200);
+        assertTrue(writer.isAlive());
+        // the writer waits for the subscriber without holding the lock
+        assertEquals(ringSize + 1, store.getStockSnapshot().getQuantityAt(0));
+
+        int events = 0;
+        while (writer.isAlive() || subscription.getLag() > 0) {
+            events += subscription.poll(handler, 1000);
+        }
+        writer.join();
+        assertEquals(ringSize + 1, events);
+        for (int i = 0; i < events; i++) {
+            assertEquals(i, (long) sequences.get(i));
+            assertEquals(i + 1, (int) quantities.get(i));
+        }
+    }
+}
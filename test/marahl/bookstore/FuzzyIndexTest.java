@@ -0,0 +1,54 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FuzzyIndexTest {
+
+    private FuzzyIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        index = new FuzzyIndex();
+        index.add(0, new Book("The Story of My Life", "Helen Keller", "0"));
+        index.add(1, new Book("Hello World", "Someone", "0"));
+        index.add(2, new Book("Kepler's Laws", "Johannes Kepler", "0"));
+        index.add(3, new Book("Mastering åäö", "Average Swede", "0"));
+    }
+
+    @Test
+    public void distance() throws Exception {
+        assertEquals(0, FuzzyIndex.distance("keller", "keller", 2));
+        assertEquals(1, FuzzyIndex.distance("keler", "keller", 2));
+        assertEquals(1, FuzzyIndex.distance("kepler", "keller", 2));
+        assertEquals(2, FuzzyIndex.distance("bloek", "bloke", 2));
+        assertEquals(3, FuzzyIndex.distance("hello", "world", 2));
+    }
+
+    @Test
+    public void searchRankedByDistance() throws Exception {
+        assertArrayEquals(new int[]{0, 2}, index.search("Keller", 1));
+        assertArrayEquals(new int[]{0}, index.search("Keller", 0));
+        assertArrayEquals(new int[]{0, 2}, index.search("Keler", 1));
+        assertArrayEquals(new int[]{0}, index.search("helen keler", FuzzyIndex.AUTOMATIC_DISTANCE));
+        assertArrayEquals(new int[]{3}, index.search("Swde", 1));
+        assertArrayEquals(new int[]{3}, index.search("MASTERING ÅÄÖ", 0));
+        assertArrayEquals(new int[0], index.search("Tolstoy", 2));
+        assertArrayEquals(new int[0], index.search("", 2));
+    }
+
+    @Test
+    public void searchAfterRemove() throws Exception {
+        index.remove(0, new Book("The Story of My Life", "Helen Keller", "0"));
+        assertArrayEquals(new int[]{2}, index.search("Keler", 2));
+        index.remove(2, new Book("Kepler's Laws", "Johannes Kepler", "0"));
+        index.remove(1, new Book("Hello World", "Someone", "0"));
+        assertArrayEquals(new int[0], index.search("Keler", 2));
+        index.add(4, new Book("Keller", "", "0"));
+        assertArrayEquals(new int[]{4}, index.search("Keler", 2));
+        assertArrayEquals(new int[]{3}, index.search("average", 0));
+    }
+}
@@ -0,0 +1,83 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class InventoryReportTest {
+
+    private BookStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new BookStore();
+        store.addBatch(TestBooks.create());
+    }
+
+    @Test
+    public void total() throws Exception {
+        InventoryReport report = store.getInventoryReport(new BigDecimal(500));
+        assertEquals(7, report.getTotal().getBookCount());
+        assertEquals(50, report.getTotal().getCopyCount());
+        assertEquals(new BigDecimal("1040772.00"), report.getTotal().getValue());
+        assertEquals(store.getChangeFeed().getCursor(), report.getSequence());
+    }
+
+    @Test
+    public void byAuthor() throws Exception {
+        InventoryReport report = store.getInventoryReport(new BigDecimal(500));
+        assertEquals(5, report.getByAuthor().size());
+        InventoryReport.Group richBloke = report.getByAuthor().get("Rich Bloke");
+        assertEquals(2, richBloke.getBookCount());
+        assertEquals(4, richBloke.getCopyCount());
+        assertEquals(new BigDecimal("1001693.50"), richBloke.getValue());
+        assertEquals(new BigDecimal("21477.00"), report.getByAuthor().get("Cunning Bastard").getValue());
+        assertEquals("Average Swede", report.getByAuthor().keySet().iterator().next());
+    }
+
+    @Test
+    public void byPriceBand() throws Exception {
+        InventoryReport report = store.getInventoryReport(new BigDecimal(500));
+        assertEquals(4, report.getByPriceBand().size());
+        assertEquals(new BigDecimal("2424.50"), report.getByPriceBand().get(BigDecimal.ZERO).getValue());
+        assertEquals(3, report.getByPriceBand().get(new BigDecimal(500)).getBookCount());
+        assertEquals(new BigDecimal("33103.50"), report.getByPriceBand().get(new BigDecimal(500)).getValue());
+        assertEquals(new BigDecimal("5244.00"), report.getByPriceBand().get(new BigDecimal(1500)).getValue());
+        assertEquals(0, new BigDecimal(1000000).compareTo(report.getByPriceBand().lastKey()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void priceBandTooNarrow() throws Exception {
+        store.getInventoryReport(new BigDecimal("0.001"));
+    }
+
+    @Test
+    public void largeCatalogMatchesSequentialSum() throws Exception {
+        BookStore large = new BookStore();
+        Random random = new Random(42);
+        BigDecimal expected = BigDecimal.ZERO;
+        Map.Entry<Book, Integer>[] books = new Map.Entry[50000];
+        for (int i = 0; i < books.length; i++) {
+            BigDecimal price = BigDecimal.valueOf(random.nextInt(100000), 2);
+            int quantity = random.nextInt(20);
+            Book book = new Book("Title " + i, "Author " + random.nextInt(100), price);
+            books[i] = new AbstractMap.SimpleImmutableEntry<>(book, quantity);
+            expected = expected.add(price.multiply(new BigDecimal(quantity)));
+        }
+        large.addBatch(books);
+        InventoryReport report = large.getInventoryReport(new BigDecimal(100));
+        assertEquals(0, expected.compareTo(report.getTotal().getValue()));
+        assertEquals(50000, report.getTotal().getBookCount());
+        assertEquals(100, report.getByAuthor().size());
+        assertEquals(10, report.getByPriceBand().size());
+        long copies = report.getByAuthor().values().stream().mapToLong(InventoryReport.Group::getCopyCount).sum();
+        assertEquals(report.getTotal().getCopyCount(), copies);
+    }
+}
@@ -0,0 +1,423 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generates a synthetic catalog, replays a mixed workload against a {@link BookStore} from many threads and reports
+ * throughput, latency percentiles per operation, garbage collection time and whether the final quantities add up.
+ * <p>
+ * Everything random is drawn from generators seeded with the seed, so the same options give the same catalog and
+ * every thread the same sequence of operations. Only the interleaving of the threads differs between runs.
+ * <p>
+ * Authors and the books operated on are picked with a Zipf distribution, so a few authors write most books and a few
+ * books get most of the traffic. With a target rate the threads run open loop: each operation has an intended start
+ * time and its latency is measured from then, so a stalled store shows up as latency instead of as fewer requests.
+ * <p>
+ * Run with: java marahl.bookstore.LoadHarness [--option=value...]
+ * <pre>
+ * --seed=1               seed of all random choices
+ * --books=100000         size of the generated catalog
+ * --authors=5000         number of different authors
+ * --author-skew=1.0      Zipf exponent of books per author, 0 is uniform
+ * --book-skew=0.8        Zipf exponent of operations per book, 0 is uniform
+ * --title-words=3        average number of words in a title
+ * --threads=8            number of threads, defaults to the number of processors
+ * --operations=1000000   total number of operations, ignored when --seconds is given
+ * --seconds=0            run for this long instead, for soak tests
+ * --rate=0               target operations per second of all threads, 0 runs as fast as possible
+ * --mix=list:40,buy:25,add:10,reduce:10,cart:15
+ * </pre>
+ * The process exits with status 1 if the consistency check fails.
+ */
+public class LoadHarness {
+    private static final String[] OPERATIONS = {"list", "buy", "add", "reduce", "cart"};
+    private static final int LIST = 0;
+    private static final int BUY = 1;
+    private static final int ADD = 2;
+    private static final int REDUCE = 3;
+    private static final int CART = 4;
+
+    private final Map<String, String> options;
+    private final long seed;
+    private final int threadCount;
+    private final long operationCount;
+    private final double seconds;
+    private final double rate;
+    private final int[] mix = new int[OPERATIONS.length];
+
+    private BookStore store;
+    private Book[] books;
+    private int[] ids;
+    private int[] initialQuantities;
+    private String[] words;
+    private ZipfSampler bookSampler;
+    private AtomicLongArray quantityChanges;
+    private final Map<Book, Integer> newBooks = new ConcurrentHashMap<>();
+
+    private LoadHarness(Map<String, String> options) {
+        this.options = options;
+        this.seed = Long.parseLong(option("seed", "1"));
+        this.threadCount = Integer.parseInt(option("threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        this.operationCount = Long.parseLong(option("operations", "1000000"));
+        this.seconds = Double.parseDouble(option("seconds", "0"));
+        this.rate = Double.parseDouble(option("rate", "0"));
+        for (String part : option("mix", "list:40,buy:25,add:10,reduce:10,cart:15").split(",")) {
+            String[] weight = part.split(":");
+            int operation = Arrays.asList(OPERATIONS).indexOf(weight[0]);
+            if (operation < 0 || weight.length != 2) {
+                throw new IllegalArgumentException(String.format("Unknown operation in mix (%s)", part));
+            }
+            mix[operation] = Integer.parseInt(weight[1]);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException(String.format("Expected --option=value (%s)", arg));
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        boolean consistent = new LoadHarness(options).run();
+        System.exit(consistent ? 0 : 1);
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    private boolean run() throws Exception {
+        long start = System.nanoTime();
+        generateCatalog();
+        System.out.printf("Seed %d, %d books by %s authors generated in %.0f ms%n", seed, books.length,
+                option("authors", "5000"), (System.nanoTime() - start) / 1e6);
+
+        Worker[] workers = new Worker[threadCount];
+        CountDownLatch ready = new CountDownLatch(1);
+        for (int t = 0; t < threadCount; t++) {
+            long operations = operationCount / threadCount + (t < operationCount % threadCount ? 1 : 0);
+            workers[t] = new Worker(t, operations, ready);
+            workers[t].start();
+        }
+        long gcCount = gcCount();
+        long gcMillis = gcMillis();
+        start = System.nanoTime();
+        ready.countDown();
+        for (Worker worker : workers) {
+            worker.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        gcCount = gcCount() - gcCount;
+        gcMillis = gcMillis() - gcMillis;
+
+        Histogram[] latencies = new Histogram[OPERATIONS.length];
+        long total = 0;
+        for (int operation = 0; operation < OPERATIONS.length; operation++) {
+            latencies[operation] = new Histogram();
+            for (Worker worker : workers) {
+                latencies[operation].add(worker.latencies[operation]);
+            }
+            total += latencies[operation].count;
+        }
+        System.out.printf("%d operations by %d threads in %.2f s, %.0f ops/s%s%n", total, threadCount, elapsed,
+                total / elapsed, rate > 0 ? String.format(" (target %.0f)", rate) : "");
+        System.out.printf("%-8s%12s%12s%12s%12s%12s%12s%n", "", "Count", "p50 us", "p90 us", "p99 us", "p99.9 us", "Max us");
+        for (int operation = 0; operation < OPERATIONS.length; operation++) {
+            Histogram histogram = latencies[operation];
+            if (histogram.count == 0) continue;
+            System.out.printf("%-8s%12d%12.1f%12.1f%12.1f%12.1f%12.1f%n", OPERATIONS[operation], histogram.count,
+                    histogram.percentile(50) / 1e3, histogram.percentile(90) / 1e3, histogram.percentile(99) / 1e3,
+                    histogram.percentile(99.9) / 1e3, histogram.max / 1e3);
+        }
+        System.out.printf("GC: %d collections, %d ms (%.1f%% of the run)%n", gcCount, gcMillis, gcMillis / elapsed / 10);
+        return checkConsistency();
+    }
+
+    private void generateCatalog() {
+        Random random = new Random(seed);
+        int bookCount = Integer.parseInt(option("books", "100000"));
+        int authorCount = Integer.parseInt(option("authors", "5000"));
+        double titleWords = Double.parseDouble(option("title-words", "3"));
+
+        words = new String[Math.max(bookCount / 10, 100)];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = createWord(random);
+        }
+        String[] authors = new String[authorCount];
+        for (int i = 0; i < authorCount; i++) {
+            authors[i] = createWord(random) + " " + createWord(random);
+        }
+        ZipfSampler authorSampler = new ZipfSampler(authorCount, Double.parseDouble(option("author-skew", "1.0")));
+
+        books = new Book[bookCount];
+        initialQuantities = new int[bookCount];
+        Map.Entry<Book, Integer>[] batch = new Map.Entry[bookCount];
+        for (int i = 0; i < bookCount; i++) {
+            // geometric number of words with the given mean, at least one
+            int wordCount = 1 + (int) (Math.log(1 - random.nextDouble()) / Math.log(1 - 1 / titleWords));
+            StringBuilder title = new StringBuilder(words[random.nextInt(words.length)]);
+            for (int w = 1; w < wordCount; w++) {
+                title.append(' ').append(words[random.nextInt(words.length)].toLowerCase());
+            }
+            BigDecimal price = BigDecimal.valueOf(100 + random.nextInt(200_000), 2);
+            books[i] = new Book(title.toString(), authors[authorSampler.sample(random)], price);
+            initialQuantities[i] = random.nextInt(50);
+            batch[i] = new AbstractMap.SimpleImmutableEntry<>(books[i], initialQuantities[i]);
+        }
+        store = new BookStore();
+        store.addBatch(batch);
+        ids = new int[bookCount];
+        for (int i = 0; i < bookCount; i++) {
+            ids[i] = store.getBookID(books[i]);
+        }
+        quantityChanges = new AtomicLongArray(bookCount);
+        bookSampler = new ZipfSampler(bookCount, Double.parseDouble(option("book-skew", "0.8")));
+    }
+
+    private static String createWord(Random random) {
+        String consonants = "bcdfghjklmnprstvz";
+        String vowels = "aeiouy";
+        int syllables = 1 + random.nextInt(3);
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i < syllables; i++) {
+            word.append(consonants.charAt(random.nextInt(consonants.length())));
+            word.append(vowels.charAt(random.nextInt(vowels.length())));
+        }
+        word.setCharAt(0, Character.toUpperCase(word.charAt(0)));
+        return word.toString();
+    }
+
+    /**
+     * Checks that every book's quantity is its initial quantity plus what was added minus what was reduced, that the
+     * new books are in the store and that no holds are left over from the carts
+     */
+    private boolean checkConsistency() {
+        int mismatches = 0;
+        for (int i = 0; i < books.length; i++) {
+            long expected = initialQuantities[i] + quantityChanges.get(i);
+            int actual = store.getQuantity(ids[i]);
+            if (actual != expected) {
+                if (mismatches++ < 10) {
+                    System.out.printf("Book %d has quantity %d but expected %d%n", ids[i], actual, expected);
+                }
+            }
+            if (store.getReservations().getHeldQuantity(ids[i]) != 0) {
+                if (mismatches++ < 10) {
+                    System.out.printf("Book %d still has %d held%n", ids[i], store.getReservations().getHeldQuantity(ids[i]));
+                }
+            }
+        }
+        for (Map.Entry<Book, Integer> newBook : newBooks.entrySet()) {
+            if (store.getQuantity(newBook.getKey()) != newBook.getValue()) {
+                if (mismatches++ < 10) {
+                    System.out.printf("New book %s has quantity %d but expected %d%n", newBook.getKey().getTitle(),
+                            store.getQuantity(newBook.getKey()), newBook.getValue());
+                }
+            }
+        }
+        int expectedSize = books.length + newBooks.size();
+        if (store.getStock().length != expectedSize) {
+            mismatches++;
+            System.out.printf("The store has %d books but expected %d%n", store.getStock().length, expectedSize);
+        }
+        System.out.println(mismatches == 0 ? "Consistency check passed" : String.format("Consistency check failed, %d mismatches", mismatches));
+        return mismatches == 0;
+    }
+
+    private final class Worker extends Thread {
+        private final Random random;
+        private final long operations;
+        private final CountDownLatch ready;
+        private final Histogram[] latencies = new Histogram[OPERATIONS.length];
+
+        private Worker(int index, long operations, CountDownLatch ready) {
+            super("load-" + index);
+            this.random = new Random(seed * 1_000_003 + index);
+            this.operations = operations;
+            this.ready = ready;
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] = new Histogram();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                ready.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            int mixTotal = Arrays.stream(mix).sum();
+            long interval = rate > 0 ? (long) (threadCount * 1e9 / rate) : 0;
+            long start = System.nanoTime();
+            long end = seconds > 0 ? start + (long) (seconds * 1e9) : Long.MAX_VALUE;
+            for (long i = 0; seconds > 0 || i < operations; i++) {
+                long intended = start + i * interval;
+                long now = System.nanoTime();
+                if (now >= end) {
+                    break;
+                }
+                if (intended > now) {
+                    LockSupport.parkNanos(intended - now);
+                }
+                int pick = random.nextInt(mixTotal);
+                int operation = 0;
+                while (pick >= mix[operation]) {
+                    pick -= mix[operation++];
+                }
+                long operationStart = interval > 0 ? intended : System.nanoTime();
+                execute(operation);
+                latencies[operation].record(System.nanoTime() - operationStart);
+            }
+        }
+
+        private void execute(int operation) {
+            int index = bookSampler.sample(random);
+            Book book = books[index];
+            switch (operation) {
+                case LIST:
+                    String word = words[random.nextInt(words.length)];
+                    store.list(word.substring(0, Math.min(word.length(), 1 + random.nextInt(4))));
+                    break;
+                case BUY:
+                    store.buy(book, books[bookSampler.sample(random)]);
+                    break;
+                case ADD:
+                    if (random.nextInt(100) == 0) {
+                        Book newBook = new Book(book.getTitle() + " " + random.nextLong(), book.getAuthor(), book.getPrice());
+                        int quantity = random.nextInt(10);
+                        store.add(newBook, quantity);
+                        newBooks.put(newBook, quantity);
+                    } else {
+                        int quantity = 1 + random.nextInt(5);
+                        store.add(book, quantity);
+                        quantityChanges.addAndGet(index, quantity);
+                    }
+                    break;
+                case REDUCE:
+                    int reduced = store.reduceQuantity(ids[index], 1 + random.nextInt(3)).getValue();
+                    quantityChanges.addAndGet(index, -reduced);
+                    break;
+                case CART:
+                    BookCart cart = new BookCart(store);
+                    int lines = 1 + random.nextInt(3);
+                    for (int line = 0; line < lines; line++) {
+                        cart.addToCart(books[bookSampler.sample(random)], 1 + random.nextInt(2));
+                    }
+                    store.getPrice(cart.getCartContent());
+                    while (cart.getCartContent().length > 0) {
+                        cart.removeFromCart(0);
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException(String.valueOf(operation));
+            }
+        }
+    }
+
+    /**
+     * Samples 0..n-1 where the probability of k is proportional to 1 / (k + 1)^exponent
+     */
+    private static final class ZipfSampler {
+        private final double[] cumulative;
+
+        private ZipfSampler(int n, double exponent) {
+            cumulative = new double[n];
+            double sum = 0;
+            for (int k = 0; k < n; k++) {
+                sum += 1 / Math.pow(k + 1, exponent);
+                cumulative[k] = sum;
+            }
+            for (int k = 0; k < n; k++) {
+                cumulative[k] /= sum;
+            }
+        }
+
+        private int sample(Random random) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble());
+            return Math.min(index < 0 ? -index - 1 : index, cumulative.length - 1);
+        }
+    }
+
+    /**
+     * Counts latencies in buckets of a power of two split in 32 sub buckets, so percentiles are within about 3%
+     */
+    private static final class Histogram {
+        private static final int SUB_BITS = 5;
+        private final long[] counts = new long[64 << SUB_BITS];
+        private long count;
+        private long max;
+
+        private void record(long nanos) {
+            counts[index(Math.max(nanos, 0))]++;
+            count++;
+            max = Math.max(max, nanos);
+        }
+
+        private void add(Histogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            count += other.count;
+            max = Math.max(max, other.max);
+        }
+
+        /**
+         * @return the highest latency in the bucket holding the percentile, in nanoseconds
+         */
+        private long percentile(double percentile) {
+            long target = Math.max((long) Math.ceil(percentile / 100 * count), 1);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        private static int index(long value) {
+            if (value < 1 << SUB_BITS) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            return (shift + 1) << SUB_BITS | (int) ((value >>> shift) - (1 << SUB_BITS));
+        }
+
+        private static long upperBound(int index) {
+            if (index < 1 << SUB_BITS) {
+                return index;
+            }
+            int shift = (index >>> SUB_BITS) - 1;
+            long mantissa = (index & ((1 << SUB_BITS) - 1)) + (1 << SUB_BITS);
+            return ((mantissa + 1) << shift) - 1;
+        }
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(collector.getCollectionCount(), 0);
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(collector.getCollectionTime(), 0);
+        }
+        return millis;
+    }
+}
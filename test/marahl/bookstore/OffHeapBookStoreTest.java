@@ -0,0 +1,106 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class OffHeapBookStoreTest {
+
+    private static final Book[] testBooks = new Book[]{
+            new Book("Mastering åäö", "Average Swede", "762.00"),
+            new Book("How To Spend Money", "Rich Bloke", "1000000.00"),
+            new Book("Generic Title", "First Author", "185.50"),
+            new Book("Generic Title", "Second Author", "1748.00"),
+            new Book("Random Sales", "Cunning Bastard", "999.00"),
+            new Book("Random Sales", "Cunning Bastard", "499.50"),
+            new Book("Desired", "Rich Bloke", "564.50")};
+    private static final int[] testQuantities = {15, 1, 5, 3, 20, 3, 0};
+    private OffHeapBookStore store = null;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new OffHeapBookStore();
+        for (int i = 0; i < testBooks.length; i++) {
+            store.add(testBooks[i], testQuantities[i]);
+        }
+    }
+
+    private static void assertBookEquals(Book expected, Book actual) {
+        assertEquals(expected.getTitle(), actual.getTitle());
+        assertEquals(expected.getAuthor(), actual.getAuthor());
+        assertEquals(0, expected.getPrice().compareTo(actual.getPrice()));
+    }
+
+    @Test
+    public void addAndGet() throws Exception {
+        for (int i = 0; i < testBooks.length; i++) {
+            assertEquals(i, store.getBookID(testBooks[i]));
+            assertBookEquals(testBooks[i], store.getBook(i));
+            assertEquals(testQuantities[i], store.getQuantity(i));
+        }
+        assertEquals(testBooks.length, store.size());
+        assertNull(store.getBook(testBooks.length));
+    }
+
+    @Test
+    public void addExistingMatchesByValue() throws Exception {
+        store.add(new Book("Generic Title", "First Author", new BigDecimal("185.5")), 2);
+        assertEquals(testBooks.length, store.size());
+        assertEquals(7, store.getQuantity(testBooks[2]));
+    }
+
+    @Test
+    public void addMany() throws Exception {
+        for (int i = 0; i < 20000; i++) {
+            store.add(new Book("Title " + i, "Author " + (i % 100), BigDecimal.valueOf(i, 2)), i);
+        }
+        assertEquals(testBooks.length + 20000, store.size());
+        for (int i = 0; i < 20000; i += 997) {
+            Book book = new Book("Title " + i, "Author " + (i % 100), BigDecimal.valueOf(i, 2));
+            int id = store.getBookID(book);
+            assertBookEquals(book, store.getBook(id));
+            assertEquals(i, store.getQuantity(id));
+        }
+        assert (store.getAllocatedBytes() > 20000 * 30);
+    }
+
+    @Test
+    public void list() throws Exception {
+        Book[] list = store.list("generic title");
+        assertEquals(2, list.length);
+        assertBookEquals(testBooks[2], list[0]);
+        assertBookEquals(testBooks[3], list[1]);
+        assertEquals(1, store.list("MASTERING ÅÄ").length);
+        assertEquals(2, store.list("Rich").length);
+        assertEquals(0, store.list("Marcus Ahlén").length);
+        assertEquals(testBooks.length, store.list("").length);
+    }
+
+    @Test
+    public void buy() throws Exception {
+        Book limited = testBooks[1];
+        int[] status = store.buy(limited, new Book("", "", "0"), limited, testBooks[6]);
+        assertArrayEquals(new int[]{BookStore.OK, BookStore.DOES_NOT_EXIST, BookStore.NOT_IN_STOCK, BookStore.NOT_IN_STOCK}, status);
+    }
+
+    @Test
+    public void removeAndReduce() throws Exception {
+        assertEquals(3, store.reduceQuantity(2, 3));
+        assertEquals(2, store.getQuantity(2));
+
+        Map.Entry<Book, Integer> removed = store.remove(4);
+        assertBookEquals(testBooks[4], removed.getKey());
+        assertEquals(20, (int) removed.getValue());
+        assertEquals(-1, store.getBookID(testBooks[4]));
+        assertNull(store.getBook(4));
+        assertEquals(5, store.getBookID(testBooks[5]));
+
+        store.add(testBooks[4], 1);
+        assertEquals(testBooks.length, store.getBookID(testBooks[4]));
+    }
+}
@@ -0,0 +1,79 @@
+package marahl.bookstore;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class PersistentMapTest {
+
+    @Test
+    public void matchesHashMap() throws Exception {
+        Random random = new Random(5);
+        PersistentMap<Key, Integer> map = PersistentMap.empty();
+        Map<Key, Integer> expected = new HashMap<>();
+        List<PersistentMap<Key, Integer>> versions = new ArrayList<>();
+        List<Map<Key, Integer>> expectedVersions = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            // few distinct hashes so that collision nodes are exercised too
+            Key key = new Key(random.nextInt(5000), random.nextInt(3) == 0 ? random.nextInt(8) : random.nextInt());
+            if (random.nextInt(3) == 0) {
+                map = map.remove(key);
+                expected.remove(key);
+            } else {
+                map = map.put(key, i);
+                expected.put(key, i);
+            }
+            if (i % 2000 == 0) {
+                versions.add(map);
+                expectedVersions.add(new HashMap<>(expected));
+            }
+        }
+        assertMap(expected, map);
+        for (int i = 0; i < versions.size(); i++) {
+            assertMap(expectedVersions.get(i), versions.get(i));
+        }
+    }
+
+    @Test
+    public void unchangedMapIsReturned() throws Exception {
+        PersistentMap<Integer, String> map = PersistentMap.<Integer, String>empty().put(1, "one");
+        String one = map.get(1);
+        assertSame(map, map.put(1, one));
+        assertSame(map, map.remove(2));
+        assertEquals(0, map.remove(1).size());
+        assertNull(map.remove(1).get(1));
+    }
+
+    private static void assertMap(Map<Key, Integer> expected, PersistentMap<Key, Integer> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (Map.Entry<Key, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), actual.get(entry.getKey()));
+        }
+        Map<Key, Integer> visited = new HashMap<>();
+        actual.forEach(visited::put);
+        assertEquals(expected, visited);
+        assertNull(actual.get(new Key(-1, 0)));
+    }
+
+    private static final class Key {
+        private final int value;
+        private final int hash;
+
+        private Key(int value, int hash) {
+            this.value = value;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && ((Key) other).value == value;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package marahl.bookstore;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class PersistentVectorTest {
+
+    @Test
+    public void matchesArrayList() throws Exception {
+        Random random = new Random(9);
+        PersistentVector<Integer> vector = PersistentVector.empty();
+        List<Integer> expected = new ArrayList<>();
+        PersistentVector<Integer> old = null;
+        List<Integer> expectedOld = null;
+        for (int i = 0; i < 40000; i++) {
+            if (!expected.isEmpty() && random.nextInt(4) == 0) {
+                int index = random.nextInt(expected.size());
+                vector = vector.set(index, -i);
+                expected.set(index, -i);
+            } else {
+                vector = vector.append(i);
+                expected.add(i);
+            }
+            if (i == 1100) {
+                old = vector;
+                expectedOld = new ArrayList<>(expected);
+            }
+        }
+        assertVector(expected, vector);
+        assertVector(expectedOld, old);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void outOfBounds() throws Exception {
+        PersistentVector.<String>empty().append("a").get(1);
+    }
+
+    private static void assertVector(List<Integer> expected, PersistentVector<Integer> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i), actual.get(i));
+        }
+    }
+}
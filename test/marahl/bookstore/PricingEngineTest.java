@@ -0,0 +1,134 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class PricingEngineTest {
+
+    private final Book swede = new Book("Mastering åäö", "Average Swede", "100.00");
+    private final Book swede2 = new Book("Mastering Ää", "Average Swede", "50.00");
+    private final Book money = new Book("How To Spend Money", "Rich Bloke", "1000.00");
+    private final Book desired = new Book("Desired", "Rich Bloke", "564.50");
+
+    @Test
+    public void noPromotions() throws Exception {
+        BookCart cart = new BookCart();
+        cart.addToCart(swede, 2);
+        cart.addToCart(desired);
+        PricingEngine.Quote quote = new PricingEngine().price(cart);
+        assertEquals(new BigDecimal("764.50"), quote.getSubtotal());
+        assertEquals(new BigDecimal("764.50"), quote.getTotal());
+        assertEquals(new BigDecimal("0.00"), quote.getDiscount());
+        assertTrue(quote.getDiscounts().isEmpty());
+    }
+
+    @Test
+    public void multiBuyPerAuthor() throws Exception {
+        PricingEngine engine = new PricingEngine(PricingEngine.multiBuy(3, 2, "Average Swede"));
+        BookCart cart = new BookCart();
+        cart.addToCart(swede, 2);
+        cart.addToCart(swede2, 2);
+        cart.addToCart(money, 3);
+        // 4 copies by the Swede, the cheapest is free. The Rich Bloke isn't included.
+        PricingEngine.Quote quote = engine.price(cart);
+        assertEquals(new BigDecimal("50.00"), quote.getDiscount());
+        assertEquals(new BigDecimal("3250.00"), quote.getTotal());
+
+        engine = new PricingEngine(PricingEngine.multiBuy(3, 2));
+        assertEquals(new BigDecimal("1050.00"), engine.price(cart).getDiscount());
+    }
+
+    @Test
+    public void volumeDiscountAndBundle() throws Exception {
+        PricingEngine engine = new PricingEngine(
+                PricingEngine.volumeDiscount(5, 10),
+                PricingEngine.bundle(new BigDecimal("1400"), money, desired));
+        BookCart cart = new BookCart();
+        cart.addToCart(money, 2);
+        cart.addToCart(desired, 1);
+        PricingEngine.Quote quote = engine.price(cart);
+        assertEquals(new BigDecimal("164.50"), quote.getDiscount());
+        assertEquals(1, quote.getDiscounts().size());
+
+        cart.addToCart(swede, 2);
+        quote = engine.price(cart);
+        // 10% of 2764.50 rounded down and one bundle
+        assertEquals(new BigDecimal("276.45"), quote.getDiscounts().get("10% off 5 or more"));
+        assertEquals(new BigDecimal("440.95"), quote.getDiscount());
+        assertEquals(new BigDecimal("2323.55"), quote.getTotal());
+    }
+
+    @Test
+    public void neverBelowZero() throws Exception {
+        PricingEngine engine = new PricingEngine(PricingEngine.volumeDiscount(1, 100), PricingEngine.multiBuy(2, 1));
+        Map.Entry<Book, Integer>[] lines = new Map.Entry[]{new AbstractMap.SimpleImmutableEntry<>(swede, 2)};
+        PricingEngine.Quote quote = engine.price(lines);
+        assertEquals(new BigDecimal("0.00"), quote.getTotal());
+        assertEquals(-1, quote.getCartVersion());
+    }
+
+    @Test
+    public void cachedPerCartVersion() throws Exception {
+        AtomicInteger evaluations = new AtomicInteger();
+        PricingEngine engine = new PricingEngine(new PricingEngine.Promotion() {
+            @Override
+            public String getName() {
+                return "counting";
+            }
+
+            @Override
+            public PricingEngine.Accumulator newAccumulator() {
+                evaluations.incrementAndGet();
+                return new PricingEngine.Accumulator() {
+                    @Override
+                    public void add(Book book, long cents, int quantity) {
+                    }
+
+                    @Override
+                    public long getDiscount() {
+                        return 0;
+                    }
+                };
+            }
+        });
+        BookCart cart = new BookCart();
+        cart.addToCart(swede, 2);
+        PricingEngine.Quote quote = engine.price(cart);
+        assertSame(quote, engine.price(cart));
+        assertEquals(1, evaluations.get());
+
+        cart.removeFromCart(0);
+        assertEquals(new BigDecimal("100.00"), engine.price(cart).getTotal());
+        assertEquals(2, evaluations.get());
+        assertEquals(cart.getVersion(), engine.price(cart).getCartVersion());
+    }
+
+    @Test
+    public void cartLines() throws Exception {
+        BookCart cart = new BookCart();
+        long version = cart.getVersion();
+        cart.addToCart(swede, 2);
+        cart.addToCart(money);
+        cart.addToCart(swede);
+        cart.removeFromCart(1);
+        Map.Entry<Book, Integer>[] lines = cart.getLines();
+        assertEquals(2, lines.length);
+        assertEquals(swede, lines[0].getKey());
+        assertEquals(2, (int) lines[0].getValue());
+        assertEquals(money, lines[1].getKey());
+        assertEquals(1, (int) lines[1].getValue());
+        assertEquals(version + 4, cart.getVersion());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void payingForMoreThanBought() throws Exception {
+        PricingEngine.multiBuy(2, 3);
+    }
+}
@@ -0,0 +1,117 @@
+package marahl.bookstore;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SalesTrackerTest {
+
+    private long now;
+    private SalesTracker tracker;
+
+    @Before
+    public void setUp() throws Exception {
+        now = 0;
+        tracker = new SalesTracker(() -> now, 4, 1000);
+    }
+
+    @Test
+    public void topSellers() throws Exception {
+        tracker.recordSale(1, 5);
+        tracker.recordSale(2, 10);
+        tracker.recordSale(3, 1);
+
+        Map.Entry<Integer, Double>[] top = tracker.getTopSellers(2);
+        assertEquals(2, top.length);
+        assertEquals(Integer.valueOf(2), top[0].getKey());
+        assertEquals(10, top[0].getValue(), 0.001);
+        assertEquals(Integer.valueOf(1), top[1].getKey());
+    }
+
+    @Test
+    public void topSellersFindHeavyHittersInBoundedMemory() throws Exception {
+        tracker = new SalesTracker(() -> now, 64, 1000);
+        Random random = new Random(3);
+        for (int i = 0; i < 10000; i++) {
+            tracker.recordSale(100 + random.nextInt(1000), 1);
+            if (i % 10 == 0) tracker.recordSale(7, 1);
+            if (i % 20 == 0) tracker.recordSale(8, 1);
+        }
+        Map.Entry<Integer, Double>[] top = tracker.getTopSellers(100);
+        assertEquals(64, top.length);
+        assertEquals(Integer.valueOf(7), top[0].getKey());
+        assertEquals(Integer.valueOf(8), top[1].getKey());
+    }
+
+    @Test
+    public void salesDecay() throws Exception {
+        tracker.recordSale(1, 8);
+        now = 2000;
+        tracker.recordSale(2, 4);
+        Map.Entry<Integer, Double>[] top = tracker.getTopSellers(2);
+        assertEquals(Integer.valueOf(2), top[0].getKey());
+        assertEquals(4, top[0].getValue(), 0.001);
+        assertEquals(2, top[1].getValue(), 0.001);
+
+        now = 2000 + 2000 * 1000;
+        tracker.recordSale(3, 1);
+        top = tracker.getTopSellers(1);
+        assertEquals(Integer.valueOf(3), top[0].getKey());
+        assertEquals(1, top[0].getValue(), 0.001);
+    }
+
+    @Test
+    public void lowStock() throws Exception {
+        tracker.setLowStockThreshold(5);
+        tracker.updateQuantity(1, 10);
+        tracker.updateQuantity(2, 4);
+        tracker.updateQuantity(3, 1);
+        tracker.updateQuantity(4, 3);
+        tracker.updateQuantity(2, 0);
+        tracker.updateQuantity(4, 6);
+
+        Map.Entry<Integer, Integer>[] low = tracker.getLowStock(10);
+        assertEquals(2, low.length);
+        assertEquals(Integer.valueOf(2), low[0].getKey());
+        assertEquals(Integer.valueOf(0), low[0].getValue());
+        assertEquals(Integer.valueOf(3), low[1].getKey());
+
+        tracker.removeBook(2);
+        assertEquals(Integer.valueOf(3), tracker.getLowStock(1)[0].getKey());
+    }
+
+    @Test
+    public void lowStockKeepsTheLowestInBoundedMemory() throws Exception {
+        tracker.setLowStockThreshold(100);
+        Random random = new Random(5);
+        int[] quantities = new int[10000];
+        for (int i = 0; i < 50000; i++) {
+            int id = random.nextInt(quantities.length);
+            quantities[id] = 5 + random.nextInt(200);
+            tracker.updateQuantity(id, quantities[id]);
+        }
+        tracker.updateQuantity(42, 1);
+        tracker.updateQuantity(7, 2);
+        tracker.updateQuantity(9, 0);
+        tracker.updateQuantity(11, 3);
+        tracker.updateQuantity(12, 4);
+
+        Map.Entry<Integer, Integer>[] low = tracker.getLowStock(10);
+        assertEquals(4, low.length);
+        assertEquals(Integer.valueOf(9), low[0].getKey());
+        assertEquals(Integer.valueOf(42), low[1].getKey());
+        assertEquals(Integer.valueOf(7), low[2].getKey());
+        assertEquals(Integer.valueOf(3), low[3].getValue());
+
+        tracker.updateQuantity(42, 150);
+        tracker.removeBook(9);
+        low = tracker.getLowStock(10);
+        assertEquals(2, low.length);
+        assertEquals(Integer.valueOf(7), low[0].getKey());
+        assertEquals(Integer.valueOf(11), low[1].getKey());
+    }
+}
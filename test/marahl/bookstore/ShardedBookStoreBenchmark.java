@@ -0,0 +1,89 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+
+import java.math.BigDecimal;
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures the throughput of a {@link ShardedBookStore} with an increasing number of segments.
+ * <p>
+ * Each thread runs a mix of quantity lookups, quantity changes, new books and searches against a shared store.
+ * Run with: java marahl.bookstore.ShardedBookStoreBenchmark [books] [threads] [seconds per run]
+ */
+public class ShardedBookStoreBenchmark {
+    private static final int[] SEGMENT_COUNTS = {1, 2, 4, 8, 16, 32};
+
+    public static void main(String[] args) throws Exception {
+        int bookCount = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        double seconds = args.length > 2 ? Double.parseDouble(args[2]) : 3;
+
+        Map.Entry<Book, Integer>[] books = new Map.Entry[bookCount];
+        for (int i = 0; i < bookCount; i++) {
+            Book book = new Book("Title " + i, "Author " + (i % 1000), new BigDecimal(i % 500));
+            books[i] = new AbstractMap.SimpleImmutableEntry<>(book, 100);
+        }
+
+        System.out.printf("%d books, %d threads, %.1f s per run%n", bookCount, threads, seconds);
+        System.out.printf("%10s%16s%12s%n", "Segments", "ops/s", "Speedup");
+        run(1, books, threads, seconds / 3);
+        double baseline = 0;
+        for (int segments : SEGMENT_COUNTS) {
+            double throughput = run(segments, books, threads, seconds);
+            if (baseline == 0) baseline = throughput;
+            System.out.printf("%10d%16.0f%12.2f%n", segments, throughput, throughput / baseline);
+        }
+    }
+
+    private static double run(int segments, Map.Entry<Book, Integer>[] books, int threads, double seconds) throws Exception {
+        ShardedBookStore store = new ShardedBookStore(segments);
+        store.addBatch(books);
+        LongAdder operations = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long endTime = System.nanoTime() + (long) (seconds * 1e9);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            long seed = t;
+            workers[t] = new Thread(() -> {
+                Random random = new Random(seed);
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                int done = 0;
+                while (System.nanoTime() < endTime) {
+                    for (int i = 0; i < 100; i++) {
+                        Book book = books[random.nextInt(books.length)].getKey();
+                        int operation = random.nextInt(1000);
+                        if (operation < 600) {
+                            store.getQuantity(book);
+                        } else if (operation < 850) {
+                            store.add(book, 1);
+                        } else if (operation < 995) {
+                            store.reduceQuantity(store.getBookID(book), 1);
+                        } else if (operation < 999) {
+                            store.add(new Book("New " + random.nextInt(), book.getAuthor(), book.getPrice()), 1);
+                        } else {
+                            store.list("Title 12");
+                        }
+                    }
+                    done += 100;
+                }
+                operations.add(done);
+            });
+            workers[t].start();
+        }
+        long startTime = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return operations.sum() / ((System.nanoTime() - startTime) / 1e9);
+    }
+}
@@ -0,0 +1,103 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ShardedBookStoreTest {
+
+    private static final int SEGMENTS = 4;
+    private static final Map.Entry<Book, Integer>[] testBooks = TestBooks.create();
+    private ShardedBookStore store = null;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new ShardedBookStore(SEGMENTS);
+        store.addBatch(testBooks);
+    }
+
+    @Test
+    public void idsEncodeSegment() throws Exception {
+        for (Map.Entry<Book, Integer> testBook : testBooks) {
+            Book book = testBook.getKey();
+            int id = store.getBookID(book);
+            assertEquals(book, store.getBook(id));
+            assertEquals((int) testBook.getValue(), store.getQuantity(id));
+            assertEquals((int) testBook.getValue(), store.getQuantity(book));
+        }
+        assertNull(store.getBook(-1));
+        assertEquals(-1, store.getBookID(new Book("", "", "0")));
+    }
+
+    @Test
+    public void list() throws Exception {
+        Book[] list = store.list("Rich Bloke");
+        assertEquals(2, list.length);
+        assertTrue(store.getBookID(list[0]) < store.getBookID(list[1]));
+        assertEquals(testBooks.length, store.list("").length);
+        assertEquals(testBooks.length, store.getStock().length);
+    }
+
+    @Test
+    public void mergesSegmentsInIdOrder() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            store.add(new Book("Book " + i, "Author " + i % 13, "1"), 1);
+            if (i % 3 == 0) {
+                store.remove(store.getBookID(store.list("Book " + i / 2)[0]));
+            }
+        }
+        Book[] stock = store.getStock();
+        for (int i = 1; i < stock.length; i++) {
+            assertTrue(store.getBookID(stock[i - 1]) < store.getBookID(stock[i]));
+        }
+        Book[] list = store.list("author 1");
+        assertTrue(list.length > 0);
+        for (int i = 1; i < list.length; i++) {
+            assertTrue(store.getBookID(list[i - 1]) < store.getBookID(list[i]));
+        }
+    }
+
+    @Test
+    public void buy() throws Exception {
+        Book limited = testBooks[1].getKey();
+        Book removed = testBooks[2].getKey();
+        store.remove(removed);
+
+        int[] status = store.buy(limited, removed, limited, testBooks[0].getKey());
+        assertArrayEquals(new int[]{BookStore.OK, BookStore.DOES_NOT_EXIST, BookStore.NOT_IN_STOCK, BookStore.OK}, status);
+        assertEquals(testBooks[1].getKey().getPrice().add(testBooks[0].getKey().getPrice()),
+                store.getPrice(limited, removed, limited, testBooks[0].getKey()));
+    }
+
+    @Test
+    public void getPriceDoesNotSell() throws Exception {
+        Book book = testBooks[0].getKey();
+        assertEquals(book.getPrice(), store.getPrice(book));
+        assertEquals(0, store.getTopSellers(10).length);
+
+        store.buy(book, book);
+        Map.Entry<Book, Double>[] topSellers = store.getTopSellers(10);
+        assertEquals(1, topSellers.length);
+        assertEquals(book, topSellers[0].getKey());
+    }
+
+    @Test
+    public void reduceAndRemove() throws Exception {
+        Book book = testBooks[4].getKey();
+        int id = store.getBookID(book);
+        assertEquals(5, (int) store.reduceQuantity(id, 5).getValue());
+        assertEquals(15, store.getQuantity(id));
+        assertEquals(book, store.remove(id).getKey());
+        assertEquals(-1, store.getBookID(book));
+        assertEquals(testBooks.length - 1, store.getStock().length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noSegments() throws Exception {
+        new ShardedBookStore(0);
+    }
+}
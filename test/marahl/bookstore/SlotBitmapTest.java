@@ -0,0 +1,94 @@
+package marahl.bookstore;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SlotBitmapTest {
+
+    @Test
+    public void addAndRemove() throws Exception {
+        SlotBitmap.Builder builder = SlotBitmap.EMPTY.edit();
+        assertTrue(builder.add(3));
+        assertFalse(builder.add(3));
+        assertTrue(builder.add(70000));
+        SlotBitmap bitmap = builder.build();
+        assertTrue(bitmap.contains(3));
+        assertTrue(bitmap.contains(70000));
+        assertFalse(bitmap.contains(4));
+        assertEquals(2, bitmap.cardinality());
+        assertArrayEquals(new int[]{3, 70000}, bitmap.toArray());
+
+        assertTrue(builder.remove(70000));
+        assertFalse(builder.remove(70001));
+        SlotBitmap removed = builder.build();
+        assertArrayEquals(new int[]{3}, removed.toArray());
+        // the bitmap built before is untouched
+        assertArrayEquals(new int[]{3, 70000}, bitmap.toArray());
+        assertSame(removed, builder.build());
+    }
+
+    @Test
+    public void matchesBitSet() throws Exception {
+        Random random = new Random(7);
+        SlotBitmap.Builder first = SlotBitmap.EMPTY.edit();
+        SlotBitmap.Builder second = SlotBitmap.EMPTY.edit();
+        BitSet firstExpected = new BitSet();
+        BitSet secondExpected = new BitSet();
+        // dense and sparse containers, crossing the array limit both ways
+        for (int i = 0; i < 60000; i++) {
+            int slot = random.nextInt(3) == 0 ? random.nextInt(200000) : random.nextInt(8000);
+            first.add(slot);
+            firstExpected.set(slot);
+            slot = random.nextInt(200000);
+            second.add(slot);
+            secondExpected.set(slot);
+        }
+        for (int i = 0; i < 5000; i++) {
+            int slot = random.nextInt(8000);
+            first.remove(slot);
+            firstExpected.clear(slot);
+        }
+        SlotBitmap a = first.build();
+        SlotBitmap b = second.build();
+        assertBitmap(firstExpected, a);
+        assertBitmap(secondExpected, b);
+
+        BitSet and = (BitSet) firstExpected.clone();
+        and.and(secondExpected);
+        assertBitmap(and, a.and(b));
+        BitSet or = (BitSet) firstExpected.clone();
+        or.or(secondExpected);
+        assertBitmap(or, a.or(b));
+        assertBitmap(or, SlotBitmap.or(b, a));
+        BitSet andNot = (BitSet) firstExpected.clone();
+        andNot.andNot(secondExpected);
+        assertBitmap(andNot, a.andNot(b));
+        assertTrue(a.andNot(a).isEmpty());
+    }
+
+    @Test
+    public void shrinksBackToArray() throws Exception {
+        SlotBitmap.Builder builder = SlotBitmap.EMPTY.edit();
+        for (int slot = 0; slot < 10000; slot++) {
+            builder.add(slot);
+        }
+        SlotBitmap full = builder.build();
+        for (int slot = 0; slot < 9999; slot++) {
+            builder.remove(slot);
+        }
+        assertArrayEquals(new int[]{9999}, builder.build().toArray());
+        assertEquals(10000, full.cardinality());
+    }
+
+    private static void assertBitmap(BitSet expected, SlotBitmap actual) {
+        assertArrayEquals(expected.stream().toArray(), actual.toArray());
+        assertEquals(expected.cardinality(), actual.cardinality());
+        for (int slot = expected.nextSetBit(0); slot >= 0; slot = expected.nextSetBit(slot + 1)) {
+            assertTrue(actual.contains(slot));
+        }
+    }
+}
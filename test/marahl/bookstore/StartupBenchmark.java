@@ -0,0 +1,53 @@
+package marahl.bookstore;
+
+/**
+ * Measures how long it takes until the console can show its prompt, with the stock loaded up front and with the
+ * stock loaded in the background, for catalogs of increasing size. Also measures the first fuzzy search, which
+ * builds its index on first use.
+ * <p>
+ * Run with: java marahl.bookstore.StartupBenchmark [largest catalog]
+ */
+public class StartupBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int largest = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        System.out.printf("%10s%16s%16s%16s%16s%n", "Books", "Eager prompt", "Fast prompt", "Fast loaded", "First find");
+        for (int books = 10; books <= largest; books *= 10) {
+            String stock = createStock(books);
+            run(stock, books);
+        }
+    }
+
+    private static void run(String stock, int books) throws Exception {
+        long start = System.nanoTime();
+        ConsoleBookStore eager = new ConsoleBookStore(new BookStore());
+        eager.addStock(stock);
+        double eagerPrompt = millisSince(start);
+
+        start = System.nanoTime();
+        BookStore store = new BookStore();
+        ConsoleBookStore fast = new ConsoleBookStore(store);
+        fast.addStockInBackground(() -> stock);
+        double fastPrompt = millisSince(start);
+        fast.awaitStock();
+        double fastLoaded = millisSince(start);
+
+        start = System.nanoTime();
+        store.fuzzyList("Titel 12");
+        double firstFind = millisSince(start);
+        System.out.printf("%10d%14.1fms%14.1fms%14.1fms%14.1fms%n", books, eagerPrompt, fastPrompt, fastLoaded, firstFind);
+    }
+
+    private static String createStock(int books) {
+        StringBuilder stock = new StringBuilder();
+        for (int i = 0; i < books; i++) {
+            stock.append("Title ").append(i).append(";Author ").append(i % 1000).append(';')
+                    .append(i % 500).append(".50;").append(i % 20).append('\n');
+        }
+        return stock.toString();
+    }
+
+    private static double millisSince(long start) {
+        return (System.nanoTime() - start) / 1e6;
+    }
+}
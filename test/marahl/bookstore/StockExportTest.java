@@ -0,0 +1,188 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class StockExportTest {
+
+    private BookStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new BookStore();
+        store.add(new Book("Mastering åäö", "Average Swede", new BigDecimal("762.00")), 15);
+        store.add(new Book("How To Spend Money", "Rich Bloke", new BigDecimal("1000000.00")), 1);
+        store.add(new Book("Semi;colons, commas and \"quotes\"", "Rich Bloke", new BigDecimal("185.5")), 5);
+        store.add(new Book("Two\nlines", "Second Author", new BigDecimal("0")), 0);
+        store.remove(1);
+    }
+
+    @Test
+    public void csv() throws Exception {
+        StringWriter writer = new StringWriter();
+        store.exportCsv(writer);
+        assertEquals("id,title,author,price,quantity\r\n" +
+                "0,Mastering åäö,Average Swede,762.00,15\r\n" +
+                "2,\"Semi;colons, commas and \"\"quotes\"\"\",Rich Bloke,185.5,5\r\n" +
+                "3,\"Two\nlines\",Second Author,0,0\r\n", writer.toString());
+
+        BookStore imported = new BookStore();
+        assertEquals(3, imported.importCsv(new StringReader(writer.toString())));
+        assertSameStock(store, imported);
+    }
+
+    @Test(expected = ParseException.class)
+    public void csvWithoutHeader() throws Exception {
+        new BookStore().importCsv(new StringReader("0,Title,Author,1,1\r\n"));
+    }
+
+    @Test
+    public void csvWithBadRecord() throws Exception {
+        try {
+            new BookStore().importCsv(new StringReader("id,title,author,price,quantity\n0,Title,Author,1,1\n1,Title,Author,1,many\n"));
+            fail();
+        } catch (ParseException e) {
+            assertEquals(2, e.getErrorOffset());
+        }
+    }
+
+    @Test
+    public void csvWithNegativeQuantity() throws Exception {
+        try {
+            new BookStore().importCsv(new StringReader("id,title,author,price,quantity\n0,Title,Author,1,1\n1,Title,Author,1,-3\n"));
+            fail();
+        } catch (ParseException e) {
+            assertEquals(2, e.getErrorOffset());
+        }
+    }
+
+    @Test
+    public void csvIntoStoreWithSameBooks() throws Exception {
+        StringWriter writer = new StringWriter();
+        store.exportCsv(writer);
+        store.add(store.getBook(0), 5);
+        assertEquals(3, store.importCsv(new StringReader(writer.toString())));
+        assertEquals(15, store.getQuantity(0));
+        assertEquals(3, store.getStock().length);
+    }
+
+    @Test
+    public void csvWithIdOfDifferentBook() throws Exception {
+        try {
+            store.importCsv(new StringReader("id,title,author,price,quantity\n4,New,Author,1,1\n0,Other,Author,1,7\n"));
+            fail();
+        } catch (ParseException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("ID 0"));
+        }
+        assertEquals(15, store.getQuantity(0));
+        assertNull(store.getBook(4));
+    }
+
+    @Test
+    public void binary() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        store.exportBinary(output);
+
+        BookStore imported = new BookStore();
+        assertEquals(3, imported.importBinary(new ByteArrayInputStream(output.toByteArray())));
+        assertSameStock(store, imported);
+        imported.add(new Book("New", "Book", "1"), 1);
+        assertEquals(4, imported.getBookID(imported.list("New")[0]));
+    }
+
+    @Test(expected = IOException.class)
+    public void binaryOfSomethingElse() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        store.exportCsv(new OutputStreamWriter(new GZIPOutputStream(output, true), StandardCharsets.UTF_8));
+        new BookStore().importBinary(new ByteArrayInputStream(output.toByteArray()));
+    }
+
+    @Test
+    public void binaryWithCorruptLength() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(output))) {
+            out.writeInt(0x424b5331);
+            // a count of -5 as a variable length integer
+            out.write(new byte[]{(byte) 0xfb, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f});
+        }
+        try {
+            new BookStore().importBinary(new ByteArrayInputStream(output.toByteArray()));
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("-5"));
+        }
+    }
+
+    @Test
+    public void binaryWithHugeCounts() throws Exception {
+        // a count of 0x7fffffff books, and one book with a count of 0x7fffffff authors
+        byte[] hugeCount = {(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07};
+        for (byte[] counts : new byte[][]{hugeCount, {1, 0, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07}}) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(output))) {
+                out.writeInt(0x424b5331);
+                out.write(counts);
+                out.write(new byte[]{2, 'a', 'b'});
+            }
+            try {
+                new BookStore().importBinary(new ByteArrayInputStream(output.toByteArray()));
+                fail();
+            } catch (EOFException e) {
+                // the data ends long before the count
+            }
+        }
+    }
+
+    @Test
+    public void binaryIsSmallerThanText() throws Exception {
+        Random random = new Random(42);
+        Map.Entry<Book, Integer>[] books = new Map.Entry[20000];
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < books.length; i++) {
+            Book book = new Book("Generic Title Volume " + i, "Author Number " + random.nextInt(500),
+                    BigDecimal.valueOf(random.nextInt(200000), 2));
+            int quantity = random.nextInt(50);
+            books[i] = new AbstractMap.SimpleImmutableEntry<>(book, quantity);
+            text.append(book.getTitle()).append(';').append(book.getAuthor()).append(';')
+                    .append(book.getPrice()).append(';').append(quantity).append('\n');
+        }
+        BookStore large = new BookStore();
+        large.addBatch(books);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        large.exportBinary(output);
+        int textSize = text.toString().getBytes(StandardCharsets.UTF_8).length;
+        assertTrue(output.size() + " bytes vs " + textSize, output.size() * 4 < textSize);
+
+        BookStore imported = new BookStore();
+        imported.importBinary(new ByteArrayInputStream(output.toByteArray()));
+        assertSameStock(large, imported);
+    }
+
+    private static void assertSameStock(BookStore expected, BookStore actual) {
+        StockSnapshot expectedSnapshot = expected.getStockSnapshot();
+        StockSnapshot actualSnapshot = actual.getStockSnapshot();
+        assertEquals(expectedSnapshot.size(), actualSnapshot.size());
+        for (int i = 0; i < expectedSnapshot.size(); i++) {
+            Book expectedBook = expectedSnapshot.getBookAt(i);
+            Book actualBook = actualSnapshot.getBookAt(i);
+            assertEquals(expectedSnapshot.getIdAt(i), actualSnapshot.getIdAt(i));
+            assertEquals(expectedBook.getTitle(), actualBook.getTitle());
+            assertEquals(expectedBook.getAuthor(), actualBook.getAuthor());
+            assertEquals(expectedBook.getPrice(), actualBook.getPrice());
+            assertEquals(expectedSnapshot.getQuantityAt(i), actualSnapshot.getQuantityAt(i));
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class StockFileWatcherTest {
+
+    private Path file;
+    private BookStore store;
+    private StockFileWatcher watcher;
+
+    @Before
+    public void setUp() throws Exception {
+        file = Files.createTempFile("stock", ".txt");
+        store = new BookStore();
+        watcher = new StockFileWatcher(file, store);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        watcher.close();
+        Files.deleteIfExists(file);
+    }
+
+    private void write(StringBuilder content) throws Exception {
+        Files.write(file, content.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static StringBuilder createStock(int rows) {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < rows; i++) {
+            content.append(String.format("Title %d;Author %d;%d.50;%d\n", i, i % 7, i, i % 5 + 1));
+        }
+        return content;
+    }
+
+    private int getQuantity(String title) {
+        for (Book book : store.list(title)) {
+            if (book.getTitle().equals(title)) {
+                return store.getQuantity(book);
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void initialLoad() throws Exception {
+        write(createStock(500));
+        watcher.reload();
+        assertEquals(500, store.getStock().length);
+        assertEquals(1, getQuantity("Title 0"));
+        assertEquals(5, getQuantity("Title 499"));
+    }
+
+    @Test
+    public void reloadUnchanged() throws Exception {
+        write(createStock(500));
+        watcher.reload();
+        int parsedChunks = watcher.reload();
+        assertEquals(0, parsedChunks);
+        assertEquals(500, store.getStock().length);
+        assertEquals(5, getQuantity("Title 499"));
+    }
+
+    @Test
+    public void reloadChangedRow() throws Exception {
+        StringBuilder content = createStock(5000);
+        write(content);
+        int allChunks = watcher.reload();
+
+        String row = "Title 2500;Author 1;2500.50;1\n";
+        int index = content.indexOf(row);
+        content.replace(index, index + row.length(), "Title 2500;Author 1;2500.50;12\n");
+        write(content);
+        int parsedChunks = watcher.reload();
+
+        assertEquals(1, parsedChunks);
+        assert (parsedChunks < allChunks);
+        assertEquals(12, getQuantity("Title 2500"));
+        assertEquals(5000, store.getStock().length);
+    }
+
+    @Test
+    public void reloadInsertedAndRemovedRows() throws Exception {
+        StringBuilder content = createStock(2000);
+        write(content);
+        watcher.reload();
+
+        String row = "Title 10;Author 3;10.50;1\n";
+        int index = content.indexOf(row);
+        content.delete(index, index + row.length());
+        content.insert(content.indexOf("Title 1000;"), "Inserted;Someone;1.00;4\n");
+        content.append("Appended;Someone;2.00;3\n");
+        write(content);
+        int parsedChunks = watcher.reload();
+
+        assert (parsedChunks <= 4);
+        assertEquals(0, getQuantity("Title 10"));
+        assertEquals(4, getQuantity("Inserted"));
+        assertEquals(3, getQuantity("Appended"));
+        assertEquals(5, getQuantity("Title 999"));
+        assertEquals(2001, watcher.getBookCount());
+    }
+
+    @Test
+    public void reloadBrokenRowAppliesNothing() throws Exception {
+        StringBuilder content = createStock(100);
+        write(content);
+        watcher.reload();
+
+        write(createStock(100).append("Broken;Row\n"));
+        try {
+            watcher.reload();
+        } catch (ParseException e) {
+            write(content.append("Fixed;Row;1.00;2\n"));
+            watcher.reload();
+        }
+        assertEquals(2, getQuantity("Fixed"));
+        assertEquals(101, store.getStock().length);
+    }
+
+    @Test
+    public void startThrowsOnBrokenFileAndKeepsWatching() throws Exception {
+        BlockingQueue<Exception> errors = new ArrayBlockingQueue<>(16);
+        watcher.close();
+        watcher = new StockFileWatcher(file, store, errors::add);
+        write(createStock(10).append("Broken;Row\n"));
+        try {
+            watcher.start();
+            fail("The broken row wasn't reported");
+        } catch (ParseException expected) {
+        }
+        assertEquals(0, store.getStock().length);
+
+        write(createStock(10).append("Broken;Row;1.00\n"));
+        Exception error = errors.poll(10, TimeUnit.SECONDS);
+        assertTrue(error instanceof ParseException);
+
+        write(createStock(10));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (store.getStock().length < 10 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(10, store.getStock().length);
+    }
+}
@@ -0,0 +1,124 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class StockHistoryTest {
+
+    private final AtomicLong time = new AtomicLong(1000);
+    private final Book book = new Book("Mastering åäö", "Average Swede", "762.00");
+    private BookStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new BookStore(time::get);
+    }
+
+    @Test
+    public void quantityAndPriceAtTime() throws Exception {
+        store.add(book, 5);
+        time.set(2000);
+        store.add(book, 3);
+        time.set(3000);
+        store.reduceQuantity(0, 2);
+        time.set(4000);
+        store.remove(0);
+
+        assertEquals(0, store.getQuantity(0, Instant.ofEpochMilli(999)));
+        assertEquals(5, store.getQuantity(0, Instant.ofEpochMilli(1000)));
+        assertEquals(5, store.getQuantity(0, Instant.ofEpochMilli(1999)));
+        assertEquals(8, store.getQuantity(0, Instant.ofEpochMilli(2500)));
+        assertEquals(6, store.getQuantity(0, Instant.ofEpochMilli(3000)));
+        assertEquals(0, store.getQuantity(0, Instant.ofEpochMilli(5000)));
+        assertEquals(0, store.getQuantity(1, Instant.ofEpochMilli(5000)));
+
+        assertNull(store.getPrice(0, Instant.ofEpochMilli(999)));
+        assertEquals(new BigDecimal("762.00"), store.getPrice(0, Instant.ofEpochMilli(3999)));
+        assertNull(store.getPrice(0, Instant.ofEpochMilli(4000)));
+    }
+
+    @Test
+    public void acrossCheckpoints() throws Exception {
+        store.add(book, 0);
+        Random random = new Random(42);
+        int[] expected = new int[5000];
+        int quantity = 0;
+        for (int t = 1; t < expected.length; t++) {
+            if (random.nextInt(3) == 0) {
+                time.set(1000 + t);
+                int change = random.nextInt(10);
+                if (random.nextBoolean()) {
+                    store.add(book, change);
+                    quantity += change;
+                } else {
+                    store.reduceQuantity(0, change);
+                    quantity = Math.max(quantity - change, 0);
+                }
+            }
+            expected[t] = quantity;
+        }
+        for (int t = 0; t < expected.length; t++) {
+            assertEquals(expected[t], store.getQuantity(0, Instant.ofEpochMilli(1000 + t)));
+        }
+    }
+
+    @Test
+    public void retention() throws Exception {
+        store.getHistory().setRetentionMillis(10000);
+        store.add(book, 1);
+        for (int i = 0; i < 1000; i++) {
+            time.addAndGet(100);
+            store.add(book, 1);
+        }
+        assertEquals(StockHistory.UNKNOWN, store.getQuantity(0, Instant.ofEpochMilli(2000)));
+        assertNull(store.getPrice(0, Instant.ofEpochMilli(2000)));
+        assertEquals(1001, store.getQuantity(0, Instant.ofEpochMilli(time.get())));
+        assertEquals(901, store.getQuantity(0, Instant.ofEpochMilli(time.get() - 10000)));
+        assertEquals(new BigDecimal("762.00"), store.getPrice(0, Instant.ofEpochMilli(time.get() - 10000)));
+        assertTrue(store.getHistory().size() <= 100 + 2 * StockHistory.CHECKPOINT_INTERVAL);
+    }
+
+    @Test
+    public void removedBooksExpire() throws Exception {
+        store.getHistory().setRetentionMillis(10000);
+        store.add(book, 1);
+        store.remove(0);
+        time.addAndGet(20000);
+        store.add(new Book("Other", "Book", "1"), 1);
+        for (int i = 0; i < 5000; i++) {
+            store.reduceQuantity(1, 0);
+        }
+        assertEquals(0, store.getQuantity(0, Instant.ofEpochMilli(1000)));
+        assertNull(store.getPrice(0, Instant.ofEpochMilli(1000)));
+    }
+
+    @Test
+    public void unchangedBooksAreTrimmed() throws Exception {
+        store.getHistory().setRetentionMillis(10000);
+        store.add(book, 1);
+        for (int i = 0; i < 10 * StockHistory.CHECKPOINT_INTERVAL; i++) {
+            time.addAndGet(10);
+            store.add(book, 1);
+        }
+        long lastChange = time.get();
+        time.addAndGet(20000);
+        store.add(new Book("Other", "Book", "1"), 1);
+
+        assertEquals(StockHistory.UNKNOWN, store.getQuantity(0, Instant.ofEpochMilli(lastChange - 100)));
+        assertEquals(10 * StockHistory.CHECKPOINT_INTERVAL + 1, store.getQuantity(0, Instant.ofEpochMilli(time.get())));
+        assertTrue(store.getHistory().size() <= StockHistory.CHECKPOINT_INTERVAL + 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void retentionHasToBePositive() throws Exception {
+        store.getHistory().setRetentionMillis(0);
+    }
+}
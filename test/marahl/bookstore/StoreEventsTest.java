@@ -0,0 +1,91 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class StoreEventsTest {
+
+    private final Book first = new Book("Generic Title", "First Author", "185.50");
+    private final Book second = new Book("Generic Title", "Second Author", "299.99");
+    private BookStore store;
+    private StoreEvents events;
+    private List<StoreEvents.Event> recorded;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new BookStore();
+        events = store.getEvents();
+        recorded = new ArrayList<>();
+        events.addListener(recorded::add);
+    }
+
+    @Test
+    public void disabledByDefault() throws Exception {
+        store.add(first, 1);
+        store.list("gen");
+        store.buy(first);
+        assertFalse(events.isEnabled());
+        assertTrue(recorded.isEmpty());
+        for (StoreEvents.Type type : StoreEvents.Type.values()) {
+            assertEquals(0, events.getCount(type));
+        }
+    }
+
+    @Test
+    public void recordsOperations() throws Exception {
+        events.setEnabled(true);
+        store.addBatch(new Map.Entry[]{
+                new AbstractMap.SimpleImmutableEntry<>(first, 2),
+                new AbstractMap.SimpleImmutableEntry<>(second, 0),
+                new AbstractMap.SimpleImmutableEntry<>(null, 1)});
+        assertEquals(2, store.list("gener").length);
+        int[] statuses = store.buy(first, second);
+        store.getPrice(new Book[]{first, second}, statuses);
+        store.getStockSnapshot();
+
+        assertEvent(StoreEvents.Type.INGEST, "addBatch", 3, 2);
+        assertEvent(StoreEvents.Type.SEARCH, "list", 5, 2);
+        assertEvent(StoreEvents.Type.CHECKOUT, "buy", 2, 1);
+        assertEvent(StoreEvents.Type.PRICE, "getPrice", 2, 1);
+        assertEvent(StoreEvents.Type.SNAPSHOT, "getStockSnapshot", 2, 2);
+        assertEquals(2, events.getCount(StoreEvents.Type.LOCK_WAIT));
+        assertEquals(1, events.getCount(StoreEvents.Type.SEARCH));
+        assertTrue(events.getTotalNanos(StoreEvents.Type.SEARCH) >= events.getMaxNanos(StoreEvents.Type.SEARCH));
+
+        events.setEnabled(false);
+        recorded.clear();
+        store.list("");
+        assertTrue(recorded.isEmpty());
+        assertEquals(1, events.getCount(StoreEvents.Type.SEARCH));
+
+        events.reset();
+        assertEquals(0, events.getCount(StoreEvents.Type.SEARCH));
+    }
+
+    @Test
+    public void visitCountsVisitedBooks() throws Exception {
+        store.add(first, 1);
+        store.add(second, 1);
+        events.setEnabled(true);
+        store.visit("", (id, book, quantity) -> false);
+        assertEvent(StoreEvents.Type.SEARCH, "visit", 0, 1);
+    }
+
+    private void assertEvent(StoreEvents.Type type, String operation, long size, long count) {
+        for (StoreEvents.Event event : recorded) {
+            if (event.getType() == type && event.getOperation().equals(operation)) {
+                assertEquals(size, event.getSize());
+                assertEquals(count, event.getCount());
+                assertTrue(event.getDurationNanos() >= 0);
+                return;
+            }
+        }
+        fail(String.format("No %s event for %s in %s", type, operation, recorded));
+    }
+}
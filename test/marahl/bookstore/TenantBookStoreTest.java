@@ -0,0 +1,177 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+import marahl.bookstore.books.BookList;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TenantBookStoreTest {
+
+    private final Book book = new Book("Mastering åäö", "Average Swede", "762.00");
+    private TenantBookStore tenants;
+
+    @After
+    public void tearDown() throws Exception {
+        if (tenants != null) {
+            tenants.close();
+        }
+    }
+
+    @Test
+    public void callsReachTheStore() throws Exception {
+        BookStore store = new BookStore();
+        tenants = new TenantBookStore(store, 2);
+        TenantBookStore.Tenant tenant = tenants.addTenant("shop", 1, 1000, 100);
+
+        assertTrue(tenant.add(book, 2));
+        assertArrayEquals(new Book[]{book}, tenant.list("mastering"));
+        assertArrayEquals(new int[]{BookStore.OK}, tenant.buy(book));
+
+        Map.Entry<Book, Integer>[] batch = new Map.Entry[2500];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = new AbstractMap.SimpleImmutableEntry<>(new Book("Title " + i, "Author", "1"), 1);
+        }
+        tenant.addBatch(batch);
+        assertEquals(2501, store.getStock().length);
+
+        assertEquals(1, tenant.getReadCount());
+        assertEquals(5, tenant.getWriteCount());
+        assertEquals(0, tenant.getThrottledCount());
+        assertTrue(tenant.getThroughput() > 0);
+        assertSame(tenant, tenants.getTenant("shop"));
+        assertArrayEquals(new TenantBookStore.Tenant[]{tenant}, tenants.getTenants());
+    }
+
+    @Test
+    public void overTheRateLimitIsRejected() throws Exception {
+        tenants = new TenantBookStore(new BookStore(), 2);
+        TenantBookStore.Tenant tenant = tenants.addTenant("shop", 1, 0.001, 2);
+        tenant.setMaxWaitMillis(0);
+        tenant.list("a");
+        tenant.list("a");
+        try {
+            tenant.list("a");
+            fail();
+        } catch (RejectedExecutionException e) {
+            assertEquals(1, tenant.getRejectedCount());
+        }
+        assertEquals(2, tenant.getReadCount());
+    }
+
+    @Test
+    public void overTheRateLimitWaits() throws Exception {
+        tenants = new TenantBookStore(new BookStore(), 2);
+        TenantBookStore.Tenant tenant = tenants.addTenant("shop", 1, 100, 1);
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            tenant.list("a");
+        }
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(35));
+        assertEquals(4, tenant.getThrottledCount());
+        assertEquals(0, tenant.getRejectedCount());
+    }
+
+    @Test
+    public void weightedFairShare() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        RecordingList store = new RecordingList(order, release);
+        tenants = new TenantBookStore(store, 1);
+        TenantBookStore.Tenant light = tenants.addTenant("light", 1, 1000, 1000);
+        TenantBookStore.Tenant heavy = tenants.addTenant("heavy", 3, 1000, 1000);
+
+        CompletableFuture<?> blocked = light.submit(false, 1, () -> store.list("block"));
+        waitFor(() -> order.size() == 1);
+        List<CompletableFuture<?>> calls = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            calls.add(light.submit(false, 1, () -> order.add("light")));
+            calls.add(heavy.submit(false, 1, () -> order.add("heavy")));
+        }
+        release.countDown();
+        blocked.join();
+        calls.forEach(CompletableFuture::join);
+
+        long heavyShare = order.subList(1, 401).stream().filter("heavy"::equals).count();
+        assertTrue(String.valueOf(heavyShare), heavyShare >= 280 && heavyShare <= 320);
+    }
+
+    @Test
+    public void readsRunBesideAWrite() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        RecordingList store = new RecordingList(order, release);
+        tenants = new TenantBookStore(store, 2);
+        TenantBookStore.Tenant bulk = tenants.addTenant("bulk", 1, 1000, 1000);
+        TenantBookStore.Tenant shop = tenants.addTenant("shop", 1, 1000, 1000);
+
+        CompletableFuture<Boolean> write = bulk.submit(true, 1, () -> store.add(book, 1));
+        waitFor(() -> order.size() == 1);
+        CompletableFuture<int[]> secondWrite = shop.submit(true, 1, () -> store.buy(book));
+        assertArrayEquals(new Book[0], shop.list("shop"));
+        assertFalse(secondWrite.isDone());
+
+        release.countDown();
+        assertTrue(write.join());
+        secondWrite.join();
+        assertEquals(Arrays.asList("add", "shop", "buy"), order);
+    }
+
+    private static void waitFor(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Records the order of calls, the first add or a list of "block" waits until released
+     */
+    private static final class RecordingList implements BookList {
+        private final List<String> order;
+        private final CountDownLatch release;
+
+        private RecordingList(List<String> order, CountDownLatch release) {
+            this.order = order;
+            this.release = release;
+        }
+
+        @Override
+        public Book[] list(String searchString) {
+            order.add(searchString);
+            if (searchString.equals("block")) {
+                await();
+            }
+            return new Book[0];
+        }
+
+        @Override
+        public boolean add(Book book, int quantity) {
+            order.add("add");
+            await();
+            return true;
+        }
+
+        @Override
+        public int[] buy(Book... books) {
+            order.add("buy");
+            return new int[books.length];
+        }
+
+        private void await() {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
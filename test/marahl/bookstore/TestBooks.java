@@ -0,0 +1,35 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+
+import java.math.BigDecimal;
+import java.util.AbstractMap;
+import java.util.Map;
+
+/**
+ * The books and quantities most store tests start from
+ */
+final class TestBooks {
+    private static final Map.Entry<Book, Integer>[] BOOKS = new Map.Entry[]{
+            newEntry(new Book("Mastering åäö", "Average Swede", new BigDecimal(762.00)), 15),
+            newEntry(new Book("How To Spend Money", "Rich Bloke", new BigDecimal(1000000.00)), 1),
+            newEntry(new Book("Generic Title", "First Author", new BigDecimal(185.50)), 5),
+            newEntry(new Book("Generic Title", "Second Author", new BigDecimal(1748.00)), 3),
+            newEntry(new Book("Random Sales", "Cunning Bastard", new BigDecimal(999.00)), 20),
+            newEntry(new Book("Random Sales", "Cunning Bastard", new BigDecimal(499.00)), 3),
+            newEntry(new Book("Desired", "Rich Bloke", new BigDecimal(564.50)), 3)};
+
+    private TestBooks() {
+    }
+
+    /**
+     * @return a new array of the test books and their quantities
+     */
+    static Map.Entry<Book, Integer>[] create() {
+        return BOOKS.clone();
+    }
+
+    static Map.Entry<Book, Integer> newEntry(Book book, int quantity) {
+        return new AbstractMap.SimpleImmutableEntry<>(book, quantity);
+    }
+}
@@ -0,0 +1,88 @@
+package marahl.bookstore;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TimingWheelTest {
+
+    private TimingWheel<Long> wheel;
+    private List<Long> expired;
+
+    @Before
+    public void setUp() throws Exception {
+        wheel = new TimingWheel<>(10, 0);
+        expired = new ArrayList<>();
+    }
+
+    @Test
+    public void expireInOrder() throws Exception {
+        wheel.schedule(30L, 30);
+        wheel.schedule(10L, 10);
+        wheel.schedule(20L, 20);
+
+        wheel.advance(15, expired::add);
+        assertEquals(1, expired.size());
+        wheel.advance(30, expired::add);
+        assertEquals(3, expired.size());
+        assertEquals(Long.valueOf(10), expired.get(0));
+        assertEquals(Long.valueOf(20), expired.get(1));
+        assertEquals(Long.valueOf(30), expired.get(2));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void expireOnHigherLevels() throws Exception {
+        Random random = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            long deadline = 1 + random.nextInt(100_000_000);
+            wheel.schedule(deadline, deadline);
+        }
+        long now = 0;
+        while (wheel.size() > 0) {
+            now += 1 + random.nextInt(500_000);
+            final long time = now;
+            wheel.advance(now, deadline -> {
+                assertTrue(deadline <= time);
+                assertTrue(deadline > time - 500_010);
+                expired.add(deadline);
+            });
+        }
+        assertEquals(10000, expired.size());
+    }
+
+    @Test
+    public void expireBeyondWheelRange() throws Exception {
+        long deadline = 10L * (1L << 26);
+        wheel.schedule(deadline, deadline);
+        wheel.advance(deadline - 10, expired::add);
+        assertTrue(expired.isEmpty());
+        wheel.advance(deadline, expired::add);
+        assertEquals(1, expired.size());
+    }
+
+    @Test
+    public void cancel() throws Exception {
+        TimingWheel.Timeout<Long> first = wheel.schedule(1L, 100);
+        TimingWheel.Timeout<Long> second = wheel.schedule(2L, 100);
+        assertTrue(wheel.cancel(first));
+        assertFalse(wheel.cancel(first));
+        assertFalse(first.isPending());
+        assertTrue(second.isPending());
+
+        wheel.advance(100, expired::add);
+        assertEquals(1, expired.size());
+        assertEquals(Long.valueOf(2), expired.get(0));
+        assertFalse(wheel.cancel(second));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tickTooShort() throws Exception {
+        new TimingWheel<Long>(0, 0);
+    }
+}
@@ -0,0 +1,131 @@
+package marahl.bookstore;
+
+import marahl.bookstore.books.Book;
+import marahl.bookstore.books.SearchKey;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+public class TypeaheadTest {
+
+    @Test
+    public void suggest() throws Exception {
+        AtomicLong time = new AtomicLong();
+        BookStore store = new BookStore(time::get);
+        Book swede = new Book("Mastering åäö", "Average Swede", "762.00");
+        Book money = new Book("How To Spend Money", "Rich Bloke", "1000000.00");
+        Book first = new Book("Generic Title", "First Author", "185.50");
+        Book second = new Book("Generic Title", "Second Author", "299.99");
+        Book desired = new Book("Desired", "Rich Bloke", "300.00");
+        store.add(swede, 15);
+        store.add(money, 1);
+        store.add(first, 5);
+        store.add(second, 3);
+        store.add(desired, 3);
+
+        assertSuggestions(store.suggest("GEN", 5, Typeahead.Ranking.STOCK), "Generic Title");
+        Typeahead.Suggestion generic = store.suggest("gen", 1, Typeahead.Ranking.STOCK)[0];
+        assertFalse(generic.isAuthor());
+        assertEquals(8, generic.getStock());
+        assertEquals(2, generic.getBookCount());
+
+        assertSuggestions(store.suggest("", 3, Typeahead.Ranking.STOCK), "Average Swede", "Mastering åäö", "Generic Title");
+        assertSuggestions(store.suggest("r", 5, Typeahead.Ranking.STOCK), "Rich Bloke");
+        assertSuggestions(store.suggest("rich bloke and more", 5, Typeahead.Ranking.STOCK));
+        assertSuggestions(store.suggest("x", 5, Typeahead.Ranking.STOCK));
+
+        assertEquals(0, store.suggest("d", 1, Typeahead.Ranking.SALES)[0].getSales(), 0);
+        store.buy(desired, desired, money);
+        // cached until a second has passed
+        assertEquals(0, store.suggest("d", 1, Typeahead.Ranking.SALES)[0].getSales(), 0);
+        time.addAndGet(1000);
+        // rebuilt in the background, the old suggestions are served until it is done
+        awaitSuggestions(() -> store.suggest("", 4, Typeahead.Ranking.SALES), "Rich Bloke", "Desired",
+                "How To Spend Money", "Average Swede");
+        assertEquals(2, store.suggest("d", 1, Typeahead.Ranking.SALES)[0].getSales(), 0.001);
+
+        store.remove(swede);
+        store.add(new Book("Desire", "Someone", "10"), 100);
+        time.addAndGet(1000);
+        awaitSuggestions(() -> store.suggest("", 2, Typeahead.Ranking.STOCK), "Desire", "Someone");
+        assertSuggestions(store.suggest("desire", 5, Typeahead.Ranking.STOCK), "Desire", "Desired");
+        assertSuggestions(store.suggest("ma", 5, Typeahead.Ranking.STOCK));
+    }
+
+    @Test
+    public void matchesScan() throws Exception {
+        Random random = new Random(11);
+        Map.Entry<Book, Integer>[] books = new Map.Entry[5000];
+        String[] words = {"a", "ab", "abc", "b", "ba", "bab", "the", "then", "there", "å"};
+        for (int i = 0; i < books.length; i++) {
+            String title = words[random.nextInt(words.length)] + " " + words[random.nextInt(words.length)] + " " + random.nextInt(100);
+            String author = words[random.nextInt(words.length)] + " " + random.nextInt(300);
+            books[i] = new AbstractMap.SimpleImmutableEntry<>(new Book(title, author, BigDecimal.ONE), random.nextInt(50));
+        }
+        BookStore store = new BookStore();
+        store.addBatch(books);
+        Map<Integer, Double> sales = new HashMap<>();
+        for (int i = 0; i < 500; i++) {
+            sales.merge(random.nextInt(books.length), random.nextDouble(), Double::sum);
+        }
+        for (Typeahead.Ranking ranking : Typeahead.Ranking.values()) {
+            Typeahead typeahead = new Typeahead(store.getCatalog(), store::getQuantity, sales, ranking, 0, 0);
+            for (String prefix : new String[]{"", "a", "ab", "abc ", "b", "ba", "bab 1", "th", "the", "then ",
+                    "there 9", "å", "x", "abc abc 12", "the 299"}) {
+                assertEquals(ranking + " " + prefix, scan(store, sales, ranking, prefix),
+                        Arrays.asList(typeahead.suggest(prefix, Typeahead.MAX_SUGGESTIONS)).toString());
+            }
+        }
+    }
+
+    private static String scan(BookStore store, Map<Integer, Double> sales, Typeahead.Ranking ranking, String prefix) {
+        Map<String, double[]> scores = new HashMap<>();
+        Map<String, String> texts = new HashMap<>();
+        store.visit("", (id, book, quantity) -> {
+            SearchKey key = new SearchKey(book, false);
+            for (int author = 0; author < 2; author++) {
+                String folded = author == 1 ? key.getAuthor() : key.getTitle();
+                if (!folded.startsWith(prefix)) continue;
+                String text = author == 1 ? book.getAuthor() : book.getTitle();
+                String name = text + (author == 1 ? " (author)" : " (title)");
+                double[] score = scores.computeIfAbsent(name, k -> new double[2]);
+                score[0] += sales.getOrDefault(id, 0.0);
+                score[1] += quantity;
+                texts.put(name, text);
+            }
+            return true;
+        });
+        List<String> names = new ArrayList<>(scores.keySet());
+        int primary = ranking == Typeahead.Ranking.SALES ? 0 : 1;
+        names.sort(Comparator.comparing((String name) -> -scores.get(name)[primary])
+                .thenComparing(name -> -scores.get(name)[1 - primary])
+                .thenComparing(texts::get));
+        return names.subList(0, Math.min(Typeahead.MAX_SUGGESTIONS, names.size())).toString();
+    }
+
+    private static void awaitSuggestions(Supplier<Typeahead.Suggestion[]> suggest, String... expected)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!Arrays.equals(expected, getTexts(suggest.get())) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertSuggestions(suggest.get(), expected);
+    }
+
+    private static String[] getTexts(Typeahead.Suggestion[] suggestions) {
+        String[] texts = new String[suggestions.length];
+        for (int i = 0; i < suggestions.length; i++) {
+            texts[i] = suggestions[i].getText();
+        }
+        return texts;
+    }
+
+    private static void assertSuggestions(Typeahead.Suggestion[] suggestions, String... expected) {
+        assertArrayEquals(expected, getTexts(suggestions));
+    }
+}
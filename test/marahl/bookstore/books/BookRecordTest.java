@@ -0,0 +1,137 @@
+package marahl.bookstore.books;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class BookRecordTest {
+
+    private final Book[] books = {
+            new Book("Mastering åäö", "Average Swede", "762.00"),
+            new Book("How To Spend Money", "Rich Bloke", "1000000.00"),
+            new Book("", "", ""),
+            new Book("Negative", "Refund", "-0.05"),
+            new Book("Scientific", "Notation", new BigDecimal("1E+3")),
+            new Book("Emoji 📚 and lone \uD800", "Someone", "999999999999999999"),
+            new Book(repeat("Long title ", 30), "Author", "185.50")};
+
+    @Test
+    public void roundTrip() throws Exception {
+        for (ByteBuffer buffer : new ByteBuffer[]{ByteBuffer.allocate(4096), ByteBuffer.allocateDirect(4096)}) {
+            int expectedLength = 0;
+            for (Book book : books) {
+                int position = buffer.position();
+                BookRecord.write(buffer, book);
+                assertEquals(BookRecord.getRecordLength(book), buffer.position() - position);
+                expectedLength += buffer.position() - position;
+            }
+            buffer.flip();
+            assertEquals(expectedLength, buffer.limit());
+
+            BookRecord record = new BookRecord();
+            int offset = 0;
+            for (Book book : books) {
+                offset = record.wrap(buffer, offset);
+                Book expected = new Book(new String(book.getTitle().getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8),
+                        book.getAuthor(), book.getPrice());
+                assertEquals(expected.getTitle(), record.getTitle());
+                assertEquals(expected.getAuthor(), record.getAuthor());
+                assertEquals(book.getPrice(), record.getPrice());
+                assertEquals(book.getPrice().unscaledValue().longValue(), record.getUnscaledPrice());
+                assertEquals(book.getPrice().scale(), record.getPriceScale());
+                assertEquals(book.getAuthor().getBytes(StandardCharsets.UTF_8).length, record.getAuthorLength());
+                assertEquals(expected.getTitle(), record.getBook().getTitle());
+            }
+            assertEquals(buffer.limit(), offset);
+            assertEquals(0, buffer.position());
+        }
+    }
+
+    @Test
+    public void compact() throws Exception {
+        Book book = new Book("Generic Title", "First Author", "185.50");
+        // a length byte per field and record, 3 bytes of price and 1 of scale
+        assertEquals(1 + 1 + 13 + 1 + 12 + 3 + 1, BookRecord.getRecordLength(book));
+    }
+
+    @Test
+    public void comparesInPlace() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        for (Book book : books) {
+            BookRecord.write(buffer, book);
+        }
+        buffer.flip();
+        byte[] rich = "Rich".getBytes(StandardCharsets.UTF_8);
+        byte[] mastering = "Mastering å".getBytes(StandardCharsets.UTF_8);
+        int authors = 0;
+        int titles = 0;
+        BookRecord record = new BookRecord();
+        for (int offset = 0; offset < buffer.limit(); offset = record.wrap(buffer, offset)) {
+            if (record.authorStartsWith(rich)) authors++;
+            if (record.titleStartsWith(mastering)) titles++;
+        }
+        assertEquals(1, authors);
+        assertEquals(1, titles);
+        assertTrue(record.titleStartsWith(new byte[0]));
+        assertFalse(record.authorStartsWith("Authors".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void rejectsCorruptRecords() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        BookRecord.write(buffer, new Book("Title", "Author", "1.00"));
+        buffer.flip();
+        BookRecord record = new BookRecord();
+
+        ByteBuffer truncated = buffer.duplicate();
+        truncated.limit(truncated.limit() - 1);
+        assertInvalid(record, truncated);
+
+        ByteBuffer longTitle = ByteBuffer.allocate(buffer.limit());
+        longTitle.put(buffer.duplicate()).flip();
+        longTitle.put(1, (byte) 100);
+        assertInvalid(record, longTitle);
+
+        ByteBuffer endless = ByteBuffer.wrap(new byte[]{(byte) 0x80, (byte) 0x80, (byte) 0x80});
+        assertInvalid(record, endless);
+
+        assertTrue(assertThrows(() -> BookRecord.write(ByteBuffer.allocate(64),
+                new Book("", "", new BigDecimal("12345678901234567890")))) instanceof ArithmeticException);
+    }
+
+    @Test
+    public void overflowWritesNothing() throws Exception {
+        Book book = new Book("Title", "Author", "1.00");
+        ByteBuffer buffer = ByteBuffer.allocate(BookRecord.getRecordLength(book) - 1);
+        assertTrue(assertThrows(() -> BookRecord.write(buffer, book)) instanceof BufferOverflowException);
+        assertEquals(0, buffer.position());
+        assertEquals(0, buffer.get(0));
+    }
+
+    private static void assertInvalid(BookRecord record, ByteBuffer buffer) {
+        assertTrue(assertThrows(() -> record.wrap(buffer, 0)) instanceof IllegalArgumentException);
+    }
+
+    private static Exception assertThrows(Runnable runnable) {
+        try {
+            runnable.run();
+        } catch (Exception e) {
+            return e;
+        }
+        fail("Nothing was thrown");
+        return null;
+    }
+
+    private static String repeat(String string, int times) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            builder.append(string);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,38 @@
+package marahl.bookstore.books;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SearchKeyTest {
+
+    @Test
+    public void foldCase() {
+        assertEquals("mastering åäö", SearchKey.fold("MASTERING ÅÄÖ", false));
+        assertEquals("strasse", SearchKey.fold("Straße", false));
+        assertEquals(SearchKey.fold("STRASSE", false), SearchKey.fold("straße", false));
+    }
+
+    @Test
+    public void foldCompatibilityForms() {
+        assertEquals(SearchKey.fold("å", false), SearchKey.fold("å", false));
+        assertEquals("file", SearchKey.fold("ﬁle", false));
+        assertEquals("abc", SearchKey.fold("ＡＢＣ", false));
+    }
+
+    @Test
+    public void foldDiacritics() {
+        assertEquals("café", SearchKey.fold("Café", false));
+        assertEquals("cafe", SearchKey.fold("Café", true));
+        assertEquals("aao", SearchKey.fold("åäö", true));
+    }
+
+    @Test
+    public void startsWith() {
+        SearchKey key = new SearchKey(new Book("Mastering åäö", "Average Swede", "0"), false);
+        assertTrue(key.startsWith(SearchKey.fold("mastering Å", false)));
+        assertTrue(key.startsWith(SearchKey.fold("AVERAGE", false)));
+        assertTrue(key.startsWith(""));
+        assertFalse(key.startsWith(SearchKey.fold("Swede", false)));
+    }
+}